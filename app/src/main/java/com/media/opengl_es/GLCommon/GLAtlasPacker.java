@@ -0,0 +1,147 @@
+package com.media.opengl_es.GLCommon;
+
+import java.util.ArrayList;
+
+/** 纹理图集的skyline(天际线)矩形装箱算法，只做坐标计算，不涉及任何gl操作
+ * 1、用一组首尾相连的水平线段(天际线)描述已经占用区域的上边界，每个线段记录起始x，宽度和高度y
+ * 2、插入时遍历每个线段作为左边界，计算放下矩形所需要的高度(跨越的所有线段中最高的y)，选择放下后顶部最低的位置(bottom-left原则)，
+ * 顶部相同时选择浪费宽度最小的
+ * 3、放下后用新的线段替换被覆盖的部分，并合并相邻等高的线段
+ * 4、天际线下面被遮挡的空洞不会再被利用，删除矩形也不会回收空间，只有reset()后整体重新装箱(GLTextureAtlas中的repack)才能回收
+ * */
+public class GLAtlasPacker {
+
+    private static class Node {
+        int x;
+        int y;
+        int width;
+
+        Node(int x,int y,int width) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ArrayList<Node> mSkyline = new ArrayList<>();
+    // 已经放入的矩形的总面积
+    private long mUsedArea;
+
+    public GLAtlasPacker(int width,int height) {
+        mWidth = width;
+        mHeight = height;
+        reset();
+    }
+
+    // 清空所有已经放入的矩形
+    public void reset() {
+        mSkyline.clear();
+        mSkyline.add(new Node(0,0,mWidth));
+        mUsedArea = 0;
+    }
+
+    /** 放入一个矩形
+     * out:放入成功时返回左上角的坐标 out[0]=x,out[1]=y
+     * return:false代表空间不足
+     * */
+    public boolean insert(int width,int height,int[] out) {
+        if (width <= 0 || height <= 0 || width > mWidth || height > mHeight) {
+            return false;
+        }
+        int bestIndex = -1;
+        int bestTop = Integer.MAX_VALUE;
+        int bestWidth = Integer.MAX_VALUE;
+        int bestY = 0;
+        for (int i = 0; i < mSkyline.size(); i++) {
+            int y = fit(i,width,height);
+            if (y < 0) {
+                continue;
+            }
+            Node node = mSkyline.get(i);
+            int top = y + height;
+            if (top < bestTop || (top == bestTop && node.width < bestWidth)) {
+                bestIndex = i;
+                bestTop = top;
+                bestWidth = node.width;
+                bestY = y;
+            }
+        }
+        if (bestIndex < 0) {
+            return false;
+        }
+
+        int x = mSkyline.get(bestIndex).x;
+        mSkyline.add(bestIndex,new Node(x,bestY + height,width));
+        // 裁剪或者删除被新线段覆盖的线段
+        for (int i = bestIndex + 1; i < mSkyline.size(); ) {
+            Node node = mSkyline.get(i);
+            Node prev = mSkyline.get(i - 1);
+            int prevRight = prev.x + prev.width;
+            if (node.x >= prevRight) {
+                break;
+            }
+            int shrink = prevRight - node.x;
+            node.x += shrink;
+            node.width -= shrink;
+            if (node.width <= 0) {
+                mSkyline.remove(i);
+            } else {
+                break;
+            }
+        }
+        merge();
+
+        mUsedArea += (long)width * height;
+        out[0] = x;
+        out[1] = bestY;
+        return true;
+    }
+
+    /** 以第index个线段为左边界放下矩形时矩形底部的y，放不下返回-1
+     * */
+    private int fit(int index,int width,int height) {
+        int x = mSkyline.get(index).x;
+        if (x + width > mWidth) {
+            return -1;
+        }
+        int remain = width;
+        int y = 0;
+        for (int i = index; remain > 0; i++) {
+            Node node = mSkyline.get(i);
+            y = Math.max(y,node.y);
+            if (y + height > mHeight) {
+                return -1;
+            }
+            remain -= node.width;
+        }
+        return y;
+    }
+
+    private void merge() {
+        for (int i = 0; i < mSkyline.size() - 1; ) {
+            Node node = mSkyline.get(i);
+            Node next = mSkyline.get(i + 1);
+            if (node.y == next.y) {
+                node.width += next.width;
+                mSkyline.remove(i + 1);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    // 已经放入的矩形面积占总面积的比例
+    public float getOccupancy() {
+        return (float)mUsedArea / ((long)mWidth * mHeight);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+}
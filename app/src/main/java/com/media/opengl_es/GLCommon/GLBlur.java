@@ -0,0 +1,408 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.util.ArrayList;
+
+/** gpu上的快速高斯模糊，先逐级缩小一半(降采样金字塔)，在最小的一级上做可分离的高斯模糊，再逐级放大回目标大小
+ * 1、缩小一半时在2x2像素的中间用GL_LINEAR采样一次，正好是四个像素的平均；每缩小一级高斯的sigma也缩小一半，所以半径很大的模糊
+ * 也只需要在很小的图上采样少量几次
+ * 2、模糊的权重和GLFilter.gaussianWeights()相同，利用GL_LINEAR把相邻两个权重合并成一次采样(采样点放在两个像素之间按权重偏移)，
+ * 半径为r时每个方向只需要 1 + 2 * ceil(r / 2) 次采样
+ * 3、降采样和升采样本身也会带来一些模糊，计算最小一级的sigma时会把这部分扣除掉，所以结果和直接做高斯模糊很接近，但不是完全一致
+ * (GLCpuFilterBackend是按照定义精确计算的)
+ * 4、quality决定最小一级上允许的最大半径：质量越高缩小的级数越少，采样次数越多
+ * 5、中间结果的fbo会缓存下来，输入大小不变时每一帧不会重新分配；fbo为GL_RGB格式，不保留alpha
+ * 以1080p为例，半径60的模糊(sigma 20)在QUALITY_MEDIUM下缩小3级，每一帧的像素填充量约为全屏的1.7倍
+ *
+ * 使用方式(渲染线程)：
+ * GLBlur blur = new GLBlur(engine.getResourceManager(),engine.getQuadBuffer());
+ * blur.setRadius(60);
+ * blur.apply(srcFrameBuffer.getTexture(),width,height,null);  // null代表画到当前的窗口(framebuffer 0)
+ *
+ * 注：输入纹理需要用GL_LINEAR过滤(GLFrameBuffer可以调用setLinearFilter(true))；所有函数都必须在渲染线程中调用
+ * */
+public class GLBlur {
+
+    public static final int QUALITY_LOW = 0;
+    public static final int QUALITY_MEDIUM = 1;
+    public static final int QUALITY_HIGH = 2;
+
+    // 各个质量下最小一级上允许的最大模糊半径(像素)
+    private static final int[] MAX_LEVEL_RADIUS = {4,8,16};
+    // 最多缩小的级数，1/64
+    private static final int MAX_LEVELS = 6;
+
+    static final String[] PASS_NAMES = {"down","blurH","blurV","up"};
+    public static final int PASS_DOWN = 0;
+    public static final int PASS_BLUR_H = 1;
+    public static final int PASS_BLUR_V = 2;
+    public static final int PASS_UP = 3;
+
+    private final GLResourceManager mManager;
+    private final GLVertexBuffer mQuad;
+
+    private float mSigma;
+    private int mQuality = QUALITY_MEDIUM;
+    private boolean mProfiling;
+
+    // 降采样金字塔，mLevels.get(i)为缩小i+1级的fbo
+    private final ArrayList<GLFrameBuffer> mLevels = new ArrayList<>();
+    // 水平模糊的中间结果，和最小一级同样大小
+    private GLFrameBuffer mTemp;
+    // 只复制的程序(用于缩小和放大)；模糊的程序按照采样次数编译，下标为每一侧的采样次数
+    private GLProgram mCopyProgram;
+    private final ArrayList<GLProgram> mBlurPrograms = new ArrayList<>();
+
+    // 最近一次apply()的参数
+    private int mLevelCount;
+    private float[] mTapOffsets = new float[0];
+    private float[] mTapWeights = new float[0];
+    private int mTapCount;
+
+    // 最近一次apply()每一种pass的耗时和次数，只有开启了profiling才会统计
+    private final long[] mPassNanos = new long[PASS_NAMES.length];
+    private final int[] mPassCount = new int[PASS_NAMES.length];
+    private long mTotalNanos;
+
+    /** manager:中间fbo和着色器程序登记到的资源管理器
+     * quad:全屏四边形，格式与GLRenderEngine.getQuadBuffer()相同
+     * */
+    public GLBlur(GLResourceManager manager,GLVertexBuffer quad) {
+        mManager = manager;
+        mQuad = quad;
+    }
+
+    /** 模糊半径(像素)，与GLFilter.gaussianBlur()一样半径为ceil(3*sigma)
+     * */
+    public void setRadius(int radius) {
+        mSigma = Math.max(0,radius) / 3f;
+    }
+
+    // 使用GLFilter描述的高斯模糊参数，与cpu后端保持一致
+    public void setFilter(GLFilter filter) {
+        if (filter.type != GLFilter.TYPE_GAUSSIAN_BLUR) {
+            throw new RuntimeException("GLBlur only supports gaussian blur filter, type " + filter.type);
+        }
+        mSigma = filter.getSigma();
+    }
+
+    public void setQuality(int quality) {
+        if (quality < QUALITY_LOW || quality > QUALITY_HIGH) {
+            throw new RuntimeException("invalid blur quality " + quality);
+        }
+        mQuality = quality;
+    }
+
+    /** 开启后每一个pass结束都会调用glFinish()等待gpu执行完成，统计每个pass的耗时；gles2.0没有计时查询，这样会打断cpu和gpu的
+     * 并行，只用于调试和测量
+     * */
+    public void setProfiling(boolean profiling) {
+        mProfiling = profiling;
+    }
+
+    /** 对texture做模糊，结果画到target中
+     * texture:输入纹理(GL_TEXTURE_2D)，width,height:输入纹理的大小
+     * target:输出的fbo，null代表输出到framebuffer 0，视口为width x height
+     * */
+    public void apply(int texture,int width,int height,GLFrameBuffer target) {
+        long start = mProfiling ? System.nanoTime() : 0;
+        for (int i = 0; i < PASS_NAMES.length; i++) {
+            mPassNanos[i] = 0;
+            mPassCount[i] = 0;
+        }
+        int targetWidth = target != null ? target.getWidth() : width;
+        int targetHeight = target != null ? target.getHeight() : height;
+
+        prepare(width,height);
+        mQuad.bind();
+
+        // 1、逐级缩小，每一级都是上一级的四个像素的平均
+        int srcTexture = texture;
+        int srcWidth = width;
+        int srcHeight = height;
+        for (int i = 0; i < mLevelCount; i++) {
+            GLFrameBuffer level = mLevels.get(i);
+            drawCopy(PASS_DOWN,srcTexture,level.getFramebuffer(),level.getWidth(),level.getHeight());
+            srcTexture = level.getTexture();
+            srcWidth = level.getWidth();
+            srcHeight = level.getHeight();
+        }
+
+        // 2、在最小的一级上做可分离的高斯模糊，没有缩小时垂直方向直接输出到目标
+        drawBlur(PASS_BLUR_H,srcTexture,srcWidth,srcHeight,1f / srcWidth,0,mTemp.getFramebuffer());
+        if (mLevelCount == 0) {
+            drawBlur(PASS_BLUR_V,mTemp.getTexture(),targetWidth,targetHeight,0,1f / srcHeight,framebufferOf(target));
+            finish(start);
+            return;
+        }
+        GLFrameBuffer smallest = mLevels.get(mLevelCount - 1);
+        drawBlur(PASS_BLUR_V,mTemp.getTexture(),srcWidth,srcHeight,0,1f / srcHeight,smallest.getFramebuffer());
+
+        // 3、逐级放大，复用降采样时的fbo；最后一次放大到目标
+        for (int i = mLevelCount - 2; i >= 0; i--) {
+            GLFrameBuffer level = mLevels.get(i);
+            drawCopy(PASS_UP,srcTexture,level.getFramebuffer(),level.getWidth(),level.getHeight());
+            srcTexture = level.getTexture();
+        }
+        drawCopy(PASS_UP,srcTexture,framebufferOf(target),targetWidth,targetHeight);
+        finish(start);
+    }
+
+    // 根据sigma和质量计算缩小的级数和最小一级上的采样点，准备中间fbo
+    private void prepare(int width,int height) {
+        int maxRadius = MAX_LEVEL_RADIUS[mQuality];
+        int levels = 0;
+        // 缩小一级后sigma减半，直到半径不超过maxRadius；图片太小时不再缩小
+        while (levels < MAX_LEVELS && Math.ceil(3 * mSigma / (1 << levels)) > maxRadius
+                && (width >> (levels + 1)) >= 8 && (height >> (levels + 1)) >= 8) {
+            levels++;
+        }
+        mLevelCount = levels;
+
+        // 缩小一级相当于间隔为s的[0.5,0.5]两点平均，方差为 s*s/4；放大一级是权重0.25/0.75的双线性插值，方差为 3*s*s/16，
+        // s为较小一级的像素间隔换算到原图的像素数；缩小再放大levels级累计的方差为 (4^levels - 1) / 3，从总的方差中扣除
+        double variance = mSigma * (double)mSigma - ((1L << (2 * levels)) - 1) / 3.0;
+        float levelSigma = (float)(Math.sqrt(Math.max(0,variance)) / (1 << levels));
+        computeTaps(GLFilter.gaussianBlur(levelSigma).gaussianWeights());
+
+        for (int i = 0; i < levels; i++) {
+            int w = Math.max(1,width >> (i + 1));
+            int h = Math.max(1,height >> (i + 1));
+            if (i < mLevels.size()) {
+                mLevels.get(i).resize(w,h);
+            } else {
+                mLevels.add(newFrameBuffer(w,h,"GLBlur level " + (i + 1)));
+            }
+        }
+        // 多余的级别保留下来，sigma变大时不需要重新创建；超出预算时它们可以被回收
+        int tempWidth = Math.max(1,width >> levels);
+        int tempHeight = Math.max(1,height >> levels);
+        if (mTemp == null) {
+            mTemp = newFrameBuffer(tempWidth,tempHeight,"GLBlur temp");
+        } else {
+            mTemp.resize(tempWidth,tempHeight);
+        }
+
+        if (mCopyProgram == null) {
+            mCopyProgram = new GLProgram(mManager,VERTEX_SHADER,COPY_FRAGMENT_SHADER);
+            mCopyProgram.setOwner("GLBlur copy");
+        }
+    }
+
+    /** 把2r+1个权重合并成线性采样的点：中心一个，然后相邻的两个权重合并为一个，偏移为两个像素位置按权重的平均
+     * 结果只记录一侧(包括中心)，另一侧对称；半径为0时只有中心一个权重为1的点，相当于复制
+     * */
+    private void computeTaps(float[] weights) {
+        int radius = weights.length / 2;
+        int taps = 1 + (radius + 1) / 2;
+        if (mTapOffsets.length < taps) {
+            mTapOffsets = new float[taps];
+            mTapWeights = new float[taps];
+        }
+        mTapOffsets[0] = 0;
+        mTapWeights[0] = weights[radius];
+        int tap = 1;
+        for (int i = 1; i <= radius; i += 2) {
+            float w1 = weights[radius + i];
+            float w2 = i + 1 <= radius ? weights[radius + i + 1] : 0;
+            mTapWeights[tap] = w1 + w2;
+            mTapOffsets[tap] = (i * w1 + (i + 1) * w2) / (w1 + w2);
+            tap++;
+        }
+        mTapCount = taps;
+    }
+
+    private GLFrameBuffer newFrameBuffer(int width,int height,String owner) {
+        GLFrameBuffer fbo = new GLFrameBuffer(mManager,width,height,true);
+        fbo.setLinearFilter(true);
+        fbo.setOwner(owner);
+        // 中间结果每一帧都会重新生成，被回收后重建即可
+        fbo.setEvictable(true);
+        return fbo;
+    }
+
+    private static int framebufferOf(GLFrameBuffer target) {
+        return target != null ? target.getFramebuffer() : 0;
+    }
+
+    /** 每个pass都是画一个全屏四边形；共享四边形的纹理坐标t向下，每画一次上下翻转一次，整个流程缩小n次，模糊2次，放大n次，
+     * pass数是偶数，所以输出和输入的方向一致(因此sigma为0时也要做两次模糊，不能只复制一次)
+     * */
+    private void drawCopy(int pass,int texture,int framebuffer,int width,int height) {
+        long start = mProfiling ? System.nanoTime() : 0;
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glViewport(0,0,width,height);
+        mCopyProgram.useprogram();
+        bindQuad(mCopyProgram);
+        bindTexture(mCopyProgram,texture);
+        GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+        endPass(pass,start);
+    }
+
+    private void drawBlur(int pass,int texture,int width,int height,float stepX,float stepY,int framebuffer) {
+        long start = mProfiling ? System.nanoTime() : 0;
+        GLProgram program = blurProgram(mTapCount);
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glViewport(0,0,width,height);
+        program.useprogram();
+        bindQuad(program);
+        bindTexture(program,texture);
+        GLDispatch.glUniform2f(program.uniformaLocationForname("texelStep"),stepX,stepY);
+        GLDispatch.glUniform1fv(program.uniformaLocationForname("offsets"),mTapCount,mTapOffsets,0);
+        GLDispatch.glUniform1fv(program.uniformaLocationForname("weights"),mTapCount,mTapWeights,0);
+        GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+        endPass(pass,start);
+    }
+
+    private void bindQuad(GLProgram program) {
+        int position = program.attributeLocationForname("position");
+        int texcoord = program.attributeLocationForname("texcoord");
+        GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,0);
+        GLDispatch.glEnableVertexAttribArray(position);
+        GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,GLRenderEngine.QUAD_TEXCOORD_OFFSET);
+        GLDispatch.glEnableVertexAttribArray(texcoord);
+    }
+
+    private void bindTexture(GLProgram program,int texture) {
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glUniform1i(program.uniformaLocationForname("texture"),0);
+    }
+
+    // 模糊程序按照每一侧的采样次数编译，采样次数作为常量写进着色器，循环次数固定
+    private GLProgram blurProgram(int taps) {
+        while (mBlurPrograms.size() <= taps) {
+            mBlurPrograms.add(null);
+        }
+        GLProgram program = mBlurPrograms.get(taps);
+        if (program == null) {
+            program = new GLProgram(mManager,VERTEX_SHADER,blurFragmentSource(taps));
+            program.setOwner("GLBlur taps " + taps);
+            mBlurPrograms.set(taps,program);
+        }
+        return program;
+    }
+
+    private void endPass(int pass,long start) {
+        if (!mProfiling) {
+            return;
+        }
+        GLES20.glFinish();
+        mPassNanos[pass] += System.nanoTime() - start;
+        mPassCount[pass]++;
+    }
+
+    private void finish(long start) {
+        mQuad.unbind();
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        if (mProfiling) {
+            mTotalNanos = System.nanoTime() - start;
+        }
+    }
+
+    // 最近一次apply()缩小的级数
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    // 最近一次apply()最小一级上每一侧(包括中心)的采样次数，1代表没有模糊
+    public int getTapCount() {
+        return mTapCount;
+    }
+
+    /** 最近一次apply()中某种pass(PASS_XXX)的总耗时，只有开启了profiling才有
+     * */
+    public long getPassNanos(int pass) {
+        return mPassNanos[pass];
+    }
+
+    public int getPassCount(int pass) {
+        return mPassCount[pass];
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    public void dumpTimings() {
+        StringBuilder sb = new StringBuilder("GLBlur sigma ").append(mSigma)
+                .append(" levels ").append(mLevelCount)
+                .append(" taps ").append(mTapCount)
+                .append(" total ").append(mTotalNanos / 1000).append("us");
+        for (int i = 0; i < PASS_NAMES.length; i++) {
+            if (mPassCount[i] > 0) {
+                sb.append("\n  ").append(PASS_NAMES[i]).append(" x").append(mPassCount[i])
+                        .append(' ').append(mPassNanos[i] / 1000).append("us");
+            }
+        }
+        MLog.log(sb.toString());
+    }
+
+    // 释放缓存的fbo和程序
+    public void release() {
+        for (GLFrameBuffer level : mLevels) {
+            level.destroy();
+        }
+        mLevels.clear();
+        if (mTemp != null) {
+            mTemp.destroy();
+            mTemp = null;
+        }
+        if (mCopyProgram != null) {
+            mCopyProgram.destroy();
+            mCopyProgram = null;
+        }
+        for (GLProgram program : mBlurPrograms) {
+            if (program != null) {
+                program.destroy();
+            }
+        }
+        mBlurPrograms.clear();
+    }
+
+    private static final String VERTEX_SHADER = "attribute vec4 position;\n" +
+            " attribute vec4 texcoord;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     gl_Position = position;\n" +
+            "     tex_coord = texcoord.xy;\n" +
+            " }";
+
+    private static final String COPY_FRAGMENT_SHADER = "precision mediump float;\n" +
+            " uniform sampler2D texture;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     gl_FragColor = texture2D(texture,tex_coord);\n" +
+            " }";
+
+    /** taps:每一侧(包括中心)的采样次数；offsets[0]为0，weights[0]为中心的权重
+     * texelStep:一个像素对应的纹理坐标的偏移，水平为(1/w,0)，垂直为(0,1/h)
+     * */
+    static String blurFragmentSource(int taps) {
+        return "precision mediump float;\n" +
+                " #define TAPS " + taps + "\n" +
+                " uniform sampler2D texture;\n" +
+                " uniform highp vec2 texelStep;\n" +
+                " uniform float offsets[TAPS];\n" +
+                " uniform float weights[TAPS];\n" +
+                " \n" +
+                " varying highp vec2 tex_coord;\n" +
+                " \n" +
+                " void main(){\n" +
+                "     vec4 sum = texture2D(texture,tex_coord) * weights[0];\n" +
+                "     for (int i = 1; i < TAPS; i++) {\n" +
+                "         highp vec2 offset = texelStep * offsets[i];\n" +
+                "         sum += texture2D(texture,tex_coord + offset) * weights[i];\n" +
+                "         sum += texture2D(texture,tex_coord - offset) * weights[i];\n" +
+                "     }\n" +
+                "     gl_FragColor = sum;\n" +
+                " }";
+    }
+}
@@ -0,0 +1,519 @@
+package com.media.opengl_es.GLCommon;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/** 录制的gl命令缓冲区，录制时不调用任何gl函数，可以在任意线程中录制，录制完成后交给渲染线程中的GLCommandExecutor统一执行
+ * 1、录制的命令：setTarget() 切换渲染目标，clear() 清屏，bindProgram() 切换着色器程序，uniformXX() 设置uniform变量，bindTexture() 绑定纹理，
+ * vertices() 设置顶点数据，draw() 绘制
+ * 2、录制时把状态命令折叠到当前状态中，每个clear()/setTarget()/draw()记录为一个固定长度的int数组记录(PACKET_SIZE)，draw记录中保存了它执行时
+ * 的完整状态(程序，纹理，顶点数据，uniform集合)；浮点参数放在float数组中，gl对象放在去重后的对象表中，记录中只保存下标
+ * 3、执行前的plan()：clear()/setTarget()/barrier()把命令分成若干段，段内的draw按照 程序->纹理->顶点数据->uniform 排序，状态相同，
+ * 顶点范围相邻的GL_TRIANGLES/GL_LINES/GL_POINTS绘制合并为一次glDrawArrays()
+ * 4、段内重排只适用于互不重叠或者不透明的绘制，有透明混合并且相互重叠的绘制之间要调用barrier()，或者用setReorderEnabled(false)关闭重排
+ * (只合并相邻的绘制)
+ *
+ * 注：录制和执行不能同时进行，一个缓冲区同一时间只能属于一个线程；reset()后可以重新录制，数组会被复用
+ * */
+public class GLCommandBuffer {
+
+    // 最多记录的纹理单元个数
+    public static final int MAX_TEXTURE_UNITS = 4;
+
+    static final int KIND_TARGET = 1;   // ref(GLFrameBuffer，-1代表当前的EGLSurface)，x，y，width，height
+    static final int KIND_CLEAR = 2;    // floatIndex(r,g,b,a)，mask
+    static final int KIND_DRAW = 3;     // 见下面的下标
+
+    // 记录中各个字段的下标
+    static final int P_KIND = 0;
+    static final int P_SEGMENT = 1;
+    static final int P_PROGRAM = 2;
+    static final int P_TEXTURE = 3;     // MAX_TEXTURE_UNITS个
+    static final int P_VERTICES = P_TEXTURE + MAX_TEXTURE_UNITS;
+    static final int P_UNIFORMS = P_VERTICES + 1;
+    static final int P_MODE = P_UNIFORMS + 1;
+    static final int P_FIRST = P_MODE + 1;
+    static final int P_COUNT = P_FIRST + 1;
+    static final int PACKET_SIZE = P_COUNT + 1;
+
+    // 顶点数据描述：ref(GLVertexBuffer)，positionName，texcoordName(-1代表没有)，stride，texcoordOffset
+    static final int VERTICES_SIZE = 5;
+
+    // uniform项：nameRef，type，value(整数值或者float数组下标)，count
+    static final int U_NAME = 0;
+    static final int U_TYPE = 1;
+    static final int U_VALUE = 2;
+    static final int U_COUNT = 3;
+    static final int UNIFORM_SIZE = 4;
+    static final int UNIFORM_INT = 1;
+    static final int UNIFORM_FLOAT = 2;
+    static final int UNIFORM_MATRIX = 3;
+
+    // gl常量，与GLES20中的值相同，录制和排序时不需要依赖android的类
+    static final int GL_POINTS = 0x0000;
+    static final int GL_LINES = 0x0001;
+    static final int GL_TRIANGLES = 0x0004;
+
+    // 每个程序当前的uniform值，setIndex>=0代表已经固定为一个集合并被draw引用，值再变化时要生成新的集合
+    private static class UniformState {
+        int[] entries = new int[UNIFORM_SIZE * 4];
+        int size;
+        int setIndex = -1;
+    }
+
+    private int[] mPackets = new int[PACKET_SIZE * 32];
+    private int mPacketCount;
+    private float[] mFloats = new float[64];
+    private int mFloatCount;
+    private Object[] mRefs = new Object[16];
+    private int mRefCount;
+    private final IdentityHashMap<Object,Integer> mRefIndex = new IdentityHashMap<>();
+    private final HashMap<String,Integer> mNameIndex = new HashMap<>();
+    private int[] mVertices = new int[VERTICES_SIZE * 4];
+    private int mVerticesCount;
+    // uniform集合：mUniformSets中每两个int为一个集合在mUniformPool中的起始位置和长度
+    private int[] mUniformPool = new int[UNIFORM_SIZE * 16];
+    private int mUniformPoolSize;
+    private int[] mUniformSets = new int[2 * 8];
+    private int mUniformSetCount;
+
+    // 录制时的当前状态
+    private final HashMap<Integer,UniformState> mProgramUniforms = new HashMap<>();
+    private int mProgram = -1;
+    private final int[] mTextures = new int[MAX_TEXTURE_UNITS];
+    private int mCurrentVertices = -1;
+    private int mSegment;
+    private boolean mReorder = true;
+
+    // plan()的结果：每一项为 记录下标，first，count
+    private int[] mPlan = new int[3 * 32];
+    private int mPlanSize;
+    private Integer[] mSortBuffer = new Integer[32];
+    private final Comparator<Integer> mComparator = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a,Integer b) {
+            return compareState(a * PACKET_SIZE,b * PACKET_SIZE);
+        }
+    };
+
+    public GLCommandBuffer() {
+        reset();
+    }
+
+    /** 清空录制的命令，所有数组保留复用
+     * */
+    public void reset() {
+        mPacketCount = 0;
+        mFloatCount = 0;
+        Arrays.fill(mRefs,0,mRefCount,null);
+        mRefCount = 0;
+        mRefIndex.clear();
+        mNameIndex.clear();
+        mVerticesCount = 0;
+        mUniformPoolSize = 0;
+        mUniformSetCount = 0;
+        mProgramUniforms.clear();
+        mProgram = -1;
+        Arrays.fill(mTextures,-1);
+        mCurrentVertices = -1;
+        mSegment = 0;
+        mPlanSize = 0;
+    }
+
+    // 是否允许段内重排，关闭后只合并相邻的绘制
+    public void setReorderEnabled(boolean reorder) {
+        mReorder = reorder;
+    }
+
+    /** 切换渲染目标，后续命令都绘制到这个目标上，同时设置视口
+     * frameBuffer:为null代表当前绑定的EGLSurface
+     * */
+    public void setTarget(GLFrameBuffer frameBuffer,int x,int y,int width,int height) {
+        mSegment++;
+        int p = newPacket(KIND_TARGET);
+        mPackets[p + 2] = frameBuffer == null ? -1 : ref(frameBuffer);
+        mPackets[p + 3] = x;
+        mPackets[p + 4] = y;
+        mPackets[p + 5] = width;
+        mPackets[p + 6] = height;
+    }
+
+    // 清屏，mask为GL_COLOR_BUFFER_BIT等的组合
+    public void clear(float r,float g,float b,float a,int mask) {
+        mSegment++;
+        int p = newPacket(KIND_CLEAR);
+        int f = floats(4);
+        mFloats[f] = r;
+        mFloats[f + 1] = g;
+        mFloats[f + 2] = b;
+        mFloats[f + 3] = a;
+        mPackets[p + 2] = f;
+        mPackets[p + 3] = mask;
+    }
+
+    // 前后的绘制不能互相重排，比如相互重叠的透明混合绘制
+    public void barrier() {
+        mSegment++;
+    }
+
+    public void bindProgram(GLProgram program) {
+        bindProgramRef(program);
+    }
+
+    public void bindTexture(int unit,GLTexture texture) {
+        bindTextureRef(unit,texture);
+    }
+
+    public void bindTexture(int unit,GLRawTexture texture) {
+        bindTextureRef(unit,texture);
+    }
+
+    // 把fbo的颜色纹理作为输入
+    public void bindTexture(int unit,GLFrameBuffer frameBuffer) {
+        bindTextureRef(unit,frameBuffer);
+    }
+
+    /** 设置顶点数据，position为两个分量的坐标
+     * texcoordName:纹理坐标的attribute变量名，为null代表没有纹理坐标
+     * stride,texcoordOffset:单位字节，与glVertexAttribPointer()相同
+     * */
+    public void vertices(GLVertexBuffer buffer,String positionName,String texcoordName,int stride,int texcoordOffset) {
+        verticesRef(buffer,positionName,texcoordName,stride,texcoordOffset);
+    }
+
+    public void uniform1i(String name,int value) {
+        setUniform(name,UNIFORM_INT,value,1);
+    }
+
+    // count个分量的float uniform，1~4
+    public void uniformf(String name,float... values) {
+        int f = floats(values.length);
+        System.arraycopy(values,0,mFloats,f,values.length);
+        setUniform(name,UNIFORM_FLOAT,f,values.length);
+    }
+
+    public void uniformMatrix4(String name,float[] matrix) {
+        int f = floats(16);
+        System.arraycopy(matrix,0,mFloats,f,16);
+        setUniform(name,UNIFORM_MATRIX,f,16);
+    }
+
+    /** 用当前的状态绘制，参数与glDrawArrays()相同
+     * */
+    public void draw(int mode,int first,int count) {
+        if (mProgram < 0 || mCurrentVertices < 0) {
+            throw new RuntimeException("draw() without program or vertices");
+        }
+        int p = newPacket(KIND_DRAW);
+        mPackets[p + P_PROGRAM] = mProgram;
+        System.arraycopy(mTextures,0,mPackets,p + P_TEXTURE,MAX_TEXTURE_UNITS);
+        mPackets[p + P_VERTICES] = mCurrentVertices;
+        mPackets[p + P_UNIFORMS] = sealUniforms();
+        mPackets[p + P_MODE] = mode;
+        mPackets[p + P_FIRST] = first;
+        mPackets[p + P_COUNT] = count;
+        if (!mReorder) {
+            mSegment++;
+        }
+    }
+
+    // 录制的记录个数
+    public int getPacketCount() {
+        return mPacketCount;
+    }
+
+    /** 排序合并，生成执行顺序；由GLCommandExecutor在执行前调用，不调用任何gl函数
+     * return:执行的记录个数(合并后的)
+     * */
+    public int plan() {
+        mPlanSize = 0;
+        int start = 0;
+        while (start < mPacketCount) {
+            int seg = mPackets[start * PACKET_SIZE + P_SEGMENT];
+            int end = start + 1;
+            while (end < mPacketCount && mPackets[end * PACKET_SIZE + P_SEGMENT] == seg) {
+                end++;
+            }
+            planSegment(start,end);
+            start = end;
+        }
+        return mPlanSize / 3;
+    }
+
+    // 合并之后绘制记录的个数
+    public int getPlannedDrawCount() {
+        int count = 0;
+        for (int i = 0; i < mPlanSize; i += 3) {
+            if (mPackets[mPlan[i] * PACKET_SIZE + P_KIND] == KIND_DRAW) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // ======== 以下由GLCommandExecutor以及测试使用 ========
+
+    int getPlanSize() {
+        return mPlanSize / 3;
+    }
+
+    // 第i项执行的记录在mPackets中的起始位置
+    int planPacket(int i) {
+        return mPlan[i * 3] * PACKET_SIZE;
+    }
+
+    int planFirst(int i) {
+        return mPlan[i * 3 + 1];
+    }
+
+    int planCount(int i) {
+        return mPlan[i * 3 + 2];
+    }
+
+    int[] packets() {
+        return mPackets;
+    }
+
+    float[] floats() {
+        return mFloats;
+    }
+
+    Object ref(int index) {
+        return mRefs[index];
+    }
+
+    int[] verticesData() {
+        return mVertices;
+    }
+
+    int uniformSetStart(int set) {
+        return mUniformSets[set * 2];
+    }
+
+    int uniformSetSize(int set) {
+        return mUniformSets[set * 2 + 1];
+    }
+
+    int[] uniformPool() {
+        return mUniformPool;
+    }
+
+    // 以下不检查类型，单元测试中可以用普通对象代替gl对象
+    void bindProgramRef(Object program) {
+        mProgram = ref(program);
+        if (!mProgramUniforms.containsKey(mProgram)) {
+            mProgramUniforms.put(mProgram,new UniformState());
+        }
+    }
+
+    void bindTextureRef(int unit,Object texture) {
+        if (unit < 0 || unit >= MAX_TEXTURE_UNITS) {
+            throw new RuntimeException("texture unit " + unit + " out of range");
+        }
+        mTextures[unit] = texture == null ? -1 : ref(texture);
+    }
+
+    void verticesRef(Object buffer,String positionName,String texcoordName,int stride,int texcoordOffset) {
+        int bufferRef = ref(buffer);
+        int position = name(positionName);
+        int texcoord = texcoordName == null ? -1 : name(texcoordName);
+        // 与上一次相同则复用
+        if (mCurrentVertices >= 0) {
+            int v = mCurrentVertices * VERTICES_SIZE;
+            if (mVertices[v] == bufferRef && mVertices[v + 1] == position && mVertices[v + 2] == texcoord
+                    && mVertices[v + 3] == stride && mVertices[v + 4] == texcoordOffset) {
+                return;
+            }
+        }
+        if ((mVerticesCount + 1) * VERTICES_SIZE > mVertices.length) {
+            mVertices = Arrays.copyOf(mVertices,mVertices.length * 2);
+        }
+        int v = mVerticesCount * VERTICES_SIZE;
+        mVertices[v] = bufferRef;
+        mVertices[v + 1] = position;
+        mVertices[v + 2] = texcoord;
+        mVertices[v + 3] = stride;
+        mVertices[v + 4] = texcoordOffset;
+        mCurrentVertices = mVerticesCount++;
+    }
+
+    // ======== 内部实现 ========
+
+    private int newPacket(int kind) {
+        if ((mPacketCount + 1) * PACKET_SIZE > mPackets.length) {
+            mPackets = Arrays.copyOf(mPackets,mPackets.length * 2);
+        }
+        int p = mPacketCount * PACKET_SIZE;
+        Arrays.fill(mPackets,p,p + PACKET_SIZE,0);
+        mPackets[p + P_KIND] = kind;
+        mPackets[p + P_SEGMENT] = mSegment;
+        mPacketCount++;
+        return p;
+    }
+
+    private int floats(int count) {
+        if (mFloatCount + count > mFloats.length) {
+            mFloats = Arrays.copyOf(mFloats,Math.max(mFloats.length * 2,mFloatCount + count));
+        }
+        int f = mFloatCount;
+        mFloatCount += count;
+        return f;
+    }
+
+    private int ref(Object object) {
+        Integer index = mRefIndex.get(object);
+        if (index != null) {
+            return index;
+        }
+        if (mRefCount == mRefs.length) {
+            mRefs = Arrays.copyOf(mRefs,mRefs.length * 2);
+        }
+        mRefs[mRefCount] = object;
+        mRefIndex.put(object,mRefCount);
+        return mRefCount++;
+    }
+
+    // 变量名也放在对象表中，同名共用一个下标
+    private int name(String name) {
+        Integer index = mNameIndex.get(name);
+        if (index == null) {
+            if (mRefCount == mRefs.length) {
+                mRefs = Arrays.copyOf(mRefs,mRefs.length * 2);
+            }
+            mRefs[mRefCount] = name;
+            index = mRefCount++;
+            mNameIndex.put(name,index);
+        }
+        return index;
+    }
+
+    private void setUniform(String name,int type,int value,int count) {
+        if (mProgram < 0) {
+            throw new RuntimeException("uniform " + name + " set without program");
+        }
+        UniformState state = mProgramUniforms.get(mProgram);
+        int nameRef = name(name);
+        int e = 0;
+        while (e < state.size && state.entries[e + U_NAME] != nameRef) {
+            e += UNIFORM_SIZE;
+        }
+        if (e == state.size) {
+            if (state.size + UNIFORM_SIZE > state.entries.length) {
+                state.entries = Arrays.copyOf(state.entries,state.entries.length * 2);
+            }
+            state.size += UNIFORM_SIZE;
+        } else if (sameValue(state.entries,e,type,value,count)) {
+            return;
+        }
+        state.entries[e + U_NAME] = nameRef;
+        state.entries[e + U_TYPE] = type;
+        state.entries[e + U_VALUE] = value;
+        state.entries[e + U_COUNT] = count;
+        // 值变化了，下一次draw要生成新的集合
+        state.setIndex = -1;
+    }
+
+    private boolean sameValue(int[] entries,int e,int type,int value,int count) {
+        if (entries[e + U_TYPE] != type || entries[e + U_COUNT] != count) {
+            return false;
+        }
+        if (type == UNIFORM_INT) {
+            return entries[e + U_VALUE] == value;
+        }
+        int old = entries[e + U_VALUE];
+        for (int i = 0; i < count; i++) {
+            if (Float.floatToIntBits(mFloats[old + i]) != Float.floatToIntBits(mFloats[value + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 当前程序的uniform值固定为一个集合，值没有变化的draw共用一个集合
+    private int sealUniforms() {
+        UniformState state = mProgramUniforms.get(mProgram);
+        if (state.setIndex >= 0) {
+            return state.setIndex;
+        }
+        if (mUniformPoolSize + state.size > mUniformPool.length) {
+            mUniformPool = Arrays.copyOf(mUniformPool,Math.max(mUniformPool.length * 2,mUniformPoolSize + state.size));
+        }
+        if ((mUniformSetCount + 1) * 2 > mUniformSets.length) {
+            mUniformSets = Arrays.copyOf(mUniformSets,mUniformSets.length * 2);
+        }
+        System.arraycopy(state.entries,0,mUniformPool,mUniformPoolSize,state.size);
+        mUniformSets[mUniformSetCount * 2] = mUniformPoolSize;
+        mUniformSets[mUniformSetCount * 2 + 1] = state.size;
+        mUniformPoolSize += state.size;
+        state.setIndex = mUniformSetCount++;
+        return state.setIndex;
+    }
+
+    private void planSegment(int start,int end) {
+        int count = end - start;
+        if (mSortBuffer.length < count) {
+            mSortBuffer = new Integer[Math.max(count,mSortBuffer.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            mSortBuffer[i] = start + i;
+        }
+        // target/clear记录一定是段首，排序时始终排在draw前面
+        if (mReorder && count > 1) {
+            Arrays.sort(mSortBuffer,0,count,mComparator);
+        }
+        for (int i = 0; i < count; i++) {
+            int index = mSortBuffer[i];
+            int p = index * PACKET_SIZE;
+            if (mPlanSize > 0 && canMerge(planPacketAt(mPlanSize - 3),p)) {
+                mPlan[mPlanSize - 1] += mPackets[p + P_COUNT];
+                continue;
+            }
+            if (mPlanSize + 3 > mPlan.length) {
+                mPlan = Arrays.copyOf(mPlan,mPlan.length * 2);
+            }
+            mPlan[mPlanSize] = index;
+            mPlan[mPlanSize + 1] = mPackets[p + P_FIRST];
+            mPlan[mPlanSize + 2] = mPackets[p + P_COUNT];
+            mPlanSize += 3;
+        }
+    }
+
+    private int planPacketAt(int planOffset) {
+        return mPlan[planOffset] * PACKET_SIZE;
+    }
+
+    // 按照状态切换的代价排序：程序 > 纹理 > 顶点数据 > uniform > 图元 > 顶点起始位置
+    private int compareState(int a,int b) {
+        int kindA = mPackets[a + P_KIND];
+        int kindB = mPackets[b + P_KIND];
+        if (kindA != KIND_DRAW || kindB != KIND_DRAW) {
+            // 非draw的记录保持在前面
+            return (kindA == KIND_DRAW ? 1 : 0) - (kindB == KIND_DRAW ? 1 : 0);
+        }
+        for (int i = P_PROGRAM; i <= P_FIRST; i++) {
+            if (mPackets[a + i] != mPackets[b + i]) {
+                return mPackets[a + i] < mPackets[b + i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    // 状态完全相同，顶点范围首尾相接，并且图元之间相互独立(不是strip/fan)才能合并
+    private boolean canMerge(int prev,int next) {
+        if (mPackets[prev + P_KIND] != KIND_DRAW || mPackets[next + P_KIND] != KIND_DRAW) {
+            return false;
+        }
+        int mode = mPackets[next + P_MODE];
+        if (mode != GL_TRIANGLES && mode != GL_LINES && mode != GL_POINTS) {
+            return false;
+        }
+        for (int i = P_PROGRAM; i <= P_MODE; i++) {
+            if (mPackets[prev + i] != mPackets[next + i]) {
+                return false;
+            }
+        }
+        return mPlan[mPlanSize - 2] + mPlan[mPlanSize - 1] == mPackets[next + P_FIRST];
+    }
+}
@@ -0,0 +1,232 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.GLES20;
+
+import java.util.HashMap;
+
+/** GLCommandBuffer的执行器，在渲染线程中按照plan()生成的顺序回放录制的命令
+ * 1、记住上一次设置的程序，纹理，顶点数据，uniform集合，没有变化的状态不会重复设置
+ * 2、attribute/uniform的location按照(程序，变量名)缓存，一次执行中同一个变量只查询一次
+ * 3、统计录制的draw个数，实际的glDrawArrays()次数以及状态切换次数，用于评估排序合并的效果
+ *
+ * 注：所有函数都必须在渲染线程中调用；执行后gl的程序，纹理，顶点属性等状态不会恢复
+ * */
+public class GLCommandExecutor {
+
+    private final HashMap<Object,HashMap<String,Integer>> mLocations = new HashMap<>();
+    // 当前已经设置的状态，值为命令缓冲区中的下标，-1代表未设置
+    private int mProgram;
+    private final int[] mTextures = new int[GLCommandBuffer.MAX_TEXTURE_UNITS];
+    private int mVertices;
+    private int mUniforms;
+    // 上一次打开的顶点属性
+    private final int[] mEnabledAttribs = {-1,-1};
+
+    // 上一次execute()的统计
+    private int mRecordedDraws;
+    private int mIssuedDraws;
+    private int mStateChanges;
+
+    /** 排序合并后执行缓冲区中的所有命令，执行后缓冲区的内容保留，可以再次执行或者reset()后重新录制
+     * */
+    public void execute(GLCommandBuffer buffer) {
+        int size = buffer.plan();
+        mProgram = -1;
+        mVertices = -1;
+        mUniforms = -1;
+        for (int i = 0; i < mTextures.length; i++) {
+            mTextures[i] = -1;
+        }
+        mRecordedDraws = 0;
+        mIssuedDraws = 0;
+        mStateChanges = 0;
+
+        int[] packets = buffer.packets();
+        for (int i = 0; i < buffer.getPacketCount(); i++) {
+            if (packets[i * GLCommandBuffer.PACKET_SIZE + GLCommandBuffer.P_KIND] == GLCommandBuffer.KIND_DRAW) {
+                mRecordedDraws++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            int p = buffer.planPacket(i);
+            switch (packets[p + GLCommandBuffer.P_KIND]) {
+                case GLCommandBuffer.KIND_TARGET:
+                    applyTarget(buffer,p);
+                    break;
+                case GLCommandBuffer.KIND_CLEAR:
+                    float[] floats = buffer.floats();
+                    int f = packets[p + 2];
+                    GLDispatch.glClearColor(floats[f],floats[f + 1],floats[f + 2],floats[f + 3]);
+                    GLDispatch.glClear(packets[p + 3]);
+                    break;
+                case GLCommandBuffer.KIND_DRAW:
+                    applyDrawState(buffer,p);
+                    GLDispatch.glDrawArrays(packets[p + GLCommandBuffer.P_MODE],buffer.planFirst(i),buffer.planCount(i));
+                    mIssuedDraws++;
+                    break;
+            }
+        }
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,0);
+        mLocations.clear();
+    }
+
+    // 录制的draw个数
+    public int getRecordedDrawCount() {
+        return mRecordedDraws;
+    }
+
+    // 实际调用glDrawArrays()的次数
+    public int getIssuedDrawCount() {
+        return mIssuedDraws;
+    }
+
+    // 程序，纹理，顶点数据，uniform集合的切换次数
+    public int getStateChangeCount() {
+        return mStateChanges;
+    }
+
+    private void applyTarget(GLCommandBuffer buffer,int p) {
+        int[] packets = buffer.packets();
+        int ref = packets[p + 2];
+        if (ref < 0) {
+            GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,0);
+        } else {
+            ((GLFrameBuffer)buffer.ref(ref)).activeFrameBuffer();
+        }
+        GLDispatch.glViewport(packets[p + 3],packets[p + 4],packets[p + 5],packets[p + 6]);
+    }
+
+    private void applyDrawState(GLCommandBuffer buffer,int p) {
+        int[] packets = buffer.packets();
+        int program = packets[p + GLCommandBuffer.P_PROGRAM];
+        if (program != mProgram) {
+            ((GLProgram)buffer.ref(program)).useprogram();
+            mProgram = program;
+            // uniform值属于程序对象，程序变化后重新设置
+            mUniforms = -1;
+            mVertices = -1;
+            mStateChanges++;
+        }
+        for (int unit = 0; unit < mTextures.length; unit++) {
+            int texture = packets[p + GLCommandBuffer.P_TEXTURE + unit];
+            if (texture >= 0 && texture != mTextures[unit]) {
+                bindTexture(buffer.ref(texture),unit);
+                mTextures[unit] = texture;
+                mStateChanges++;
+            }
+        }
+        int vertices = packets[p + GLCommandBuffer.P_VERTICES];
+        if (vertices != mVertices) {
+            applyVertices(buffer,vertices);
+            mVertices = vertices;
+            mStateChanges++;
+        }
+        int uniforms = packets[p + GLCommandBuffer.P_UNIFORMS];
+        if (uniforms != mUniforms) {
+            applyUniforms(buffer,uniforms);
+            mUniforms = uniforms;
+            mStateChanges++;
+        }
+    }
+
+    private void bindTexture(Object texture,int unit) {
+        if (texture instanceof GLTexture) {
+            ((GLTexture)texture).bind(unit);
+        } else if (texture instanceof GLRawTexture) {
+            ((GLRawTexture)texture).bind(unit);
+        } else {
+            GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,((GLFrameBuffer)texture).getTexture());
+        }
+    }
+
+    private void applyVertices(GLCommandBuffer buffer,int vertices) {
+        int[] data = buffer.verticesData();
+        int v = vertices * GLCommandBuffer.VERTICES_SIZE;
+        GLProgram program = (GLProgram)buffer.ref(mProgram);
+        GLVertexBuffer vbo = (GLVertexBuffer)buffer.ref(data[v]);
+        int stride = data[v + 3];
+        vbo.bind();
+        int position = attribute(program,(String)buffer.ref(data[v + 1]));
+        if (position >= 0) {
+            GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,stride,0);
+            GLDispatch.glEnableVertexAttribArray(position);
+        }
+        int texcoord = data[v + 2] >= 0 ? attribute(program,(String)buffer.ref(data[v + 2])) : -1;
+        if (texcoord >= 0) {
+            GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,stride,data[v + 4]);
+            GLDispatch.glEnableVertexAttribArray(texcoord);
+        }
+        vbo.unbind();
+        // 关闭上一次打开而这次没有用到的属性，否则会从已经失效的数组中读取
+        for (int attrib : mEnabledAttribs) {
+            if (attrib >= 0 && attrib != position && attrib != texcoord) {
+                GLDispatch.glDisableVertexAttribArray(attrib);
+            }
+        }
+        mEnabledAttribs[0] = position;
+        mEnabledAttribs[1] = texcoord;
+    }
+
+    private void applyUniforms(GLCommandBuffer buffer,int set) {
+        GLProgram program = (GLProgram)buffer.ref(mProgram);
+        int[] pool = buffer.uniformPool();
+        float[] floats = buffer.floats();
+        int start = buffer.uniformSetStart(set);
+        int end = start + buffer.uniformSetSize(set);
+        for (int e = start; e < end; e += GLCommandBuffer.UNIFORM_SIZE) {
+            int location = uniform(program,(String)buffer.ref(pool[e + GLCommandBuffer.U_NAME]));
+            int value = pool[e + GLCommandBuffer.U_VALUE];
+            int count = pool[e + GLCommandBuffer.U_COUNT];
+            switch (pool[e + GLCommandBuffer.U_TYPE]) {
+                case GLCommandBuffer.UNIFORM_INT:
+                    GLDispatch.glUniform1i(location,value);
+                    break;
+                case GLCommandBuffer.UNIFORM_MATRIX:
+                    GLDispatch.glUniformMatrix4fv(location,1,false,floats,value);
+                    break;
+                default:
+                    if (count == 1) {
+                        GLDispatch.glUniform1f(location,floats[value]);
+                    } else if (count == 2) {
+                        GLDispatch.glUniform2f(location,floats[value],floats[value + 1]);
+                    } else if (count == 3) {
+                        GLDispatch.glUniform3f(location,floats[value],floats[value + 1],floats[value + 2]);
+                    } else {
+                        GLDispatch.glUniform4f(location,floats[value],floats[value + 1],floats[value + 2],floats[value + 3]);
+                    }
+                    break;
+            }
+        }
+    }
+
+    // attribute和uniform的名字不会重复，共用一个缓存
+    private int attribute(GLProgram program,String name) {
+        HashMap<String,Integer> locations = locations(program);
+        Integer location = locations.get(name);
+        if (location == null) {
+            location = program.attributeLocationForname(name);
+            locations.put(name,location);
+        }
+        return location;
+    }
+
+    private int uniform(GLProgram program,String name) {
+        HashMap<String,Integer> locations = locations(program);
+        Integer location = locations.get(name);
+        if (location == null) {
+            location = program.uniformaLocationForname(name);
+            locations.put(name,location);
+        }
+        return location;
+    }
+
+    private HashMap<String,Integer> locations(GLProgram program) {
+        HashMap<String,Integer> locations = mLocations.get(program);
+        if (locations == null) {
+            locations = new HashMap<>();
+            mLocations.put(program,locations);
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,125 @@
+package com.media.opengl_es.GLCommon;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/** 单生产者单消费者(SPSC)的无锁命令环形队列，用于UI线程向渲染线程发送渲染命令
+ * 1、每个命令由 what(命令类型) arg(long参数) obj(对象参数) 组成，保存在预先分配的数组中，发送和接收都不分配内存
+ * 2、生产者只写mTail，消费者只写mHead，两边都不加锁；消费者用AtomicLong.lazySet()发布mHead，保证位置对另一方可见之前槽位已经读完；
+ * 生产者用volatile写发布mTail，因为写完之后还要读mWaiter(见offer())
+ * 3、消费者空闲时调用await()挂起(LockSupport.park())，生产者发送命令后只有在消费者确实挂起时才unpark()，没有等待时不会有系统调用
+ * 4、队列满时offer()返回false，不会阻塞生产者
+ *
+ * 注：只能有一个生产者线程和一个消费者线程(比如主线程->渲染线程)
+ * */
+public class GLCommandRing {
+
+    /** 接收命令用的容器，由消费者持有并重复使用
+     * */
+    public static class Command {
+        public int what;
+        public long arg;
+        public Object obj;
+    }
+
+    private final int mMask;
+    private final int[] mWhats;
+    private final long[] mArgs;
+    private final Object[] mObjs;
+    // 下一个要读取的位置，只有消费者写
+    private final AtomicLong mHead = new AtomicLong();
+    // 下一个要写入的位置，只有生产者写
+    private final AtomicLong mTail = new AtomicLong();
+    // 生产者本地缓存的消费者位置，减少对mHead的读取
+    private long mCachedHead;
+    // 挂起的消费者线程，生产者取走后再unpark()，保证每次挂起只唤醒一次
+    private final AtomicReference<Thread> mWaiter = new AtomicReference<>();
+    // 挂起前自旋检查的次数，单核时自旋没有意义(生产者拿不到cpu)，直接挂起
+    private static final int SPIN_COUNT = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+
+    /** capacity:容量，会向上取整为2的幂次方
+     * */
+    public GLCommandRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2,capacity - 1)) << 1;
+        mMask = size - 1;
+        mWhats = new int[size];
+        mArgs = new long[size];
+        mObjs = new Object[size];
+    }
+
+    /** 发送一个命令，只能在生产者线程中调用
+     * return:false代表队列已满
+     * */
+    public boolean offer(int what,long arg,Object obj) {
+        long tail = mTail.get();
+        if (tail - mCachedHead > mMask) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead > mMask) {
+                return false;
+            }
+        }
+        int index = (int)tail & mMask;
+        mWhats[index] = what;
+        mArgs[index] = arg;
+        mObjs[index] = obj;
+        /** 这里必须是volatile写：消费者是先写mWaiter再读mTail，生产者是先写mTail再读mWaiter，两边都是"写后读另一个变量"，
+         * 只有两边都是volatile(全序)才能保证至少有一方看到对方的写入；lazySet()只是release写，后面的读可能被重排到写之前(x86也会)，
+         * 两边都看不到对方时消费者会带着队列中的命令挂起，直到下一个命令到来
+         * 所以这里读到null时，消费者一定还没有设置mWaiter，它设置之后的检查一定能看到这个命令
+         * */
+        mTail.set(tail + 1);
+        if (mWaiter.get() != null) {
+            Thread waiter = mWaiter.getAndSet(null);
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return true;
+    }
+
+    public boolean offer(int what,long arg) {
+        return offer(what,arg,null);
+    }
+
+    /** 取出一个命令，只能在消费者线程中调用
+     * return:false代表队列为空
+     * */
+    public boolean poll(Command out) {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return false;
+        }
+        int index = (int)head & mMask;
+        out.what = mWhats[index];
+        out.arg = mArgs[index];
+        out.obj = mObjs[index];
+        mObjs[index] = null;
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    /** 等待直到队列中有命令，只能在消费者线程中调用；先短暂自旋，仍然没有命令再挂起
+     * */
+    public void await() {
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            if (!isEmpty()) {
+                return;
+            }
+        }
+        Thread current = Thread.currentThread();
+        while (isEmpty()) {
+            mWaiter.set(current);
+            // 设置mWaiter后必须再检查一次，避免生产者在设置之前发送的命令被错过
+            if (!isEmpty()) {
+                break;
+            }
+            LockSupport.park(this);
+        }
+        mWaiter.lazySet(null);
+    }
+}
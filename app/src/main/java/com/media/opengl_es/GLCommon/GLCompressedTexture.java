@@ -0,0 +1,208 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/** 压缩纹理，数据格式为PKM(ETC1或者ETC2)
+ * 1、压缩纹理的数据直接上传给gpu，gpu采样时实时解压，显存占用和上传带宽是ARGB8888的1/8(ETC1/ETC2 RGB，每个像素4bit)或者1/4(ETC2 RGBA，每个像素8bit)
+ * 2、ETC1是OpenGL ES 2.0的扩展(GL_OES_compressed_ETC1_RGB8_texture)，绝大部分设备都支持，不支持时ETC1Util会在cpu中解码成RGB565再上传；
+ * ETC1没有透明通道，只适合不透明的图片
+ * 3、ETC2是OpenGL ES 3.0的标准格式，支持透明通道，只能在3.0的上下文中使用，一般在打包时用etcpack等工具离线生成.pkm文件
+ * 4、压缩数据作为创建参数被记录下来，上下文丢失后下次使用时重新上传
+ * 注：除了load()外，所有函数都必须在GL线程中调用
+ * */
+public class GLCompressedTexture extends GLResource {
+
+    // OpenGL ES 3.0中ETC2的格式，GLES30中的常量，这里直接定义避免依赖GLES30
+    public static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+    public static final int GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2 = 0x9276;
+    public static final int GL_COMPRESSED_RGBA8_ETC2_EAC = 0x9278;
+
+    // PKM文件头的大小
+    private static final int PKM_HEADER_SIZE = 16;
+    // PKM 2.0中的格式类型
+    private static final int PKM_ETC1_RGB = 0;
+    private static final int PKM_ETC2_RGB = 1;
+    private static final int PKM_ETC2_RGBA = 3;
+    private static final int PKM_ETC2_RGBA1 = 4;
+
+    /** 一张压缩纹理的数据
+     * */
+    public static class Data {
+        // 图片的原始大小
+        public final int width;
+        public final int height;
+        // 压缩格式，ETC1.ETC1_RGB8_OES或者GL_COMPRESSED_XXX_ETC2
+        public final int internalFormat;
+        // 压缩后的数据，不含文件头
+        public final ByteBuffer data;
+
+        public Data(int width,int height,int internalFormat,ByteBuffer data) {
+            this.width = width;
+            this.height = height;
+            this.internalFormat = internalFormat;
+            this.data = data;
+        }
+
+        public boolean isETC2() {
+            return internalFormat != ETC1.ETC1_RGB8_OES;
+        }
+    }
+
+    // 当前上下文是否是OpenGL ES 3.0及以上，整个进程只检测一次
+    private static Boolean sGLES3;
+
+    private int texture;
+    private final Data mData;
+
+    public GLCompressedTexture(GLResourceManager manager,Data data) {
+        super(manager,CATEGORY_TEXTURE);
+        mData = data;
+        create();
+    }
+
+    /** 从PKM文件(1.0为ETC1，2.0为ETC1或者ETC2)中读取压缩数据，可以在任意线程调用
+     * 文件头16字节：'PKM ' 版本("10"/"20") 格式(2字节) 对齐到4后的宽高(各2字节) 原始宽高(各2字节)，大端序
+     * return:格式不正确时返回null
+     * */
+    public static Data load(InputStream in) throws IOException {
+        byte[] header = new byte[PKM_HEADER_SIZE];
+        readFully(in,header,PKM_HEADER_SIZE);
+        if (header[0] != 'P' || header[1] != 'K' || header[2] != 'M' || header[3] != ' ') {
+            MLog.log("GLCompressedTexture not a pkm file");
+            return null;
+        }
+        boolean v2 = header[4] == '2';
+        int type = readShort(header,6);
+        int extWidth = readShort(header,8);
+        int extHeight = readShort(header,10);
+        int width = readShort(header,12);
+        int height = readShort(header,14);
+
+        int internalFormat;
+        int blockSize = 8;
+        if (!v2 || type == PKM_ETC1_RGB) {
+            internalFormat = ETC1.ETC1_RGB8_OES;
+        } else if (type == PKM_ETC2_RGB) {
+            internalFormat = GL_COMPRESSED_RGB8_ETC2;
+        } else if (type == PKM_ETC2_RGBA) {
+            internalFormat = GL_COMPRESSED_RGBA8_ETC2_EAC;
+            blockSize = 16;
+        } else if (type == PKM_ETC2_RGBA1) {
+            internalFormat = GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2;
+        } else {
+            MLog.log("GLCompressedTexture unsupported pkm type " + type);
+            return null;
+        }
+
+        int size = (extWidth / 4) * (extHeight / 4) * blockSize;
+        byte[] bytes = new byte[size];
+        readFully(in,bytes,size);
+        ByteBuffer data = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        data.put(bytes).position(0);
+        return new Data(width,height,internalFormat,data);
+    }
+
+    @Override
+    protected void onCreate() {
+        IntBuffer ids = IntBuffer.allocate(1);
+        GLES20.glGenTextures(1,ids);
+        texture = ids.get(0);
+        if (texture == 0) {
+            MLog.log("glGenTextures fail 0");
+        }
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        // 压缩纹理不能用glGenerateMipmap()生成mipmap，只用线性过滤
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+
+        mData.data.position(0);
+        if (!mData.isETC2()) {
+            // 不支持ETC1时ETC1Util内部会解码成RGB565上传
+            ETC1Util.loadTexture(GLES20.GL_TEXTURE_2D,0,0,GLES20.GL_RGB,GLES20.GL_UNSIGNED_SHORT_5_6_5,
+                    new ETC1Util.ETC1Texture(mData.width,mData.height,mData.data));
+        } else if (isETC2Supported()) {
+            GLDispatch.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D,0,mData.internalFormat,mData.width,mData.height,0,
+                    mData.data.capacity(),mData.data);
+        } else {
+            MLog.log("GLCompressedTexture ETC2 requires OpenGL ES 3.0");
+        }
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    // 将纹理绑定到指定的纹理单元 unit:0,1,2...
+    public void bind(int unit) {
+        ensureValid();
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+    }
+
+    // 获取 纹理texture id
+    public int getTexture() {
+        ensureValid();
+        return texture;
+    }
+
+    public int getWidth() {
+        return mData.width;
+    }
+
+    public int getHeight() {
+        return mData.height;
+    }
+
+    @Override
+    public long getByteSize() {
+        return mData.data.capacity();
+    }
+
+    @Override
+    protected void onRelease() {
+        if (texture != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(texture).position(0);
+            GLES20.glDeleteTextures(1,buf);
+            texture = 0;
+        }
+    }
+
+    @Override
+    protected void onContextLost() {
+        texture = 0;
+    }
+
+    // 是否支持ETC2，也就是当前上下文是否为OpenGL ES 3.0及以上，必须在GL线程中调用
+    public static boolean isETC2Supported() {
+        if (sGLES3 == null) {
+            sGLES3 = GLContext.isCurrentGLES3();
+        }
+        return sGLES3;
+    }
+
+    private static int readShort(byte[] b,int offset) {
+        return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+    }
+
+    private static void readFully(InputStream in,byte[] b,int size) throws IOException {
+        int read = 0;
+        while (read < size) {
+            int n = in.read(b,read,size - read);
+            if (n < 0) {
+                throw new IOException("unexpected end of pkm");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.media.opengl_es.GLCommon;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.ETC1;
+import android.opengl.ETC1Util;
+
+import com.media.opengl_es.utils.MLog;
+import com.media.opengl_es.utils.PathTool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** 压缩纹理的转码缓存
+ * 1、打包时已经转码好的资源(assets下的.pkm文件，可以用Android SDK中的etc1tool或者etcpack生成，ETC2只能离线生成)直接读取
+ * 2、普通图片(jpg/png)第一次使用时在cpu中转码为ETC1，结果以PKM格式保存在应用的缓存目录中，文件名为原始文件内容的SHA-1，
+ * 之后直接读取缓存，图片内容变化后SHA-1也会变化，不会读到旧的缓存
+ * 3、ETC1没有透明通道，带透明通道的图片返回null，调用者应该使用普通的GLTexture
+ *
+ * 注：转码比较耗时(一张1080p的图片几百毫秒)，这里的函数都不涉及gl操作，应该在子线程中调用，得到的Data再交给GL线程创建GLCompressedTexture；
+ * 可以在应用第一次启动时用transcodeAssets()在后台把大的静态资源提前转码好
+ * */
+public class GLCompressedTextureCache {
+
+    private static final String CACHE_DIR = "etc1";
+    private static final String PKM_SUFFIX = ".pkm";
+
+    private final Context mContext;
+    private final File mDir;
+
+    public GLCompressedTextureCache(Context context) {
+        mContext = context.getApplicationContext();
+        mDir = new File(mContext.getCacheDir(),CACHE_DIR);
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            MLog.log("GLCompressedTextureCache mkdirs fail " + mDir);
+        }
+    }
+
+    /** 加载assets下的图片
+     * return:压缩数据，图片带透明通道或者解码失败返回null
+     * */
+    public GLCompressedTexture.Data loadAsset(String assetName) {
+        InputStream in = PathTool.getInputStream(mContext,assetName);
+        if (in == null) {
+            return null;
+        }
+        try {
+            if (assetName.endsWith(PKM_SUFFIX)) {
+                return GLCompressedTexture.load(new BufferedInputStream(in));
+            }
+            return loadEncoded(readAll(in));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /** 加载编码后的图片数据(jpg/png等)，有缓存则直接读取缓存，否则转码并写入缓存
+     * */
+    public GLCompressedTexture.Data loadEncoded(byte[] encoded) {
+        File file = new File(mDir,sha1(encoded) + PKM_SUFFIX);
+        if (file.exists()) {
+            GLCompressedTexture.Data data = readCache(file);
+            if (data != null) {
+                return data;
+            }
+            // 缓存损坏，删除后重新转码
+            file.delete();
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(encoded,0,encoded.length);
+        if (bitmap == null) {
+            MLog.log("GLCompressedTextureCache decode fail");
+            return null;
+        }
+        if (bitmap.hasAlpha()) {
+            bitmap.recycle();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        ETC1Util.ETC1Texture etc1 = compress(bitmap);
+        bitmap.recycle();
+        MLog.log("GLCompressedTextureCache transcode " + etc1.getWidth() + "x" + etc1.getHeight()
+                + " " + (System.nanoTime() - start) / 1000000 + "ms");
+        writeCache(file,etc1);
+        return new GLCompressedTexture.Data(etc1.getWidth(),etc1.getHeight(),ETC1.ETC1_RGB8_OES,etc1.getData());
+    }
+
+    /** 提前转码assets下的图片，已经有缓存的会跳过，在子线程中调用
+     * */
+    public void transcodeAssets(String... assetNames) {
+        for (String name : assetNames) {
+            loadAsset(name);
+        }
+    }
+
+    // 删除所有缓存
+    public void clear() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /** ETC1Util只接受RGB565或者RGB888的数据，这里先转换为RGB565
+     * */
+    private static ETC1Util.ETC1Texture compress(Bitmap bitmap) {
+        Bitmap rgb = bitmap.getConfig() == Bitmap.Config.RGB_565 ? bitmap : bitmap.copy(Bitmap.Config.RGB_565,false);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(rgb.getRowBytes() * rgb.getHeight()).order(ByteOrder.nativeOrder());
+        rgb.copyPixelsToBuffer(pixels);
+        pixels.position(0);
+        ETC1Util.ETC1Texture etc1 = ETC1Util.compressTexture(pixels,rgb.getWidth(),rgb.getHeight(),2,rgb.getRowBytes());
+        if (rgb != bitmap) {
+            rgb.recycle();
+        }
+        return etc1;
+    }
+
+    private static GLCompressedTexture.Data readCache(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return GLCompressedTexture.load(in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    // 先写到临时文件再重命名，避免进程被杀时留下不完整的缓存
+    private static void writeCache(File file,ETC1Util.ETC1Texture etc1) {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            ETC1Util.writeTexture(etc1,out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                MLog.log("GLCompressedTextureCache rename fail " + file);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+        etc1.getData().position(0);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer,0,n);
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf,16)).append(Character.forDigit(b & 0xf,16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
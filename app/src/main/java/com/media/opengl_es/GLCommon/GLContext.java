@@ -7,6 +7,7 @@ import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
 import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
+import android.opengl.GLES20;
 import android.util.Log;
 import android.view.Surface;
 
@@ -24,6 +25,8 @@ public class GLContext {
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLConfig mEGLConfig;
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
+    // 上下文是否已经丢失(比如设备在后台时被系统回收)
+    private boolean mContextLost;
 
     /**
      * Constructor flag: surface must be recordable.  This discourages EGL from using a
@@ -32,14 +35,30 @@ public class GLContext {
      */
     public static final int FLAG_RECORDABLE = 0x01;
 
+    /** 只用于离屏渲染(pbuffer)的上下文，比如后台加载纹理的线程
+     * */
+    public static final int FLAG_OFFSCREEN = 0x02;
+
+    /** 同时支持window surface和pbuffer的上下文，比如GLRenderEngine：没有任何窗口时用一个1x1的pbuffer保持上下文为当前状态，
+     * 同时还要能给各个视图创建window surface
+     * */
+    public static final int FLAG_WINDOW_AND_PBUFFER = 0x04;
+
     // Android-specific extension.
     private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
 
     public GLContext() {
+        this(null,0);
+    }
+
+    /** sharedContext:与之共享纹理，缓冲区，着色器程序等gl对象的上下文，为null则不共享
+     * flags:FLAG_RECORDABLE，FLAG_OFFSCREEN，FLAG_WINDOW_AND_PBUFFER
+     * */
+    public GLContext(GLContext sharedContext,int flags) {
         initEGLDisplay();
-        initEGLConfig();
-        initEGLContext();
+        initEGLConfig(flags);
+        initEGLContext(sharedContext != null ? sharedContext.mEGLContext : EGL14.EGL_NO_CONTEXT);
     }
 
 
@@ -70,14 +89,33 @@ public class GLContext {
             EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
             EGL14.EGL_NONE,
     };
-    private void initEGLConfig() {
+    private void initEGLConfig(int flags) {
         // 所有符合配置的 EGLConfig 个数
         int[] numConfigs = new int[1];
         // 所有符合配置的 EGLConfig
         EGLConfig[] configs = new EGLConfig[1];
 
         // 会获取所有满足 EGL_CONFIG 的 config，然后取第一个
-        EGL14.eglChooseConfig(mEGLDisplay, EGL_CONFIG, 0, configs, 0, configs.length, numConfigs, 0);
+        int[] attribs = EGL_CONFIG;
+        if ((flags & (FLAG_RECORDABLE | FLAG_OFFSCREEN | FLAG_WINDOW_AND_PBUFFER)) != 0) {
+            // 在EGL_NONE之前追加属性
+            attribs = new int[EGL_CONFIG.length + 4];
+            System.arraycopy(EGL_CONFIG,0,attribs,0,EGL_CONFIG.length - 1);
+            int i = EGL_CONFIG.length - 1;
+            if ((flags & FLAG_RECORDABLE) != 0) {
+                attribs[i++] = EGL_RECORDABLE_ANDROID;
+                attribs[i++] = 1;
+            }
+            if ((flags & FLAG_OFFSCREEN) != 0) {
+                attribs[i++] = EGL14.EGL_SURFACE_TYPE;
+                attribs[i++] = EGL14.EGL_PBUFFER_BIT;
+            } else if ((flags & FLAG_WINDOW_AND_PBUFFER) != 0) {
+                attribs[i++] = EGL14.EGL_SURFACE_TYPE;
+                attribs[i++] = EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT;
+            }
+            attribs[i] = EGL14.EGL_NONE;
+        }
+        EGL14.eglChooseConfig(mEGLDisplay, attribs, 0, configs, 0, configs.length, numConfigs, 0);
         mEGLConfig = configs[0];
     }
 
@@ -86,9 +124,9 @@ public class GLContext {
             EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
             EGL14.EGL_NONE,
     };
-    private void initEGLContext() {
-        // 创建上下文
-        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, mEGLConfig, EGL14.EGL_NO_CONTEXT, EGLCONTEXT_ATTRIBUTE, 0);
+    private void initEGLContext(EGLContext sharedContext) {
+        // 创建上下文，sharedContext不为EGL_NO_CONTEXT时两个上下文属于同一个共享组，gl对象的id在两个上下文中通用
+        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, mEGLConfig, sharedContext, EGLCONTEXT_ATTRIBUTE, 0);
         if (mEGLContext == EGL14.EGL_NO_CONTEXT) {
             MLog.log("eglCreateContext fail");
         }
@@ -187,7 +225,41 @@ public class GLContext {
      * @return false on failure
      */
     public boolean swapBuffers(EGLSurface eglSurface) {
-        return EGL14.eglSwapBuffers(mEGLDisplay, eglSurface);
+        boolean result = EGL14.eglSwapBuffers(mEGLDisplay, eglSurface);
+        if (!result && EGL14.eglGetError() == EGL14.EGL_CONTEXT_LOST) {
+            MLog.log("eglSwapBuffers EGL_CONTEXT_LOST");
+            mContextLost = true;
+        }
+        return result;
+    }
+
+    /** 当前线程的上下文是否是OpenGL ES 3.0及以上(申请的是2.0，但是大部分设备实际会返回兼容的3.x上下文)，必须在GL线程中调用
+     * */
+    public static boolean isCurrentGLES3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        // 格式为 "OpenGL ES 3.2 xxx"
+        return version != null && version.startsWith("OpenGL ES ") && version.length() > 10 && version.charAt(10) >= '3';
+    }
+
+    /** 上下文是否已经丢失，丢失后上下文中所有的gl对象都不存在了，需要release()后重新创建GLContext
+     * */
+    public boolean isContextLost() {
+        return mContextLost;
+    }
+
+    /** 释放上下文，必须在使用该上下文的线程中调用，调用前要先释放所有的EGLSurface
+     * 注：这里不调用eglTerminate()，因为EGLDisplay在进程内是共享的，terminate会影响其它上下文(比如GLSurfaceView的)
+     */
+    public void release() {
+        if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+            EGL14.eglReleaseThread();
+        }
+        mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+        mEGLContext = EGL14.EGL_NO_CONTEXT;
+        mEGLConfig = null;
     }
 
     // Sends the presentation time stamp to EGL.  Time is expressed in nanoseconds.
@@ -0,0 +1,484 @@
+package com.media.opengl_es.GLCommon;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** GLFilter的cpu后端，用于没有可用gpu(无EGL的后台进程，测试环境)时的降级处理，结果与着色器的实现一致
+ * 1、输入输出都是int数组表示的ARGB像素(Bitmap.getPixels()/setPixels()的格式，非预乘)，按行存储
+ * 2、按行分带并行：图片按行切成parallelism*4个带，提交到ForkJoinPool中并行处理；可分离的模糊先整体做完水平方向，再做垂直方向
+ * 3、不分配内存：中间结果(模糊的水平结果，每个带的累加数组，缩放的坐标表，高斯模糊的权重)和ForkJoin任务都在第一次使用时创建，
+ * 之后复用，只有图片变大或者模糊参数改变时才重新分配
+ * 4、颜色矩阵没有通道之间的交叉项时(比如亮度对比度)转换为每个通道一张256项的查找表
+ *
+ * 注：同一个实例不能同时在多个线程中调用apply()；模糊和缩放时src和dst不能是同一个数组
+ * */
+public class GLCpuFilterBackend {
+
+    // 每个带最少的行数，太小的图片不拆分
+    private static final int MIN_BAND_ROWS = 16;
+
+    private static final int PASS_MATRIX = 1;
+    private static final int PASS_LUT = 2;
+    private static final int PASS_BOX_H = 3;
+    private static final int PASS_BOX_V = 4;
+    private static final int PASS_GAUSSIAN_H = 5;
+    private static final int PASS_GAUSSIAN_V = 6;
+    private static final int PASS_RESIZE = 7;
+
+    // 一个行带，可以反复执行
+    private class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+        int y0;
+        int y1;
+
+        Band(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            runBand(index,y0,y1);
+        }
+    }
+
+    private class Root extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            // invokeAll(数组)不会分配内存，数组中所有的带都会执行，用不到的带是空的，直接返回
+            invokeAll(mBands);
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final Band[] mBands;
+    private final Root mRoot = new Root();
+
+    // 当前处理的参数，在调用线程中设置后交给各个带
+    private int mPass;
+    private int[] mSrc;
+    private int[] mDst;
+    private int mWidth;
+    private int mHeight;
+    private int mDstWidth;
+    private int mDstHeight;
+    private float[] mMatrix;
+    private int mRadius;
+
+    // 复用的中间结果
+    private int[] mTemp = new int[0];
+    private int[] mBandScratch = new int[0];
+    private final int[] mLut = new int[256 * 4];
+    private int[] mKernel = new int[0];
+    // mKernel对应的高斯模糊参数，参数不变时不重新计算权重
+    private float mKernelSigma = Float.NaN;
+    private int mKernelRadius = -1;
+    private int[] mResizeX = new int[0];
+
+    // 使用公共的ForkJoinPool
+    public GLCpuFilterBackend() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public GLCpuFilterBackend(ForkJoinPool pool) {
+        mPool = pool;
+        mBands = new Band[Math.max(1,pool.getParallelism() * 4)];
+        for (int i = 0; i < mBands.length; i++) {
+            mBands[i] = new Band(i);
+        }
+    }
+
+    /** 处理一张图片
+     * src:输入像素，width*height
+     * dst:输出像素，大小至少为filter.outputWidth(width)*filter.outputHeight(height)；颜色矩阵和查找表可以与src相同
+     * */
+    public void apply(GLFilter filter,int[] src,int width,int height,int[] dst) {
+        int outWidth = filter.outputWidth(width);
+        int outHeight = filter.outputHeight(height);
+        if (src.length < width * height || dst.length < outWidth * outHeight) {
+            throw new RuntimeException("pixel buffer too small");
+        }
+        mSrc = src;
+        mDst = dst;
+        mWidth = width;
+        mHeight = height;
+        mDstWidth = outWidth;
+        mDstHeight = outHeight;
+        switch (filter.type) {
+            case GLFilter.TYPE_COLOR_MATRIX:
+            case GLFilter.TYPE_BRIGHTNESS_CONTRAST:
+                if (buildMatrixLut(filter.matrix)) {
+                    run(PASS_LUT,height);
+                } else {
+                    mMatrix = filter.matrix;
+                    run(PASS_MATRIX,height);
+                }
+                break;
+            case GLFilter.TYPE_LUT:
+                System.arraycopy(filter.lut,0,mLut,0,256 * 3);
+                for (int i = 0; i < 256; i++) {
+                    mLut[256 * 3 + i] = i;
+                }
+                run(PASS_LUT,height);
+                break;
+            case GLFilter.TYPE_BOX_BLUR:
+            case GLFilter.TYPE_GAUSSIAN_BLUR:
+                blur(filter);
+                break;
+            case GLFilter.TYPE_RESIZE:
+                buildResizeTable();
+                run(PASS_RESIZE,outHeight);
+                break;
+        }
+        mSrc = null;
+        mDst = null;
+        mMatrix = null;
+    }
+
+    // ======== 调度 ========
+
+    private void run(int pass,int rows) {
+        mPass = pass;
+        int count = Math.max(1,Math.min(mBands.length,rows / MIN_BAND_ROWS));
+        int step = (rows + count - 1) / count;
+        if (count == 1) {
+            runBand(0,0,rows);
+            return;
+        }
+        for (int i = 0; i < mBands.length; i++) {
+            Band band = mBands[i];
+            band.y0 = i < count ? Math.min(rows,i * step) : 0;
+            band.y1 = i < count ? Math.min(rows,(i + 1) * step) : 0;
+            band.reinitialize();
+        }
+        mRoot.reinitialize();
+        mPool.invoke(mRoot);
+    }
+
+    private void runBand(int index,int y0,int y1) {
+        if (y0 >= y1) {
+            return;
+        }
+        switch (mPass) {
+            case PASS_MATRIX:
+                matrixRows(y0,y1);
+                break;
+            case PASS_LUT:
+                lutRows(y0,y1);
+                break;
+            case PASS_BOX_H:
+                boxRows(y0,y1);
+                break;
+            case PASS_BOX_V:
+                boxColumns(index,y0,y1);
+                break;
+            case PASS_GAUSSIAN_H:
+                gaussianRows(index,y0,y1);
+                break;
+            case PASS_GAUSSIAN_V:
+                gaussianColumns(index,y0,y1);
+                break;
+            case PASS_RESIZE:
+                resizeRows(y0,y1);
+                break;
+        }
+    }
+
+    // ======== 颜色 ========
+
+    // 没有交叉项的颜色矩阵转换为每个通道的查找表，mLut依次为R，G，B，A
+    private boolean buildMatrixLut(float[] m) {
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                if (row != col && m[row * 5 + col] != 0) {
+                    return false;
+                }
+            }
+        }
+        for (int c = 0; c < 4; c++) {
+            float scale = m[c * 5 + c];
+            float offset = m[c * 5 + 4];
+            for (int i = 0; i < 256; i++) {
+                mLut[c * 256 + i] = clamp(Math.round(scale * i + offset));
+            }
+        }
+        return true;
+    }
+
+    private void lutRows(int y0,int y1) {
+        int[] src = mSrc;
+        int[] dst = mDst;
+        int[] lut = mLut;
+        for (int i = y0 * mWidth, end = y1 * mWidth; i < end; i++) {
+            int p = src[i];
+            dst[i] = (lut[768 + (p >>> 24)] << 24) | (lut[(p >> 16) & 0xff] << 16)
+                    | (lut[256 + ((p >> 8) & 0xff)] << 8) | lut[512 + (p & 0xff)];
+        }
+    }
+
+    private void matrixRows(int y0,int y1) {
+        int[] src = mSrc;
+        int[] dst = mDst;
+        float[] m = mMatrix;
+        for (int i = y0 * mWidth, end = y1 * mWidth; i < end; i++) {
+            int p = src[i];
+            float a = p >>> 24;
+            float r = (p >> 16) & 0xff;
+            float g = (p >> 8) & 0xff;
+            float b = p & 0xff;
+            // 负数截断后也会被限制为0，不需要Math.round()
+            int nr = clamp((int)(m[0] * r + m[1] * g + m[2] * b + m[3] * a + m[4] + 0.5f));
+            int ng = clamp((int)(m[5] * r + m[6] * g + m[7] * b + m[8] * a + m[9] + 0.5f));
+            int nb = clamp((int)(m[10] * r + m[11] * g + m[12] * b + m[13] * a + m[14] + 0.5f));
+            int na = clamp((int)(m[15] * r + m[16] * g + m[17] * b + m[18] * a + m[19] + 0.5f));
+            dst[i] = (na << 24) | (nr << 16) | (ng << 8) | nb;
+        }
+    }
+
+    // ======== 模糊 ========
+
+    private void blur(GLFilter filter) {
+        int size = mWidth * mHeight;
+        if (filter.radius == 0) {
+            System.arraycopy(mSrc,0,mDst,0,size);
+            return;
+        }
+        if (mTemp.length < size) {
+            mTemp = new int[size];
+        }
+        mRadius = filter.radius;
+        if (mBandScratch.length < mBands.length * bandScratchSize()) {
+            mBandScratch = new int[mBands.length * bandScratchSize()];
+        }
+        int[] dst = mDst;
+        if (filter.type == GLFilter.TYPE_BOX_BLUR) {
+            mDst = mTemp;
+            run(PASS_BOX_H,mHeight);
+            mSrc = mTemp;
+            mDst = dst;
+            run(PASS_BOX_V,mHeight);
+        } else {
+            if (filter.sigma != mKernelSigma || filter.radius != mKernelRadius) {
+                buildKernel(filter.gaussianWeights());
+                mKernelSigma = filter.sigma;
+                mKernelRadius = filter.radius;
+            }
+            mDst = mTemp;
+            run(PASS_GAUSSIAN_H,mHeight);
+            mSrc = mTemp;
+            mDst = dst;
+            run(PASS_GAUSSIAN_V,mHeight);
+        }
+    }
+
+    // 每个带的临时数组：垂直方向每个像素4个通道的累加和，或者水平方向扩展后的一行
+    private int bandScratchSize() {
+        return Math.max(mWidth * 4,mWidth + mRadius * 2);
+    }
+
+    // 定点数权重，和为65536，舍入误差加到中心
+    private void buildKernel(float[] weights) {
+        if (mKernel.length < weights.length) {
+            mKernel = new int[weights.length];
+        }
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            mKernel[i] = Math.round(weights[i] * 65536);
+            sum += mKernel[i];
+        }
+        mKernel[weights.length / 2] += 65536 - sum;
+    }
+
+    // 水平方向滑动窗口，每个像素O(1)
+    private void boxRows(int y0,int y1) {
+        int w = mWidth;
+        int r = mRadius;
+        int n = r * 2 + 1;
+        int half = n / 2;
+        int[] src = mSrc;
+        int[] dst = mDst;
+        for (int y = y0; y < y1; y++) {
+            int row = y * w;
+            int sa = 0,sr = 0,sg = 0,sb = 0;
+            for (int i = -r; i <= r; i++) {
+                int p = src[row + clampIndex(i,w)];
+                sa += p >>> 24;
+                sr += (p >> 16) & 0xff;
+                sg += (p >> 8) & 0xff;
+                sb += p & 0xff;
+            }
+            for (int x = 0; x < w; x++) {
+                dst[row + x] = (((sa + half) / n) << 24) | (((sr + half) / n) << 16)
+                        | (((sg + half) / n) << 8) | ((sb + half) / n);
+                int in = src[row + clampIndex(x + r + 1,w)];
+                int out = src[row + clampIndex(x - r,w)];
+                sa += (in >>> 24) - (out >>> 24);
+                sr += ((in >> 16) & 0xff) - ((out >> 16) & 0xff);
+                sg += ((in >> 8) & 0xff) - ((out >> 8) & 0xff);
+                sb += (in & 0xff) - (out & 0xff);
+            }
+        }
+    }
+
+    // 垂直方向：每个带用一行累加和(每个像素4个通道)向下滑动
+    private void boxColumns(int index,int y0,int y1) {
+        int w = mWidth;
+        int h = mHeight;
+        int r = mRadius;
+        int n = r * 2 + 1;
+        int half = n / 2;
+        int[] src = mSrc;
+        int[] dst = mDst;
+        int[] sums = mBandScratch;
+        int base = index * bandScratchSize();
+        Arrays.fill(sums,base,base + w * 4,0);
+        for (int k = -r; k <= r; k++) {
+            addRow(sums,base,src,clampIndex(y0 + k,h) * w,w,1);
+        }
+        for (int y = y0; y < y1; y++) {
+            int row = y * w;
+            for (int x = 0, s = base; x < w; x++, s += 4) {
+                dst[row + x] = (((sums[s] + half) / n) << 24) | (((sums[s + 1] + half) / n) << 16)
+                        | (((sums[s + 2] + half) / n) << 8) | ((sums[s + 3] + half) / n);
+            }
+            if (y + 1 < y1) {
+                addRow(sums,base,src,clampIndex(y + r + 1,h) * w,w,1);
+                addRow(sums,base,src,clampIndex(y - r,h) * w,w,-1);
+            }
+        }
+    }
+
+    private static void addRow(int[] sums,int base,int[] src,int row,int w,int sign) {
+        for (int x = 0, s = base; x < w; x++, s += 4) {
+            int p = src[row + x];
+            sums[s] += sign * (p >>> 24);
+            sums[s + 1] += sign * ((p >> 16) & 0xff);
+            sums[s + 2] += sign * ((p >> 8) & 0xff);
+            sums[s + 3] += sign * (p & 0xff);
+        }
+    }
+
+    // 每一行先复制到两边按边缘像素扩展了radius的行缓冲中，卷积的内层循环不需要限制下标
+    private void gaussianRows(int index,int y0,int y1) {
+        int w = mWidth;
+        int r = mRadius;
+        int[] src = mSrc;
+        int[] dst = mDst;
+        int[] kernel = mKernel;
+        int[] line = mBandScratch;
+        int base = index * bandScratchSize();
+        for (int y = y0; y < y1; y++) {
+            int row = y * w;
+            Arrays.fill(line,base,base + r,src[row]);
+            System.arraycopy(src,row,line,base + r,w);
+            Arrays.fill(line,base + r + w,base + r + w + r,src[row + w - 1]);
+            for (int x = 0; x < w; x++) {
+                int sa = 32768,sr = 32768,sg = 32768,sb = 32768;
+                for (int k = 0, i = base + x; k <= 2 * r; k++, i++) {
+                    int p = line[i];
+                    int weight = kernel[k];
+                    sa += weight * (p >>> 24);
+                    sr += weight * ((p >> 16) & 0xff);
+                    sg += weight * ((p >> 8) & 0xff);
+                    sb += weight * (p & 0xff);
+                }
+                dst[row + x] = ((sa >>> 16) << 24) | ((sr >>> 16) << 16) | ((sg >>> 16) << 8) | (sb >>> 16);
+            }
+        }
+    }
+
+    // 垂直方向按行累加，访问内存是连续的
+    private void gaussianColumns(int index,int y0,int y1) {
+        int w = mWidth;
+        int h = mHeight;
+        int r = mRadius;
+        int[] src = mSrc;
+        int[] dst = mDst;
+        int[] kernel = mKernel;
+        int[] acc = mBandScratch;
+        int base = index * bandScratchSize();
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(acc,base,base + w * 4,32768);
+            for (int k = -r; k <= r; k++) {
+                int row = clampIndex(y + k,h) * w;
+                int weight = kernel[k + r];
+                for (int x = 0, s = base; x < w; x++, s += 4) {
+                    int p = src[row + x];
+                    acc[s] += weight * (p >>> 24);
+                    acc[s + 1] += weight * ((p >> 16) & 0xff);
+                    acc[s + 2] += weight * ((p >> 8) & 0xff);
+                    acc[s + 3] += weight * (p & 0xff);
+                }
+            }
+            int row = y * w;
+            for (int x = 0, s = base; x < w; x++, s += 4) {
+                dst[row + x] = ((acc[s] >>> 16) << 24) | ((acc[s + 1] >>> 16) << 16)
+                        | ((acc[s + 2] >>> 16) << 8) | (acc[s + 3] >>> 16);
+            }
+        }
+    }
+
+    // ======== 缩放 ========
+
+    // 每个输出列对应的两个输入列以及8位定点的插值系数：mResizeX[3*x]=x0，[3*x+1]=x1，[3*x+2]=fx
+    private void buildResizeTable() {
+        if (mResizeX.length < mDstWidth * 3) {
+            mResizeX = new int[mDstWidth * 3];
+        }
+        float scale = (float)mWidth / mDstWidth;
+        for (int x = 0; x < mDstWidth; x++) {
+            float sx = (x + 0.5f) * scale - 0.5f;
+            int x0 = (int)Math.floor(sx);
+            int fx = Math.round((sx - x0) * 256);
+            mResizeX[x * 3] = clampIndex(x0,mWidth);
+            mResizeX[x * 3 + 1] = clampIndex(x0 + 1,mWidth);
+            mResizeX[x * 3 + 2] = fx;
+        }
+    }
+
+    private void resizeRows(int y0,int y1) {
+        int[] src = mSrc;
+        int[] dst = mDst;
+        int[] table = mResizeX;
+        float scale = (float)mHeight / mDstHeight;
+        for (int y = y0; y < y1; y++) {
+            float sy = (y + 0.5f) * scale - 0.5f;
+            int iy = (int)Math.floor(sy);
+            int fy = Math.round((sy - iy) * 256);
+            int row0 = clampIndex(iy,mHeight) * mWidth;
+            int row1 = clampIndex(iy + 1,mHeight) * mWidth;
+            int out = y * mDstWidth;
+            for (int x = 0, t = 0; x < mDstWidth; x++, t += 3) {
+                int fx = table[t + 2];
+                int top = lerp(src[row0 + table[t]],src[row0 + table[t + 1]],fx);
+                int bottom = lerp(src[row1 + table[t]],src[row1 + table[t + 1]],fx);
+                dst[out + x] = lerp(top,bottom,fy);
+            }
+        }
+    }
+
+    // 两个像素按照f/256插值，4个通道
+    private static int lerp(int p0,int p1,int f) {
+        if (f == 0) {
+            return p0;
+        }
+        int g = 256 - f;
+        int a = ((p0 >>> 24) * g + (p1 >>> 24) * f + 128) >> 8;
+        int r = (((p0 >> 16) & 0xff) * g + ((p1 >> 16) & 0xff) * f + 128) >> 8;
+        int gr = (((p0 >> 8) & 0xff) * g + ((p1 >> 8) & 0xff) * f + 128) >> 8;
+        int b = ((p0 & 0xff) * g + (p1 & 0xff) * f + 128) >> 8;
+        return (a << 24) | (r << 16) | (gr << 8) | b;
+    }
+
+    private static int clampIndex(int i,int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
@@ -0,0 +1,530 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** 基于BitmapRegionDecoder的多分辨率缩放/平移查看器，用于高分辨率照片的深度缩放
+ * 1、金字塔：第level层的采样率为2^level，每块覆盖原图tileSize*2^level的区域，解码后约为tileSize大小；根据当前的缩放比例选择
+ * 采样率不超过"屏幕像素/图片像素"倒数的最粗一层，屏幕上每个像素至少对应一个纹理像素，又不会解码多余的细节
+ * 2、最粗的一层(整张图缩小到一块以内)总是驻留，作为底图；更细的块还没有准备好时，显示的是底图的放大，不会出现空白
+ * 3、可见的块在后台线程池中解码，离视口中心越近优先级越高；视口移动后不再可见的解码请求会被取消(还没开始的直接从队列中移除，已经开始的
+ * 解码完成后丢弃)
+ * 4、解码好的块在GL线程中上传，每帧上传的时间有预算；纹理放入LRU缓存，超过缓存大小时删除最久没有使用的块；解码失败的块按照
+ * 越来越长的间隔重试，超过MAX_DECODE_RETRIES次后不再请求，不会让draw()一直返回有块未准备好
+ * 5、缩放和平移只改变顶点着色器中的矩阵uniform，块的顶点坐标是图片坐标，纹理不需要重新上传
+ *
+ * 使用流程：
+ * 任意线程：decoder = BitmapRegionDecoder.newInstance(path,false);
+ * GL线程：image = new GLDeepZoomImage(manager,decoder,listener); 每帧 image.draw(viewWidth,viewHeight,scale,offsetX,offsetY);
+ * 坐标：屏幕像素 = 图片像素 * scale + offset，屏幕以左上角为原点
+ * 注：除了构造函数中传入的listener在解码线程中回调外，所有函数都必须在GL线程中调用
+ * */
+public class GLDeepZoomImage extends GLResource {
+
+    /** 有新的块解码完成，执行于解码线程，一般在这里请求重新渲染
+     * */
+    public interface OnTileReadyListener {
+        void onTileReady();
+    }
+
+    private static final int TILE_SIZE = 512;
+    // 默认的纹理缓存大小
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    // 解码失败后第n次重试前等待 RETRY_FRAMES << n 帧，超过MAX_DECODE_RETRIES次不再重试
+    private static final int RETRY_FRAMES = 30;
+    private static final int MAX_DECODE_RETRIES = 3;
+
+    private static class Tile {
+        final long key;
+        final int level;
+        // 在原图中的区域(不含边)
+        final Rect content = new Rect();
+        // 解码的区域(四周各多解码一个采样后的像素)
+        final Rect bordered = new Rect();
+        // x y u v 四个顶点，坐标为原图像素
+        FloatBuffer vertices;
+        int texture;
+        long byteSize;
+        long lastVisibleFrame;
+
+        Tile(long key,int level) {
+            this.key = key;
+            this.level = level;
+        }
+    }
+
+    /** 解码任务，PriorityBlockingQueue按照compareTo()排序，距离小的先执行
+     * */
+    private class DecodeTask implements Runnable,Comparable<DecodeTask> {
+        final Tile tile;
+        final float priority;
+        final long sequence;
+        volatile boolean cancelled;
+
+        DecodeTask(Tile tile,float priority) {
+            this.tile = tile;
+            this.priority = priority;
+            this.sequence = mTaskSequence.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1 << tile.level;
+            Bitmap bitmap;
+            // BitmapRegionDecoder内部是同步的，多个线程解码也会串行，所以线程池不需要太多线程
+            synchronized (mDecoder) {
+                bitmap = cancelled || mDecoder.isRecycled() ? null : mDecoder.decodeRegion(tile.bordered,options);
+            }
+            if (bitmap == null) {
+                // 取消和解码器已经释放的不算解码失败
+                mDecoded.add(new Decoded(this,null,!cancelled && !mDecoder.isRecycled()));
+                return;
+            }
+            mDecoded.add(new Decoded(this,bitmap,false));
+            OnTileReadyListener listener = mListener;
+            if (listener != null) {
+                listener.onTileReady();
+            }
+        }
+
+        @Override
+        public int compareTo(DecodeTask o) {
+            int c = Float.compare(priority,o.priority);
+            return c != 0 ? c : Long.compare(sequence,o.sequence);
+        }
+    }
+
+    private static class Decoded {
+        final DecodeTask task;
+        final Bitmap bitmap;
+        // decodeRegion()返回了null
+        final boolean failed;
+
+        Decoded(DecodeTask task,Bitmap bitmap,boolean failed) {
+            this.task = task;
+            this.bitmap = bitmap;
+            this.failed = failed;
+        }
+    }
+
+    // 解码失败的块，在retryFrame之前不再请求
+    private static class Failure {
+        int count;
+        long retryFrame;
+    }
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final int mBaseLevel;
+    private final ArrayList<Tile> mBaseTiles = new ArrayList<>();
+    private final OnTileReadyListener mListener;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mTaskSequence = new AtomicLong();
+    private final ConcurrentLinkedQueue<Decoded> mDecoded = new ConcurrentLinkedQueue<>();
+    // 正在排队或者解码的任务
+    private final HashMap<Long,DecodeTask> mInFlight = new HashMap<>();
+    // 解码失败的块
+    private final HashMap<Long,Failure> mFailed = new HashMap<>();
+    // 非底图的块，按照访问顺序排列
+    private final LinkedHashMap<Long,Tile> mCache = new LinkedHashMap<>(64,0.75f,true);
+    private long mCacheBytes;
+    private long mMaxCacheBytes = DEFAULT_CACHE_BYTES;
+    private long mUploadBudgetNanos = 4000000L;
+    private long mFrame;
+    private int mCancelledCount;
+
+    private final GLProgram mProgram;
+    private final float[] mMatrix = new float[16];
+    private final ArrayList<Tile> mVisible = new ArrayList<>();
+
+    /** decoder:图片的区域解码器，由调用者创建和释放，在destroy()返回之前不能recycle()
+     * listener:有新的块解码完成时回调，可以为null
+     * */
+    public GLDeepZoomImage(GLResourceManager manager,BitmapRegionDecoder decoder,OnTileReadyListener listener) {
+        super(manager,CATEGORY_TEXTURE);
+        mDecoder = decoder;
+        mListener = listener;
+        mImageWidth = decoder.getWidth();
+        mImageHeight = decoder.getHeight();
+
+        int level = 0;
+        while ((mImageWidth >> level) > TILE_SIZE || (mImageHeight >> level) > TILE_SIZE) {
+            level++;
+        }
+        mBaseLevel = level;
+
+        int threads = Math.max(1,Math.min(Runtime.getRuntime().availableProcessors() - 1,2));
+        mExecutor = new ThreadPoolExecutor(threads,threads,30,TimeUnit.SECONDS,new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mProgram = new GLProgram(manager,GLShaderLibrary.vertexSource(GLShaderLibrary.VARIANT_TRANSFORM),
+                GLShaderLibrary.fragmentSource(GLShaderLibrary.VARIANT_TRANSFORM));
+        setOwner("GLDeepZoomImage " + mImageWidth + "x" + mImageHeight);
+        create();
+    }
+
+    // 底图在使用时请求解码，这里不需要创建gl对象
+    @Override
+    protected void onCreate() {
+    }
+
+    // 纹理缓存的最大字节数(不包括底图)
+    public void setMaxCacheBytes(long bytes) {
+        mMaxCacheBytes = bytes;
+    }
+
+    // 每帧用于上传块的最长时间，单位毫秒
+    public void setUploadBudgetMs(float ms) {
+        mUploadBudgetNanos = (long)(ms * 1000000);
+    }
+
+    /** 绘制，调用前要先设置好glViewport
+     * return:true代表还有可见的块没有准备好，等OnTileReadyListener回调后再绘制
+     * */
+    public boolean draw(int viewWidth,int viewHeight,float scale,float offsetX,float offsetY) {
+        ensureValid();
+        mFrame++;
+
+        // 视口在原图中的区域
+        float left = -offsetX / scale;
+        float top = -offsetY / scale;
+        float right = (viewWidth - offsetX) / scale;
+        float bottom = (viewHeight - offsetY) / scale;
+        float cx = (left + right) / 2;
+        float cy = (top + bottom) / 2;
+
+        // 选择采样率不超过1/scale的最粗一层
+        int level = 0;
+        while (level < mBaseLevel && (1 << (level + 1)) <= 1 / scale) {
+            level++;
+        }
+
+        mVisible.clear();
+        if (mBaseTiles.isEmpty()) {
+            collectTiles(mBaseLevel,0,0,mImageWidth,mImageHeight,mBaseTiles);
+        }
+        boolean pending = false;
+        for (Tile tile : mBaseTiles) {
+            tile.lastVisibleFrame = mFrame;
+            pending |= request(tile,cx,cy,-1);
+        }
+        if (level < mBaseLevel) {
+            ArrayList<Tile> tiles = new ArrayList<>();
+            collectTiles(level,left,top,right,bottom,tiles);
+            for (Tile tile : tiles) {
+                tile.lastVisibleFrame = mFrame;
+                mVisible.add(tile);
+                pending |= request(tile,cx,cy,0);
+            }
+        }
+        cancelInvisible();
+        uploadDecoded();
+
+        // 图片坐标 -> 裁剪坐标，缩放和平移只需要修改这个矩阵
+        mMatrix[0] = 2 * scale / viewWidth;
+        mMatrix[5] = -2 * scale / viewHeight;
+        mMatrix[10] = 1;
+        mMatrix[12] = 2 * offsetX / viewWidth - 1;
+        mMatrix[13] = 1 - 2 * offsetY / viewHeight;
+        mMatrix[15] = 1;
+
+        mProgram.useprogram();
+        int position = mProgram.attributeLocationForname("position");
+        int texcoord = mProgram.attributeLocationForname("texcoord");
+        GLDispatch.glUniformMatrix4fv(mProgram.uniformaLocationForname("transform"),1,false,mMatrix,0);
+        GLDispatch.glUniform1i(mProgram.uniformaLocationForname("texture"),0);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glEnableVertexAttribArray(position);
+        GLDispatch.glEnableVertexAttribArray(texcoord);
+        // 先画底图，再在上面画更清晰的块
+        for (Tile tile : mBaseTiles) {
+            drawTile(tile,position,texcoord);
+        }
+        for (Tile tile : mVisible) {
+            drawTile(tile,position,texcoord);
+        }
+        GLDispatch.glDisableVertexAttribArray(position);
+        GLDispatch.glDisableVertexAttribArray(texcoord);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+
+        trimCache();
+        return pending || !mInFlight.isEmpty();
+    }
+
+    private void drawTile(Tile tile,int position,int texcoord) {
+        if (tile.texture == 0) {
+            return;
+        }
+        tile.vertices.position(0);
+        GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,16,tile.vertices);
+        tile.vertices.position(2);
+        GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,16,tile.vertices);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,tile.texture);
+        GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+    }
+
+    // 第level层中与[left,right)x[top,bottom)相交的块
+    private void collectTiles(int level,float left,float top,float right,float bottom,ArrayList<Tile> out) {
+        int span = TILE_SIZE << level;
+        int sample = 1 << level;
+        int col0 = Math.max(0,(int)Math.floor(left / span));
+        int row0 = Math.max(0,(int)Math.floor(top / span));
+        int col1 = Math.min((mImageWidth - 1) / span,(int)Math.floor(right / span));
+        int row1 = Math.min((mImageHeight - 1) / span,(int)Math.floor(bottom / span));
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                long key = ((long)level << 48) | ((long)row << 24) | col;
+                // 已经上传的块在缓存中，正在解码的块在任务中，都要复用同一个对象
+                Tile tile = mCache.get(key);
+                if (tile == null && mInFlight.containsKey(key)) {
+                    tile = mInFlight.get(key).tile;
+                }
+                if (tile == null) {
+                    tile = new Tile(key,level);
+                    tile.content.set(col * span,row * span,Math.min((col + 1) * span,mImageWidth),Math.min((row + 1) * span,mImageHeight));
+                    tile.bordered.set(Math.max(tile.content.left - sample,0),Math.max(tile.content.top - sample,0),
+                            Math.min(tile.content.right + sample,mImageWidth),Math.min(tile.content.bottom + sample,mImageHeight));
+                    tile.vertices = buildVertices(tile);
+                }
+                out.add(tile);
+            }
+        }
+    }
+
+    private static FloatBuffer buildVertices(Tile tile) {
+        Rect c = tile.content;
+        Rect b = tile.bordered;
+        float u0 = (float)(c.left - b.left) / b.width();
+        float v0 = (float)(c.top - b.top) / b.height();
+        float u1 = (float)(c.right - b.left) / b.width();
+        float v1 = (float)(c.bottom - b.top) / b.height();
+        float[] v = {
+                c.left,c.top,u0,v0,
+                c.right,c.top,u1,v0,
+                c.left,c.bottom,u0,v1,
+                c.right,c.bottom,u1,v1,
+        };
+        FloatBuffer buffer = ByteBuffer.allocateDirect(v.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(v).position(0);
+        return buffer;
+    }
+
+    /** 块还没有纹理并且没有在解码，则提交解码任务
+     * bias:优先级的偏移，底图用负数保证最先解码
+     * return:true代表块还没有准备好
+     * */
+    private boolean request(Tile tile,float cx,float cy,float bias) {
+        if (tile.texture != 0) {
+            return false;
+        }
+        Failure failure = mFailed.get(tile.key);
+        if (failure != null && mFrame < failure.retryFrame) {
+            // 还没到重试的时间，不算未准备好，显示底图
+            return false;
+        }
+        if (!mInFlight.containsKey(tile.key)) {
+            float dx = tile.content.exactCenterX() - cx;
+            float dy = tile.content.exactCenterY() - cy;
+            DecodeTask task = new DecodeTask(tile,bias < 0 ? bias : dx * dx + dy * dy);
+            mInFlight.put(tile.key,task);
+            mExecutor.execute(task);
+        }
+        return true;
+    }
+
+    // 取消不再可见的块的解码任务
+    private void cancelInvisible() {
+        Iterator<Map.Entry<Long,DecodeTask>> it = mInFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            DecodeTask task = it.next().getValue();
+            if (task.tile.lastVisibleFrame != mFrame) {
+                task.cancelled = true;
+                mExecutor.remove(task);
+                it.remove();
+                mCancelledCount++;
+            }
+        }
+    }
+
+    // 在预算内上传解码好的块
+    private void uploadDecoded() {
+        long start = System.nanoTime();
+        Decoded decoded;
+        while ((decoded = mDecoded.poll()) != null) {
+            Tile tile = decoded.task.tile;
+            boolean current = mInFlight.get(tile.key) == decoded.task;
+            if (current) {
+                mInFlight.remove(tile.key);
+            }
+            if (decoded.bitmap == null) {
+                if (current && decoded.failed) {
+                    recordFailure(tile);
+                }
+                continue;
+            }
+            if (!current || decoded.task.cancelled) {
+                decoded.bitmap.recycle();
+                continue;
+            }
+            upload(tile,decoded.bitmap);
+            if (System.nanoTime() - start > mUploadBudgetNanos) {
+                break;
+            }
+        }
+    }
+
+    private void recordFailure(Tile tile) {
+        Failure failure = mFailed.get(tile.key);
+        if (failure == null) {
+            failure = new Failure();
+            mFailed.put(tile.key,failure);
+        }
+        failure.count++;
+        failure.retryFrame = failure.count > MAX_DECODE_RETRIES ? Long.MAX_VALUE : mFrame + (RETRY_FRAMES << failure.count);
+        MLog.log("GLDeepZoomImage decode fail level " + tile.level + " " + tile.bordered + " count " + failure.count);
+    }
+
+    private void upload(Tile tile,Bitmap bitmap) {
+        mFailed.remove(tile.key);
+        IntBuffer ids = IntBuffer.allocate(1);
+        GLES20.glGenTextures(1,ids);
+        tile.texture = ids.get(0);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,tile.texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.texImage2D(GLES20.GL_TEXTURE_2D,0,bitmap,0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        tile.byteSize = (long)bitmap.getWidth() * bitmap.getHeight() * 4;
+        bitmap.recycle();
+        if (tile.level != mBaseLevel) {
+            mCache.put(tile.key,tile);
+            mCacheBytes += tile.byteSize;
+        }
+    }
+
+    // 超过缓存大小时删除最久没有使用的块，当前帧可见的块不会被删除
+    private void trimCache() {
+        Iterator<Tile> it = mCache.values().iterator();
+        while (mCacheBytes > mMaxCacheBytes && it.hasNext()) {
+            Tile tile = it.next();
+            if (tile.lastVisibleFrame == mFrame) {
+                continue;
+            }
+            deleteTexture(tile);
+            mCacheBytes -= tile.byteSize;
+            it.remove();
+        }
+    }
+
+    private static void deleteTexture(Tile tile) {
+        if (tile.texture != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(tile.texture).position(0);
+            GLES20.glDeleteTextures(1,buf);
+            tile.texture = 0;
+        }
+    }
+
+    public int getCachedTileCount() {
+        return mCache.size();
+    }
+
+    // 被取消的解码任务个数
+    public int getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    @Override
+    public long getByteSize() {
+        long size = mCacheBytes;
+        for (Tile tile : mBaseTiles) {
+            size += tile.byteSize;
+        }
+        return size;
+    }
+
+    @Override
+    protected void onRelease() {
+        for (Tile tile : mBaseTiles) {
+            deleteTexture(tile);
+        }
+        for (Tile tile : mCache.values()) {
+            deleteTexture(tile);
+        }
+        mCache.clear();
+        mCacheBytes = 0;
+    }
+
+    @Override
+    protected void onContextLost() {
+        for (Tile tile : mBaseTiles) {
+            tile.texture = 0;
+        }
+        mCache.clear();
+        mCacheBytes = 0;
+    }
+
+    @Override
+    public void destroy() {
+        for (DecodeTask task : mInFlight.values()) {
+            task.cancelled = true;
+        }
+        mInFlight.clear();
+        mExecutor.shutdownNow();
+        /** shutdownNow()不能打断已经在执行的decodeRegion()，这里等待持有解码器的锁，返回时正在进行的解码已经结束；
+         * 之后再拿到锁的任务都已经标记为取消，不会再解码，调用者可以在destroy()返回后立即recycle()解码器
+         * */
+        synchronized (mDecoder) {
+            mFailed.clear();
+        }
+        super.destroy();
+        mProgram.destroy();
+        Decoded decoded;
+        while ((decoded = mDecoded.poll()) != null) {
+            if (decoded.bitmap != null) {
+                decoded.bitmap.recycle();
+            }
+        }
+        MLog.log("GLDeepZoomImage destroy, cancelled decode " + mCancelledCount);
+    }
+
+}
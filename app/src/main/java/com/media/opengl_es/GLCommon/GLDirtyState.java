@@ -0,0 +1,65 @@
+package com.media.opengl_es.GLCommon;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 按需渲染的脏标记
+ * 1、内容的每一种变化(新的图片，变换矩阵，滤镜参数等)对应一个标记位，任意线程修改内容后调用mark()标记为脏
+ * 2、只有从"干净"变为"脏"的那一次mark()返回true，调用者只在返回true时请求渲染(比如GLSurfaceView.requestRender())，这样同一帧内的多次修改
+ * 只会触发一次渲染
+ * 3、GL线程在绘制一帧开始时调用consume()取出并清空所有标记，只处理发生了变化的部分(比如只有图片变化时才重新上传纹理)，在consume()之后的修改
+ * 会重新触发下一次渲染
+ * 4、内容没有变化时不会有任何渲染请求，gpu保持空闲
+ *
+ * 注：mark()中的CAS保证了在mark()之前写入的内容对consume()之后的GL线程可见
+ * */
+public class GLDirtyState {
+
+    // 新的图片，需要重新上传纹理
+    public static final int DIRTY_IMAGE = 0x01;
+    // 顶点变换矩阵发生了变化
+    public static final int DIRTY_TRANSFORM = 0x02;
+    // 滤镜参数发生了变化
+    public static final int DIRTY_FILTER = 0x04;
+    // Surface大小或者GL上下文发生了变化
+    public static final int DIRTY_SURFACE = 0x08;
+    public static final int DIRTY_ALL = DIRTY_IMAGE | DIRTY_TRANSFORM | DIRTY_FILTER | DIRTY_SURFACE;
+
+    private final AtomicInteger mFlags = new AtomicInteger();
+    // 渲染请求次数和被合并掉的修改次数，用于统计
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mCoalescedCount = new AtomicInteger();
+
+    /** 标记为脏，可以在任意线程调用
+     * return:true代表之前是干净的，调用者需要请求一次渲染；false代表已经有一次渲染在等待了，这次修改会合并到那一次渲染中
+     * */
+    public boolean mark(int flags) {
+        while (true) {
+            int old = mFlags.get();
+            if (mFlags.compareAndSet(old,old | flags)) {
+                if (old == 0) {
+                    mRequestCount.incrementAndGet();
+                    return true;
+                }
+                mCoalescedCount.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    // 在GL线程中绘制开始时调用，返回并清空所有的标记
+    public int consume() {
+        return mFlags.getAndSet(0);
+    }
+
+    public boolean isDirty() {
+        return mFlags.get() != 0;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+}
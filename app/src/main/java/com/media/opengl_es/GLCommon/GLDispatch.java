@@ -0,0 +1,565 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+/** gl函数的调用层，代码中绘制，状态切换，上传相关的gl调用都通过这里，运行时可以切换三种模式：
+ * 1、MODE_RELEASE：直接调用GLES20，每次调用只多一次静态字段的读取，没有任何同步和分配
+ * 2、MODE_STATS：统计每一帧的draw call，状态切换(程序，纹理，缓冲区，fbo的绑定，开关和混合等固定管线状态)，uniform设置，纹理/缓冲区上传的字节数，回读的字节数，
+ * 以及beginFrame()到endFrame()之间的cpu耗时；不调用glGetError()，不会打断gpu的流水线
+ * 3、MODE_DEBUG：在统计的基础上每次调用后都检查glGetError()，出错时才拼接函数名，参数以及调用位置并输出，setThrowOnError(true)后直接抛出异常
+ *
+ * 注：统计数据按线程分开记录(渲染线程，上传线程各自一份)；模式字段没有使用volatile，要在gl线程开始绘制之前设置，或者接受切换在下一帧
+ * 之后才生效；没有经过这里的gl调用(比如glGenTextures)产生的错误，会在debug模式下的下一次检查时报告，调用位置不准确
+ * */
+public class GLDispatch {
+
+    public static final int MODE_RELEASE = 0;
+    public static final int MODE_STATS = 1;
+    public static final int MODE_DEBUG = 2;
+
+    // 一帧的统计
+    public static class FrameStats {
+        public int drawCalls;
+        public int stateChanges;
+        public int uniformCalls;
+        public long uploadBytes;
+        public long readbackBytes;
+        public int errors;
+        // beginFrame()到endFrame()之间的cpu耗时
+        public long cpuNanos;
+
+        void reset() {
+            drawCalls = 0;
+            stateChanges = 0;
+            uniformCalls = 0;
+            uploadBytes = 0;
+            readbackBytes = 0;
+            errors = 0;
+            cpuNanos = 0;
+        }
+
+        void copyFrom(FrameStats other) {
+            drawCalls = other.drawCalls;
+            stateChanges = other.stateChanges;
+            uniformCalls = other.uniformCalls;
+            uploadBytes = other.uploadBytes;
+            readbackBytes = other.readbackBytes;
+            errors = other.errors;
+            cpuNanos = other.cpuNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "draws " + drawCalls + " states " + stateChanges + " uniforms " + uniformCalls
+                    + " upload " + uploadBytes + "B readback " + readbackBytes + "B errors " + errors
+                    + " cpu " + cpuNanos / 1000 + "us";
+        }
+    }
+
+    // 每个线程的统计
+    private static class Counters {
+        final FrameStats current = new FrameStats();
+        final FrameStats last = new FrameStats();
+        long frameStartNanos;
+        long frames;
+        // debug模式下hasError()取到的错误码
+        int pendingError;
+    }
+
+    private static int sMode = MODE_RELEASE;
+    private static boolean sThrowOnError;
+    private static final ThreadLocal<Counters> sCounters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            return new Counters();
+        }
+    };
+
+    public static void setMode(int mode) {
+        sMode = mode;
+        MLog.log("GLDispatch mode " + mode);
+    }
+
+    public static int getMode() {
+        return sMode;
+    }
+
+    // debug模式下出错时是否抛出RuntimeException，默认只输出日志
+    public static void setThrowOnError(boolean throwOnError) {
+        sThrowOnError = throwOnError;
+    }
+
+    /** 一帧开始，在gl线程中调用，release模式下什么都不做
+     * */
+    public static void beginFrame() {
+        if (sMode == MODE_RELEASE) {
+            return;
+        }
+        Counters counters = sCounters.get();
+        counters.current.reset();
+        counters.frameStartNanos = System.nanoTime();
+    }
+
+    /** 一帧结束，返回这一帧的统计(每个线程复用同一个对象，下一帧结束时会被覆盖)，release模式下返回null
+     * */
+    public static FrameStats endFrame() {
+        if (sMode == MODE_RELEASE) {
+            return null;
+        }
+        Counters counters = sCounters.get();
+        counters.current.cpuNanos = System.nanoTime() - counters.frameStartNanos;
+        counters.last.copyFrom(counters.current);
+        counters.current.reset();
+        counters.frames++;
+        return counters.last;
+    }
+
+    // 当前线程已经统计的帧数
+    public static long getFrameCount() {
+        return sCounters.get().frames;
+    }
+
+    // ======== 绘制 ========
+
+    public static void glDrawArrays(int mode,int first,int count) {
+        GLES20.glDrawArrays(mode,first,count);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.drawCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glDrawArrays",mode,first,count);
+            }
+        }
+    }
+
+    public static void glDrawElements(int mode,int count,int type,int offset) {
+        GLES20.glDrawElements(mode,count,type,offset);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.drawCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glDrawElements",mode,count,type,offset);
+            }
+        }
+    }
+
+    public static void glDrawElements(int mode,int count,int type,Buffer indices) {
+        GLES20.glDrawElements(mode,count,type,indices);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.drawCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glDrawElements",mode,count,type,indices);
+            }
+        }
+    }
+
+    public static void glClear(int mask) {
+        GLES20.glClear(mask);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glClear",mask);
+        }
+    }
+
+    public static void glClearColor(float red,float green,float blue,float alpha) {
+        GLES20.glClearColor(red,green,blue,alpha);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glClearColor",red,green,blue,alpha);
+        }
+    }
+
+    // ======== 状态 ========
+
+    public static void glUseProgram(int program) {
+        GLES20.glUseProgram(program);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUseProgram",program);
+            }
+        }
+    }
+
+    public static void glBindTexture(int target,int texture) {
+        GLES20.glBindTexture(target,texture);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBindTexture",target,texture);
+            }
+        }
+    }
+
+    public static void glBindBuffer(int target,int buffer) {
+        GLES20.glBindBuffer(target,buffer);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBindBuffer",target,buffer);
+            }
+        }
+    }
+
+    public static void glBindFramebuffer(int target,int framebuffer) {
+        GLES20.glBindFramebuffer(target,framebuffer);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBindFramebuffer",target,framebuffer);
+            }
+        }
+    }
+
+    public static void glActiveTexture(int texture) {
+        GLES20.glActiveTexture(texture);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glActiveTexture",texture);
+        }
+    }
+
+    public static void glViewport(int x,int y,int width,int height) {
+        GLES20.glViewport(x,y,width,height);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glViewport",x,y,width,height);
+        }
+    }
+
+    public static void glEnable(int cap) {
+        GLES20.glEnable(cap);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glEnable",cap);
+            }
+        }
+    }
+
+    public static void glDisable(int cap) {
+        GLES20.glDisable(cap);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glDisable",cap);
+            }
+        }
+    }
+
+    public static void glBlendFunc(int sfactor,int dfactor) {
+        GLES20.glBlendFunc(sfactor,dfactor);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBlendFunc",sfactor,dfactor);
+            }
+        }
+    }
+
+    public static void glBlendFuncSeparate(int srcRGB,int dstRGB,int srcAlpha,int dstAlpha) {
+        GLES20.glBlendFuncSeparate(srcRGB,dstRGB,srcAlpha,dstAlpha);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBlendFuncSeparate",srcRGB,dstRGB,srcAlpha,dstAlpha);
+            }
+        }
+    }
+
+    public static void glLineWidth(float width) {
+        GLES20.glLineWidth(width);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glLineWidth",width);
+            }
+        }
+    }
+
+    public static void glPixelStorei(int pname,int param) {
+        GLES20.glPixelStorei(pname,param);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.stateChanges++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glPixelStorei",pname,param);
+            }
+        }
+    }
+
+    public static void glTexParameterf(int target,int pname,float param) {
+        GLES20.glTexParameterf(target,pname,param);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glTexParameterf",target,pname,param);
+        }
+    }
+
+    public static void glTexParameteri(int target,int pname,int param) {
+        GLES20.glTexParameteri(target,pname,param);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glTexParameteri",target,pname,param);
+        }
+    }
+
+    // ======== 顶点属性 ========
+
+    public static void glVertexAttribPointer(int index,int size,int type,boolean normalized,int stride,Buffer ptr) {
+        GLES20.glVertexAttribPointer(index,size,type,normalized,stride,ptr);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glVertexAttribPointer",index,size,type,normalized,stride,ptr);
+        }
+    }
+
+    public static void glVertexAttribPointer(int index,int size,int type,boolean normalized,int stride,int offset) {
+        GLES20.glVertexAttribPointer(index,size,type,normalized,stride,offset);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glVertexAttribPointer",index,size,type,normalized,stride,offset);
+        }
+    }
+
+    public static void glEnableVertexAttribArray(int index) {
+        GLES20.glEnableVertexAttribArray(index);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glEnableVertexAttribArray",index);
+        }
+    }
+
+    public static void glDisableVertexAttribArray(int index) {
+        GLES20.glDisableVertexAttribArray(index);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glDisableVertexAttribArray",index);
+        }
+    }
+
+    // ======== uniform ========
+
+    public static void glUniform1i(int location,int x) {
+        GLES20.glUniform1i(location,x);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniform1i",location,x);
+            }
+        }
+    }
+
+    public static void glUniform1f(int location,float x) {
+        GLES20.glUniform1f(location,x);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniform1f",location,x);
+            }
+        }
+    }
+
+    public static void glUniform2f(int location,float x,float y) {
+        GLES20.glUniform2f(location,x,y);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniform2f",location,x,y);
+            }
+        }
+    }
+
+    public static void glUniform3f(int location,float x,float y,float z) {
+        GLES20.glUniform3f(location,x,y,z);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniform3f",location,x,y,z);
+            }
+        }
+    }
+
+    public static void glUniform4f(int location,float x,float y,float z,float w) {
+        GLES20.glUniform4f(location,x,y,z,w);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniform4f",location,x,y,z,w);
+            }
+        }
+    }
+
+    public static void glUniform1fv(int location,int count,float[] value,int offset) {
+        GLES20.glUniform1fv(location,count,value,offset);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniform1fv",location,count,value,offset);
+            }
+        }
+    }
+
+    public static void glUniformMatrix4fv(int location,int count,boolean transpose,float[] value,int offset) {
+        GLES20.glUniformMatrix4fv(location,count,transpose,value,offset);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uniformCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glUniformMatrix4fv",location,count,transpose,value,offset);
+            }
+        }
+    }
+
+    // ======== 上传和回读 ========
+
+    public static void glTexImage2D(int target,int level,int internalformat,int width,int height,int border,
+                                    int format,int type,Buffer pixels) {
+        GLES20.glTexImage2D(target,level,internalformat,width,height,border,format,type,pixels);
+        if (sMode != MODE_RELEASE) {
+            // pixels为null只分配存储，不计入上传
+            if (pixels != null) {
+                sCounters.get().current.uploadBytes += (long)width * height * bytesPerPixel(format,type);
+            }
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glTexImage2D",target,level,internalformat,width,height,border,format,type,pixels);
+            }
+        }
+    }
+
+    public static void glCompressedTexImage2D(int target,int level,int internalformat,int width,int height,int border,
+                                              int imageSize,Buffer data) {
+        GLES20.glCompressedTexImage2D(target,level,internalformat,width,height,border,imageSize,data);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uploadBytes += imageSize;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glCompressedTexImage2D",target,level,internalformat,width,height,border,imageSize,data);
+            }
+        }
+    }
+
+    // 对应GLUtils.texImage2D()
+    public static void texImage2D(int target,int level,Bitmap bitmap,int border) {
+        GLUtils.texImage2D(target,level,bitmap,border);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uploadBytes += bitmap.getByteCount();
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("texImage2D",target,level,bitmap,border);
+            }
+        }
+    }
+
+    // 对应GLUtils.texSubImage2D()
+    public static void texSubImage2D(int target,int level,int xoffset,int yoffset,Bitmap bitmap) {
+        GLUtils.texSubImage2D(target,level,xoffset,yoffset,bitmap);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uploadBytes += bitmap.getByteCount();
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("texSubImage2D",target,level,xoffset,yoffset,bitmap);
+            }
+        }
+    }
+
+    public static void glGenerateMipmap(int target) {
+        GLES20.glGenerateMipmap(target);
+        if (sMode == MODE_DEBUG && hasError()) {
+            report("glGenerateMipmap",target);
+        }
+    }
+
+    public static void glBufferData(int target,int size,Buffer data,int usage) {
+        GLES20.glBufferData(target,size,data,usage);
+        if (sMode != MODE_RELEASE) {
+            // data为null是丢弃旧的存储(orphan)，不计入上传
+            if (data != null) {
+                sCounters.get().current.uploadBytes += size;
+            }
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBufferData",target,size,data,usage);
+            }
+        }
+    }
+
+    public static void glBufferSubData(int target,int offset,int size,Buffer data) {
+        GLES20.glBufferSubData(target,offset,size,data);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.uploadBytes += size;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glBufferSubData",target,offset,size,data);
+            }
+        }
+    }
+
+    // gpu中的一次复制，按照一次绘制统计
+    public static void glCopyTexSubImage2D(int target,int level,int xoffset,int yoffset,int x,int y,int width,int height) {
+        GLES20.glCopyTexSubImage2D(target,level,xoffset,yoffset,x,y,width,height);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.drawCalls++;
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glCopyTexSubImage2D",target,level,xoffset,yoffset,x,y,width,height);
+            }
+        }
+    }
+
+    public static void glReadPixels(int x,int y,int width,int height,int format,int type,Buffer pixels) {
+        GLES20.glReadPixels(x,y,width,height,format,type,pixels);
+        if (sMode != MODE_RELEASE) {
+            sCounters.get().current.readbackBytes += (long)width * height * bytesPerPixel(format,type);
+            if (sMode == MODE_DEBUG && hasError()) {
+                report("glReadPixels",x,y,width,height,format,type,pixels);
+            }
+        }
+    }
+
+    // ======== 内部实现 ========
+
+    /** 调用后检查glGetError()，没有错误时只有这一次调用，不会装箱参数和拼接字符串；出错时把错误码暂存下来，由report()输出
+     * */
+    private static boolean hasError() {
+        int error = GLES20.glGetError();
+        if (error == GLES20.GL_NO_ERROR) {
+            return false;
+        }
+        sCounters.get().pendingError = error;
+        return true;
+    }
+
+    // 输出hasError()取到的错误，一次调用可能产生多个错误标记，剩下的也全部取出
+    private static void report(String name,Object... args) {
+        Counters counters = sCounters.get();
+        int error = counters.pendingError;
+        // [0]为report，[1]为这个类中的包装函数，[2]为调用者
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        String site = stack.length > 2 ? stack[2].toString() : "unknown";
+        StringBuilder sb = new StringBuilder(name).append('(');
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            Object arg = args[i];
+            sb.append(arg instanceof float[] ? Arrays.toString((float[])arg) : String.valueOf(arg));
+        }
+        sb.append(')');
+        String call = sb.toString();
+        String msg = null;
+        do {
+            counters.current.errors++;
+            msg = call + ": glError 0x" + Integer.toHexString(error) + " at " + site;
+            MLog.log(msg);
+            error = GLES20.glGetError();
+        } while (error != GLES20.GL_NO_ERROR);
+        if (sThrowOnError) {
+            throw new RuntimeException(msg);
+        }
+    }
+
+    private static int bytesPerPixel(int format,int type) {
+        if (type == GLES20.GL_UNSIGNED_SHORT_5_6_5 || type == GLES20.GL_UNSIGNED_SHORT_4_4_4_4
+                || type == GLES20.GL_UNSIGNED_SHORT_5_5_5_1) {
+            return 2;
+        }
+        switch (format) {
+            case GLES20.GL_RGBA:
+                return 4;
+            case GLES20.GL_RGB:
+                return 3;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.media.opengl_es.GLCommon;
+
+/** 滤镜描述，只记录滤镜的类型和参数，gpu(着色器)和cpu(GLCpuFilterBackend)两个后端按照同样的定义实现，结果一致(误差在一个色阶以内)
+ * 1、COLOR_MATRIX：4x5颜色矩阵，与android.graphics.ColorMatrix的排列相同，按行为 R' G' B' A'，第5列为偏移，单位0~255
+ * 2、BRIGHTNESS_CONTRAST：c' = (c + brightness - 0.5) * contrast + 0.5，c为0~1的颜色分量，不处理alpha；brightness与着色器库中
+ * VARIANT_BRIGHTNESS的定义相同
+ * 3、LUT：每个通道一张256项的查找表，lut[0~255]为R，lut[256~511]为G，lut[512~767]为B，alpha不变
+ * 4、BOX_BLUR/GAUSSIAN_BLUR：可分离的模糊，先水平再垂直，边缘按照GL_CLAMP_TO_EDGE取值；高斯模糊的半径为ceil(3*sigma)
+ * 5、RESIZE：缩放到指定大小，双线性插值，采样点为像素中心，与GL_LINEAR采样一致(不使用mipmap)
+ *
+ * 注：只描述，不持有任何gl对象，可以在任意线程中创建
+ * */
+public class GLFilter {
+
+    public static final int TYPE_COLOR_MATRIX = 1;
+    public static final int TYPE_BRIGHTNESS_CONTRAST = 2;
+    public static final int TYPE_LUT = 3;
+    public static final int TYPE_BOX_BLUR = 4;
+    public static final int TYPE_GAUSSIAN_BLUR = 5;
+    public static final int TYPE_RESIZE = 6;
+
+    public final int type;
+    // 颜色矩阵，BRIGHTNESS_CONTRAST也会转换为颜色矩阵
+    final float[] matrix;
+    final int[] lut;
+    // 模糊半径(像素)，高斯模糊的sigma
+    final int radius;
+    final float sigma;
+    // RESIZE的目标大小
+    final int width;
+    final int height;
+
+    private GLFilter(int type,float[] matrix,int[] lut,int radius,float sigma,int width,int height) {
+        this.type = type;
+        this.matrix = matrix;
+        this.lut = lut;
+        this.radius = radius;
+        this.sigma = sigma;
+        this.width = width;
+        this.height = height;
+    }
+
+    /** matrix:20个元素的4x5颜色矩阵，会复制一份
+     * */
+    public static GLFilter colorMatrix(float[] matrix) {
+        if (matrix.length != 20) {
+            throw new RuntimeException("color matrix must have 20 elements");
+        }
+        return new GLFilter(TYPE_COLOR_MATRIX,matrix.clone(),null,0,0,0,0);
+    }
+
+    /** brightness:-1~1，0为不变；contrast:>=0，1为不变
+     * */
+    public static GLFilter brightnessContrast(float brightness,float contrast) {
+        // (c + b - 0.5) * k + 0.5 = k * c + (b - 0.5) * k + 0.5，偏移换算到0~255
+        float offset = ((brightness - 0.5f) * contrast + 0.5f) * 255;
+        float[] m = {
+                contrast,0,0,0,offset,
+                0,contrast,0,0,offset,
+                0,0,contrast,0,offset,
+                0,0,0,1,0,
+        };
+        return new GLFilter(TYPE_BRIGHTNESS_CONTRAST,m,null,0,0,0,0);
+    }
+
+    /** lut:768项，依次为R，G，B三个通道的查找表，值为0~255，会复制一份
+     * */
+    public static GLFilter lut(int[] lut) {
+        if (lut.length != 256 * 3) {
+            throw new RuntimeException("lut must have 768 entries");
+        }
+        return new GLFilter(TYPE_LUT,null,lut.clone(),0,0,0,0);
+    }
+
+    // 半径为radius的方框模糊，窗口大小为2*radius+1
+    public static GLFilter boxBlur(int radius) {
+        return new GLFilter(TYPE_BOX_BLUR,null,null,Math.max(0,radius),0,0,0);
+    }
+
+    public static GLFilter gaussianBlur(float sigma) {
+        int radius = sigma > 0 ? (int)Math.ceil(sigma * 3) : 0;
+        return new GLFilter(TYPE_GAUSSIAN_BLUR,null,null,radius,sigma,0,0);
+    }
+
+    public static GLFilter resize(int width,int height) {
+        if (width <= 0 || height <= 0) {
+            throw new RuntimeException("invalid resize " + width + "x" + height);
+        }
+        return new GLFilter(TYPE_RESIZE,null,null,0,0,width,height);
+    }
+
+    /** 高斯模糊的一维权重，长度为2*radius+1，和为1；gpu和cpu两个后端使用同一组权重
+     * */
+    public float[] gaussianWeights() {
+        float[] weights = new float[radius * 2 + 1];
+        if (radius == 0) {
+            weights[0] = 1;
+            return weights;
+        }
+        float sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            float w = (float)Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            weights[i + radius] = w;
+            sum += w;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    // 处理后的宽度，只有RESIZE会改变大小
+    public int outputWidth(int inputWidth) {
+        return type == TYPE_RESIZE ? width : inputWidth;
+    }
+
+    public int outputHeight(int inputHeight) {
+        return type == TYPE_RESIZE ? height : inputHeight;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public float getSigma() {
+        return sigma;
+    }
+}
@@ -4,12 +4,15 @@ import android.opengl.GLES20;
 import com.media.opengl_es.utils.MLog;
 import java.nio.IntBuffer;
 
-public class GLFrameBuffer {
+public class GLFrameBuffer extends GLResource {
 
     private int framebuffer;
     private int texture;
     private int mWidth;
     private int mHeight;
+    private final boolean mOffscreen;
+    // 纹理的过滤方式，默认GL_NEAREST
+    private int mFilter = GLES20.GL_NEAREST;
 
     /** 对FBO帧缓冲区的封装 默认1280x720大小
      * width: fbo缓冲区的宽度
@@ -17,9 +20,23 @@ public class GLFrameBuffer {
      * offscreen:是否离屏渲染,如果为false，那么仅仅只是创建一个frame buffer。为true 则还会为其分配内存
      * */
     public GLFrameBuffer(int width,int height,boolean offscreen) {
+        this(null,width,height,offscreen);
+    }
 
+    /** manager:资源管理器，上下文丢失后下次使用时会按照记录的宽高重新创建(原来的内容会丢失)
+     * */
+    public GLFrameBuffer(GLResourceManager manager,int width,int height,boolean offscreen) {
+        super(manager,CATEGORY_FRAMEBUFFER);
         mWidth = width;
         mHeight = height;
+        mOffscreen = offscreen;
+        create();
+    }
+
+    @Override
+    protected void onCreate() {
+        int width = mWidth;
+        int height = mHeight;
 
         IntBuffer frameIntbuffer = IntBuffer.allocate(1);
 
@@ -29,7 +46,7 @@ public class GLFrameBuffer {
         if (framebuffer == 0) {
             MLog.log("glGenFramebuffers fail 0");
         }
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
 
         // 设置纹理参数
         IntBuffer texIntbuffer = IntBuffer.allocate(1);
@@ -40,16 +57,16 @@ public class GLFrameBuffer {
         }
 
         // 设置纹理参数
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
-
-        if (offscreen) {
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,mFilter);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,mFilter);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+
+        if (mOffscreen) {
             // 分配指定格式的一个像素内存块，但是像素数据都初始化为0。
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D,0,GLES20.GL_RGB,width,height,0,GLES20.GL_RGB,GLES20.GL_UNSIGNED_BYTE,null);
+            GLDispatch.glTexImage2D(GLES20.GL_TEXTURE_2D,0,GLES20.GL_RGB,width,height,0,GLES20.GL_RGB,GLES20.GL_UNSIGNED_BYTE,null);
 
             /** 此函数的意思就是将当前framebuffer中的渲染结果转换成纹理数据定位到_texture中，那么_texture就是一个已经带有像素数据的纹理对象了(即不需要经过
              *  应用端通过glTexImage2D()函数来赋值了),那么它就可以直接作为其它着色器程序中uniform sampler2D 类型的输入了，通过如下流程：
@@ -66,7 +83,7 @@ public class GLFrameBuffer {
              *  新的帧缓冲区otherframebuffer中，这就是实现离屏渲染的使用流程；多次离屏渲染则依次类推
              *  此函数是实现多次离屏渲染的关键函数
              **/
-            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, framebuffer, 0);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, texture, 0);
 
             /** 检查framebuffer的状态 返回值如下含义：
              * GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT：36054，没有为其指定类型，比如GL_COLOR_ATTACHMENT0
@@ -81,30 +98,100 @@ public class GLFrameBuffer {
         }
 
         // 解绑，这样后面设置的值不会把这个 texture id的设置覆盖
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    /** 改变fbo的大小，比如Surface大小改变或者屏幕旋转时
+     * 只重新分配纹理的存储空间，fbo和纹理的id都不变，所以引用它们的地方不需要做任何修改
+     * 注：必须在GL线程中调用，调用后fbo处于绑定状态；纹理中原来的内容会丢失
+     * */
+    public void resize(int width,int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        if (!ensureValid()) {
+            // 刚刚按照新的大小重新创建了
+            return;
+        }
+
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glTexImage2D(GLES20.GL_TEXTURE_2D,0,GLES20.GL_RGB,width,height,0,GLES20.GL_RGB,GLES20.GL_UNSIGNED_BYTE,null);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            MLog.log("resize frame buffer fail: "+status);
+        }
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        notifySizeChanged();
+    }
+
+    /** 设置纹理的过滤方式，linear为true则用GL_LINEAR采样(缩放或者在两个像素之间采样时需要，比如GLBlur)
+     * 会被记录下来，上下文丢失重建后依然有效；必须在GL线程中调用
+     * */
+    public void setLinearFilter(boolean linear) {
+        int filter = linear ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+        if (filter == mFilter) {
+            return;
+        }
+        mFilter = filter;
+        if (!ensureValid()) {
+            return;
+        }
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,filter);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,filter);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
     }
 
-    public void destroy() {
+    // GL_RGB格式的纹理，驱动一般会按照每个像素4字节对齐存储
+    @Override
+    public long getByteSize() {
+        return (long)mWidth * mHeight * 4;
+    }
+
+    @Override
+    protected void onRelease() {
         if (framebuffer != 0) {
             IntBuffer buf = IntBuffer.allocate(1);
-            buf.put(framebuffer);
+            buf.put(framebuffer).position(0);
             GLES20.glDeleteFramebuffers(1,buf);
+            framebuffer = 0;
+        }
+        if (texture != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(texture).position(0);
+            GLES20.glDeleteTextures(1,buf);
+            texture = 0;
         }
     }
 
+    @Override
+    protected void onContextLost() {
+        framebuffer = 0;
+        texture = 0;
+    }
+
     public void activeFrameBuffer() {
+        ensureValid();
         MLog.log("frame buff " + framebuffer);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
 //        GLES20.glViewport(0,0,mWidth,mHeight);
     }
 
     // 获取frame buffer id
     public int getFramebuffer() {
+        ensureValid();
         return framebuffer;
     }
 
     // 获取 纹理texture id
     public int getTexture() {
+        ensureValid();
         return texture;
     }
 
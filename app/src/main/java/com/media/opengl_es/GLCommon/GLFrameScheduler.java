@@ -0,0 +1,127 @@
+package com.media.opengl_es.GLCommon;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** 基于Choreographer的vsync帧调度器，用于自定义渲染线程的连续渲染模式
+ * 1、Choreographer的帧回调与屏幕的vsync信号同步，每个vsync回调一次doFrame()，回调执行在主线程中(Choreographer只能在有Looper的线程中使用)
+ * 2、doFrame()中只是通知渲染线程去绘制，不做任何gl操作；渲染线程绘制完(swapBuffers之后)调用frameDone()
+ * 3、每个vsync最多触发一帧；如果上一帧还没有绘制完(还在渲染线程中)，那么这个vsync直接跳过，不会让帧在渲染线程中堆积
+ * 4、支持比屏幕刷新率低的目标帧率，比如在60/90/120hz的屏幕上以30fps渲染，不需要的vsync直接跳过，这样可以降低功耗和发热
+ *
+ * 相比于渲染线程自己循环调用eglSwapBuffers()依靠其阻塞来控制帧率，这种方式帧的节奏更稳定，而且可以拿到vsync的时间戳，用于动画计算
+ * */
+public class GLFrameScheduler implements Choreographer.FrameCallback {
+
+    // 帧回调，执行于主线程，实现者在这里唤醒渲染线程，不要做耗时操作
+    public interface Callback {
+        /** frameTimeNanos:该帧对应的vsync时间戳，单位纳秒，与System.nanoTime()是同一时间基准
+         * */
+        void onFrame(long frameTimeNanos);
+    }
+
+    // 渲染回调，执行于渲染线程(GL线程)，在视图内容绘制之后，swapBuffers之前调用，可以在这里根据帧时间戳绘制动画
+    public interface FrameRenderer {
+        void onDrawFrame(long frameTimeNanos);
+    }
+
+    // 默认按照60hz估算vsync周期，收到两次vsync后使用实际测量的周期
+    private static final long DEFAULT_VSYNC_PERIOD_NANOS = 16666667L;
+
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // 上一帧是否还在渲染线程中绘制
+    private final AtomicBoolean mFrameInFlight = new AtomicBoolean(false);
+
+    // 以下变量只在主线程中访问
+    private boolean mRunning;
+    private long mTargetIntervalNanos;
+    private long mLastVsyncNanos;
+    private long mLastFrameNanos;
+    private long mVsyncPeriodNanos = DEFAULT_VSYNC_PERIOD_NANOS;
+    // 由于上一帧未完成而跳过的vsync个数
+    private volatile long mDroppedFrames;
+
+    public GLFrameScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /** 开始连续渲染，可以在任意线程调用
+     * targetFps:目标帧率，<=0代表跟随屏幕刷新率
+     * */
+    public void start(final int targetFps) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTargetIntervalNanos = targetFps > 0 ? 1000000000L / targetFps : 0;
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+                mLastVsyncNanos = 0;
+                mLastFrameNanos = 0;
+                mFrameInFlight.set(false);
+                Choreographer.getInstance().postFrameCallback(GLFrameScheduler.this);
+                MLog.log("GLFrameScheduler start targetFps " + targetFps);
+            }
+        });
+    }
+
+    // 停止连续渲染，可以在任意线程调用
+    public void stop() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) {
+                    return;
+                }
+                mRunning = false;
+                Choreographer.getInstance().removeFrameCallback(GLFrameScheduler.this);
+                MLog.log("GLFrameScheduler stop");
+            }
+        });
+    }
+
+    // 渲染线程绘制完一帧后(swapBuffers之后)调用，这样下一个vsync才能触发新的一帧
+    public void frameDone() {
+        mFrameInFlight.set(false);
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        // 先注册下一个vsync的回调，Choreographer的回调是一次性的
+        Choreographer.getInstance().postFrameCallback(this);
+
+        if (mLastVsyncNanos != 0 && frameTimeNanos > mLastVsyncNanos) {
+            mVsyncPeriodNanos = frameTimeNanos - mLastVsyncNanos;
+        }
+        mLastVsyncNanos = frameTimeNanos;
+
+        // 降帧：距离上一帧的时间还不到目标间隔就跳过这个vsync；留出半个vsync周期的余量，避免vsync时间戳的抖动导致多跳一帧
+        if (mTargetIntervalNanos > 0 && mLastFrameNanos != 0
+                && frameTimeNanos - mLastFrameNanos < mTargetIntervalNanos - mVsyncPeriodNanos / 2) {
+            return;
+        }
+
+        // 上一帧还没有绘制完，跳过这个vsync
+        if (!mFrameInFlight.compareAndSet(false,true)) {
+            mDroppedFrames++;
+            return;
+        }
+
+        mLastFrameNanos = frameTimeNanos;
+        mCallback.onFrame(frameTimeNanos);
+    }
+}
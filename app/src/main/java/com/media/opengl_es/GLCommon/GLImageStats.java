@@ -0,0 +1,408 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/** gpu上统计图像的亮度信息(最小值，最大值，平均值和直方图)，只回读很少的像素，不需要通过GLSurface.framebufferToBitmap()回读整帧
+ * 1、最小/最大/平均值：每一次缩小一半(向上取整)，每个像素取上一级2x2四个像素，r记录最小值，g记录最大值，b记录平均值；第一次缩小时
+ * 同时把颜色换算为亮度(0.299r + 0.587g + 0.114b)；缩小到不超过4x4后回读，在cpu上完成最后的合并
+ * 2、直方图：把输入按照histogramSize x histogramSize的网格采样，每个采样点的亮度写入一个小的fbo，回读后在cpu上分成256个区间统计
+ * (gles2.0不保证顶点着色器能读取纹理，8位的fbo用混合累加计数也会溢出，所以不用点精灵分散累加的方式)
+ * 3、延迟回读(默认开启)：最后一级和直方图的fbo各有两份交替使用，这一帧渲染，下一帧再回读，回读时gpu一般已经执行完成，不会阻塞渲染
+ * 线程等待；结果比输入晚一帧，自动曝光这类逐帧调整的场景足够了
+ * 注：中间结果为8位，每一级平均值有半个色阶的舍入误差；宽高为奇数时边缘的像素会重复计算一次；所有函数都必须在渲染线程中调用
+ *
+ * 使用方式：
+ * GLImageStats stats = new GLImageStats(engine.getResourceManager(),engine.getQuadBuffer());
+ * if (stats.update(frameBuffer.getTexture(),width,height)) {
+ *     float mean = stats.getMean();
+ * }
+ * */
+public class GLImageStats {
+
+    // 缩小到宽高都不超过这个值后回读
+    static final int READBACK_SIZE = 4;
+    public static final int HISTOGRAM_BINS = 256;
+
+    private final GLResourceManager mManager;
+    private final GLVertexBuffer mQuad;
+
+    private int mHistogramSize = 64;
+    private boolean mDeferred = true;
+
+    // 缩小的中间结果，不包括最后一级
+    private final ArrayList<GLFrameBuffer> mLevels = new ArrayList<>();
+    // 最后一级和直方图采样的fbo，延迟回读时两份交替使用
+    private final GLFrameBuffer[] mFinal = new GLFrameBuffer[2];
+    private final GLFrameBuffer[] mHistogramTarget = new GLFrameBuffer[2];
+    // 每一份中是否有还没有回读的结果
+    private final boolean[] mPending = new boolean[2];
+    private int mSlot;
+
+    private GLProgram mLumaProgram;
+    private GLProgram mReduceProgram;
+    private GLProgram mSampleProgram;
+
+    // 回读用的缓冲区，重复使用
+    private ByteBuffer mReadBuffer;
+
+    // 最近一次回读的结果
+    private final float[] mResult = new float[3];
+    private final int[] mHistogram = new int[HISTOGRAM_BINS];
+    private int mHistogramSamples;
+    private boolean mValid;
+    private long mReadbackBytes;
+
+    /** manager:中间fbo和着色器程序登记到的资源管理器
+     * quad:全屏四边形，格式与GLRenderEngine.getQuadBuffer()相同
+     * */
+    public GLImageStats(GLResourceManager manager,GLVertexBuffer quad) {
+        mManager = manager;
+        mQuad = quad;
+    }
+
+    /** 直方图的采样网格大小，采样点数为size*size，0代表不统计直方图；默认64(4096个采样点，回读16KB)
+     * */
+    public void setHistogramSize(int size) {
+        mHistogramSize = Math.max(0,size);
+    }
+
+    /** deferred:true则结果晚一帧，回读不会等待gpu；false则每次update()都等待当前输入的结果
+     * */
+    public void setDeferred(boolean deferred) {
+        if (deferred != mDeferred) {
+            mDeferred = deferred;
+            mPending[0] = false;
+            mPending[1] = false;
+        }
+    }
+
+    /** 统计texture的亮度
+     * texture:输入纹理(GL_TEXTURE_2D)，width,height:输入纹理的大小
+     * return:是否有可用的结果，延迟回读时第一次调用返回false
+     * */
+    public boolean update(int texture,int width,int height) {
+        int slot = mSlot;
+        prepare(slot,width,height);
+        mQuad.bind();
+
+        // 逐级缩小，第一级同时换算亮度，最后一级写入当前这一份的fbo
+        GLProgram program = mLumaProgram;
+        int srcTexture = texture;
+        int srcWidth = width;
+        int srcHeight = height;
+        int levels = mLevels.size();
+        for (int i = 0; i <= levels; i++) {
+            GLFrameBuffer dst = i < levels ? mLevels.get(i) : mFinal[slot];
+            drawReduce(program,srcTexture,srcWidth,srcHeight,dst);
+            program = mReduceProgram;
+            srcTexture = dst.getTexture();
+            srcWidth = dst.getWidth();
+            srcHeight = dst.getHeight();
+        }
+
+        if (mHistogramSize > 0) {
+            GLFrameBuffer dst = mHistogramTarget[slot];
+            GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,dst.getFramebuffer());
+            GLDispatch.glViewport(0,0,dst.getWidth(),dst.getHeight());
+            mSampleProgram.useprogram();
+            bindQuad(mSampleProgram);
+            bindTexture(mSampleProgram,texture);
+            GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+        }
+        mQuad.unbind();
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        mPending[slot] = true;
+
+        // 延迟回读时读取上一帧的那一份，这一帧的留到下一次
+        int readSlot = mDeferred ? 1 - slot : slot;
+        if (mDeferred) {
+            mSlot = 1 - slot;
+        }
+        if (mPending[readSlot]) {
+            readback(readSlot);
+            mPending[readSlot] = false;
+            mValid = true;
+        }
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,0);
+        return mValid;
+    }
+
+    // 按照输入大小准备各级fbo；只有最后一级和直方图的fbo按份区分
+    private void prepare(int slot,int width,int height) {
+        int w = width;
+        int h = height;
+        int count = 0;
+        while (true) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            if (w <= READBACK_SIZE && h <= READBACK_SIZE) {
+                break;
+            }
+            if (count < mLevels.size()) {
+                mLevels.get(count).resize(w,h);
+            } else {
+                mLevels.add(newFrameBuffer(w,h,"GLImageStats level " + (count + 1)));
+            }
+            count++;
+        }
+        // 输入变小后多余的级别不再需要
+        while (mLevels.size() > count) {
+            mLevels.remove(mLevels.size() - 1).destroy();
+        }
+        if (mFinal[slot] == null) {
+            mFinal[slot] = newFrameBuffer(w,h,"GLImageStats final");
+        } else {
+            mFinal[slot].resize(w,h);
+        }
+        if (mHistogramSize > 0) {
+            if (mHistogramTarget[slot] == null) {
+                mHistogramTarget[slot] = newFrameBuffer(mHistogramSize,mHistogramSize,"GLImageStats histogram");
+            } else {
+                mHistogramTarget[slot].resize(mHistogramSize,mHistogramSize);
+            }
+        }
+
+        if (mLumaProgram == null) {
+            mLumaProgram = new GLProgram(mManager,VERTEX_SHADER,"#define LUMA\n" + REDUCE_FRAGMENT_SHADER);
+            mLumaProgram.setOwner("GLImageStats luma");
+            mReduceProgram = new GLProgram(mManager,VERTEX_SHADER,REDUCE_FRAGMENT_SHADER);
+            mReduceProgram.setOwner("GLImageStats reduce");
+            mSampleProgram = new GLProgram(mManager,VERTEX_SHADER,SAMPLE_FRAGMENT_SHADER);
+            mSampleProgram.setOwner("GLImageStats sample");
+        }
+    }
+
+    private GLFrameBuffer newFrameBuffer(int width,int height,String owner) {
+        GLFrameBuffer fbo = new GLFrameBuffer(mManager,width,height,true);
+        fbo.setOwner(owner);
+        return fbo;
+    }
+
+    // 缩小一半，着色器根据gl_FragCoord计算上一级对应的2x2像素，不依赖四边形的纹理坐标
+    private void drawReduce(GLProgram program,int texture,int srcWidth,int srcHeight,GLFrameBuffer dst) {
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,dst.getFramebuffer());
+        GLDispatch.glViewport(0,0,dst.getWidth(),dst.getHeight());
+        program.useprogram();
+        bindQuad(program);
+        bindTexture(program,texture);
+        GLDispatch.glUniform2f(program.uniformaLocationForname("texelSize"),1f / srcWidth,1f / srcHeight);
+        GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+    }
+
+    private void bindQuad(GLProgram program) {
+        int position = program.attributeLocationForname("position");
+        int texcoord = program.attributeLocationForname("texcoord");
+        GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,0);
+        GLDispatch.glEnableVertexAttribArray(position);
+        if (texcoord >= 0) {
+            GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,GLRenderEngine.QUAD_TEXCOORD_OFFSET);
+            GLDispatch.glEnableVertexAttribArray(texcoord);
+        }
+    }
+
+    private void bindTexture(GLProgram program,int texture) {
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glUniform1i(program.uniformaLocationForname("texture"),0);
+    }
+
+    private void readback(int slot) {
+        GLFrameBuffer fin = mFinal[slot];
+        int finalPixels = fin.getWidth() * fin.getHeight();
+        // 直方图的fbo可能是在修改采样网格大小之前渲染的，按照它自己的大小回读
+        GLFrameBuffer hist = mHistogramSize > 0 ? mHistogramTarget[slot] : null;
+        int samples = hist != null ? hist.getWidth() * hist.getHeight() : 0;
+        int capacity = Math.max(finalPixels,samples) * 4;
+        if (mReadBuffer == null || mReadBuffer.capacity() < capacity) {
+            mReadBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        GLDispatch.glPixelStorei(GLES20.GL_PACK_ALIGNMENT,1);
+
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,fin.getFramebuffer());
+        mReadBuffer.clear();
+        GLDispatch.glReadPixels(0,0,fin.getWidth(),fin.getHeight(),GLES20.GL_RGBA,GLES20.GL_UNSIGNED_BYTE,mReadBuffer);
+        reduceReadback(mReadBuffer,finalPixels,mResult);
+        mReadbackBytes = finalPixels * 4;
+
+        if (samples > 0) {
+            GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,hist.getFramebuffer());
+            mReadBuffer.clear();
+            GLDispatch.glReadPixels(0,0,hist.getWidth(),hist.getHeight(),GLES20.GL_RGBA,GLES20.GL_UNSIGNED_BYTE,mReadBuffer);
+            binHistogram(mReadBuffer,samples,mHistogram);
+            mHistogramSamples = samples;
+            mReadbackBytes += samples * 4;
+        } else {
+            mHistogramSamples = 0;
+        }
+    }
+
+    /** 合并最后一级回读的像素：r为最小值，g为最大值，b为平均值，每个像素4字节(RGBA)
+     * out:[最小值，最大值，平均值]，范围0~1
+     * */
+    static void reduceReadback(ByteBuffer pixels,int count,float[] out) {
+        int min = 255;
+        int max = 0;
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min,pixels.get(i * 4) & 0xff);
+            max = Math.max(max,pixels.get(i * 4 + 1) & 0xff);
+            sum += pixels.get(i * 4 + 2) & 0xff;
+        }
+        out[0] = min / 255f;
+        out[1] = max / 255f;
+        out[2] = count > 0 ? sum / (255f * count) : 0;
+    }
+
+    // 直方图采样的每个像素r通道为亮度，按照0~255分到256个区间
+    static void binHistogram(ByteBuffer pixels,int count,int[] bins) {
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            bins[pixels.get(i * 4) & 0xff]++;
+        }
+    }
+
+    // 最近一次结果是否可用
+    public boolean isValid() {
+        return mValid;
+    }
+
+    // 亮度的最小值，0~1
+    public float getMin() {
+        return mResult[0];
+    }
+
+    public float getMax() {
+        return mResult[1];
+    }
+
+    public float getMean() {
+        return mResult[2];
+    }
+
+    /** 亮度直方图，256个区间，返回的是内部数组，下一次update()后会被覆盖
+     * */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    public int getHistogramSampleCount() {
+        return mHistogramSamples;
+    }
+
+    /** 直方图的分位数，比如fraction为0.99时返回99%的采样点都不超过的亮度(0~1)，自动曝光用来判断高光是否过曝
+     * */
+    public float getPercentile(float fraction) {
+        if (mHistogramSamples == 0) {
+            return 0;
+        }
+        int limit = (int)Math.ceil(fraction * mHistogramSamples);
+        int count = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            count += mHistogram[i];
+            if (count >= limit) {
+                return i / 255f;
+            }
+        }
+        return 1;
+    }
+
+    // 最近一次回读的字节数
+    public long getReadbackBytes() {
+        return mReadbackBytes;
+    }
+
+    public void dump() {
+        MLog.log("GLImageStats levels " + (mLevels.size() + 1) + " min " + getMin() + " max " + getMax()
+                + " mean " + getMean() + " samples " + mHistogramSamples + " readback " + mReadbackBytes + "B");
+    }
+
+    // 释放所有fbo和程序
+    public void release() {
+        for (GLFrameBuffer level : mLevels) {
+            level.destroy();
+        }
+        mLevels.clear();
+        for (int i = 0; i < 2; i++) {
+            if (mFinal[i] != null) {
+                mFinal[i].destroy();
+                mFinal[i] = null;
+            }
+            if (mHistogramTarget[i] != null) {
+                mHistogramTarget[i].destroy();
+                mHistogramTarget[i] = null;
+            }
+            mPending[i] = false;
+        }
+        if (mLumaProgram != null) {
+            mLumaProgram.destroy();
+            mReduceProgram.destroy();
+            mSampleProgram.destroy();
+            mLumaProgram = null;
+            mReduceProgram = null;
+            mSampleProgram = null;
+        }
+        mValid = false;
+    }
+
+    private static final String VERTEX_SHADER = "attribute vec4 position;\n" +
+            " attribute vec4 texcoord;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     gl_Position = position;\n" +
+            "     tex_coord = texcoord.xy;\n" +
+            " }";
+
+    /** 目标像素(i,j)对应上一级的(2i,2j)~(2i+1,2j+1)四个像素，超出边缘的按照GL_CLAMP_TO_EDGE取边缘像素
+     * 定义了LUMA时输入为颜色，先换算为亮度；否则输入的r,g,b分别为最小值，最大值，平均值
+     * */
+    private static final String REDUCE_FRAGMENT_SHADER = "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            " precision highp float;\n" +
+            " #else\n" +
+            " precision mediump float;\n" +
+            " #endif\n" +
+            " uniform sampler2D texture;\n" +
+            " uniform vec2 texelSize;\n" +
+            " \n" +
+            " vec3 fetch(vec2 texel){\n" +
+            "     vec4 c = texture2D(texture,texel * texelSize);\n" +
+            " #ifdef LUMA\n" +
+            "     float y = dot(c.rgb,vec3(0.299,0.587,0.114));\n" +
+            "     return vec3(y,y,y);\n" +
+            " #else\n" +
+            "     return c.rgb;\n" +
+            " #endif\n" +
+            " }\n" +
+            " \n" +
+            " void main(){\n" +
+            "     vec2 base = (gl_FragCoord.xy - 0.5) * 2.0 + 0.5;\n" +
+            "     vec3 a = fetch(base);\n" +
+            "     vec3 b = fetch(base + vec2(1.0,0.0));\n" +
+            "     vec3 c = fetch(base + vec2(0.0,1.0));\n" +
+            "     vec3 d = fetch(base + vec2(1.0,1.0));\n" +
+            "     float lo = min(min(a.r,b.r),min(c.r,d.r));\n" +
+            "     float hi = max(max(a.g,b.g),max(c.g,d.g));\n" +
+            "     float mean = (a.b + b.b + c.b + d.b) * 0.25;\n" +
+            "     gl_FragColor = vec4(lo,hi,mean,1.0);\n" +
+            " }";
+
+    // 直方图采样，每个像素输出网格位置上输入的亮度
+    private static final String SAMPLE_FRAGMENT_SHADER = "precision mediump float;\n" +
+            " uniform sampler2D texture;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     float y = dot(texture2D(texture,tex_coord).rgb,vec3(0.299,0.587,0.114));\n" +
+            "     gl_FragColor = vec4(y,y,y,1.0);\n" +
+            " }";
+}
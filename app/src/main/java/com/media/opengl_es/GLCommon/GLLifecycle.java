@@ -0,0 +1,70 @@
+package com.media.opengl_es.GLCommon;
+
+import com.media.opengl_es.utils.MLog;
+
+/** 渲染视图的生命周期管理
+ * 1、前后台切换时尽量保留EGLContext，不释放任何gpu资源，回到前台后直接绘制(GLSurfaceView需要setPreserveEGLContextOnPause(true)，
+ * 自定义渲染线程在Surface销毁时只释放EGLSurface)
+ * 2、部分设备在后台时仍然会销毁EGLContext，这时候需要检测真正的上下文丢失：GLSurfaceView会重新回调onSurfaceCreated()，自定义渲染线程则是
+ * eglSwapBuffers()返回EGL_CONTEXT_LOST；检测到后通知GLResourceManager，登记的资源在下次使用时根据记录的参数延迟重建
+ * 3、统计从onResume()到恢复后第一帧绘制完成的耗时
+ * */
+public class GLLifecycle {
+
+    private final GLResourceManager mResourceManager = new GLResourceManager();
+    // 是否已经创建过上下文
+    private boolean mContextCreated;
+    private int mContextLostCount;
+    // onResume()的时间，第一帧绘制完成后清零
+    private volatile long mResumeNanos;
+    private volatile long mResumeLatencyNanos = -1;
+
+    public GLResourceManager getResourceManager() {
+        return mResourceManager;
+    }
+
+    // UI线程
+    public void onPause() {
+        mResumeNanos = 0;
+    }
+
+    // UI线程
+    public void onResume() {
+        mResumeNanos = System.nanoTime();
+    }
+
+    /** GL线程，新的EGLContext创建完成后调用
+     * return:true代表之前已经有过上下文，即上下文丢失后重建的
+     * */
+    public boolean onContextCreated() {
+        if (!mContextCreated) {
+            mContextCreated = true;
+            return false;
+        }
+        mContextLostCount++;
+        mResourceManager.onContextLost();
+        return true;
+    }
+
+    // GL线程，每一帧绘制完成后调用，同时推进资源管理器的帧序号
+    public void onFrameDrawn() {
+        mResourceManager.nextFrame();
+        long resume = mResumeNanos;
+        if (resume == 0) {
+            return;
+        }
+        mResumeNanos = 0;
+        mResumeLatencyNanos = System.nanoTime() - resume;
+        MLog.log("resume to first frame " + (mResumeLatencyNanos / 1000) + "us, context lost count " + mContextLostCount);
+    }
+
+    // 最近一次从onResume()到第一帧的耗时，单位毫秒，-1代表还没有统计到
+    public float getResumeLatencyMs() {
+        long latency = mResumeLatencyNanos;
+        return latency < 0 ? -1 : latency / 1000000f;
+    }
+
+    public int getContextLostCount() {
+        return mContextLostCount;
+    }
+}
@@ -0,0 +1,259 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.view.Surface;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 以SurfaceTexture为生产者的输入源，纹理类型为GL_TEXTURE_EXTERNAL_OES
+ * 1、相机(Camera/Camera2)或者MediaCodec解码器将数据渲染到getSurface()返回的Surface上，数据直接进入到OES纹理中，整个过程没有cpu拷贝
+ * 2、每当生产者生产了一帧，onFrameAvailable()就会回调(回调线程为创建SurfaceTexture的线程的Looper，没有则为主线程)，这里只记录待处理帧数，
+ * 然后通知渲染线程，真正的updateTexImage()在GL线程中的update()里面执行
+ * 3、丢弃旧帧策略：如果渲染跟不上生产的速度，update()会一次把排队的帧全部取出，只保留最新的一帧，旧的帧直接丢弃
+ * 4、SurfaceTexture给出的纹理坐标变换矩阵通过getTransformMatrix()传给下游，在顶点着色器中对纹理坐标进行变换
+ *
+ * 使用流程：
+ * GL线程：source = new GLOESTextureSource(w,h); 然后把source.getSurface()交给相机或者MediaCodec
+ * GL线程每次渲染前：if (source.update()) { source.draw(); 或者 source.drawToFrameBuffer(fbo); }
+ * */
+public class GLOESTextureSource extends GLRenderSourceBase {
+
+    // 有新的帧到来时回调，一般用来唤醒渲染线程
+    public interface OnFrameAvailableListener {
+        void onFrameAvailable(GLOESTextureSource source);
+    }
+
+    private int mTexture;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mSurface;
+    private OnFrameAvailableListener mListener;
+
+    // 生产者已经送过来但是还未被updateTexImage()取出的帧数
+    private final AtomicInteger mPendingFrames = new AtomicInteger();
+    // 由于渲染跟不上而丢弃的帧数
+    private long mDroppedFrames;
+    // 当前纹理中这一帧的时间戳，单位纳秒
+    private long mTimestamp;
+
+    // 用于绘制OES纹理的着色器程序，第一次绘制时创建
+    private GLProgram mProgram;
+    private FloatBuffer vbuffer;
+    private FloatBuffer fbuffer;
+
+    /** 必须在GL线程中调用，因为要创建OES纹理
+     * width,height:生产者输出的缓冲区大小
+     * */
+    public GLOESTextureSource(int width,int height) {
+        this(width,height,null);
+    }
+
+    /** handler:onFrameAvailable()回调所在的线程，为null则使用创建SurfaceTexture的线程的Looper，没有Looper则为主线程
+     * */
+    public GLOESTextureSource(int width,int height,Handler handler) {
+        mWidth = width;
+        mHeight = height;
+
+        IntBuffer texIntbuffer = IntBuffer.allocate(1);
+        GLES20.glGenTextures(1,texIntbuffer);
+        mTexture = texIntbuffer.get(0);
+        if (mTexture == 0) {
+            MLog.log("glGenTextures fail 0");
+        }
+
+        // OES纹理不支持mipmap，只能用GL_NEAREST或者GL_LINEAR，环绕方式只能用GL_CLAMP_TO_EDGE
+        GLDispatch.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,mTexture);
+        GLDispatch.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,0);
+
+        mSurfaceTexture = new SurfaceTexture(mTexture);
+        mSurfaceTexture.setDefaultBufferSize(width,height);
+        SurfaceTexture.OnFrameAvailableListener listener = new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                mPendingFrames.incrementAndGet();
+                OnFrameAvailableListener l = mListener;
+                if (l != null) {
+                    l.onFrameAvailable(GLOESTextureSource.this);
+                }
+            }
+        };
+        if (handler != null) {
+            mSurfaceTexture.setOnFrameAvailableListener(listener,handler);
+        } else {
+            mSurfaceTexture.setOnFrameAvailableListener(listener);
+        }
+    }
+
+    public void setOnFrameAvailableListener(OnFrameAvailableListener listener) {
+        mListener = listener;
+    }
+
+    // 交给相机或者MediaCodec作为输出的Surface
+    public Surface getSurface() {
+        if (mSurface == null) {
+            mSurface = new Surface(mSurfaceTexture);
+        }
+        return mSurface;
+    }
+
+    public SurfaceTexture getSurfaceTexture() {
+        return mSurfaceTexture;
+    }
+
+    // 是否有还未取出的帧，可以在任意线程调用
+    public boolean hasPendingFrame() {
+        return mPendingFrames.get() > 0;
+    }
+
+    /** 在GL线程中调用，将最新的一帧更新到OES纹理中
+     * 如果渲染跟不上，排队的帧会被依次取出，只有最后一帧留在纹理中，前面的帧全部丢弃，生产者也不会因为缓冲区被占满而阻塞
+     * return:true代表纹理内容有更新
+     * */
+    @Override
+    public boolean update() {
+        if (mSurfaceTexture == null) {
+            return false;
+        }
+        int pending = mPendingFrames.getAndSet(0);
+        if (pending == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < pending; i++) {
+            mSurfaceTexture.updateTexImage();
+        }
+        if (pending > 1) {
+            mDroppedFrames += pending - 1;
+        }
+
+        mSurfaceTexture.getTransformMatrix(mTransformMatrix);
+        mTimestamp = mSurfaceTexture.getTimestamp();
+        return true;
+    }
+
+    @Override
+    public int getTexture() {
+        return mTexture;
+    }
+
+    @Override
+    public int getTextureTarget() {
+        return GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+    }
+
+    // 当前纹理中这一帧的时间戳，单位纳秒
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    // 由于渲染跟不上而丢弃的帧数
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /** 将OES纹理绘制到当前绑定的framebuffer上(可以是屏幕，也可以是fbo)，调用前要先设置好glViewport
+     * */
+    public void draw() {
+        if (mProgram == null) {
+            initProgram();
+        }
+        mProgram.useprogram();
+
+        int position = mProgram.attributeLocationForname("position");
+        int texcoord = mProgram.attributeLocationForname("texcoord");
+        int texMatrix = mProgram.uniformaLocationForname("texMatrix");
+        int texture = mProgram.uniformaLocationForname("texture");
+        GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,0,vbuffer);
+        GLDispatch.glEnableVertexAttribArray(position);
+        GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,0,fbuffer);
+        GLDispatch.glEnableVertexAttribArray(texcoord);
+
+        // 在着色器中应用SurfaceTexture给出的变换矩阵
+        GLDispatch.glUniformMatrix4fv(texMatrix,1,false,mTransformMatrix,0);
+
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,mTexture);
+        GLDispatch.glUniform1i(texture,0);
+
+        GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+
+        GLDispatch.glDisableVertexAttribArray(position);
+        GLDispatch.glDisableVertexAttribArray(texcoord);
+        GLDispatch.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,0);
+    }
+
+    /** 将OES纹理转换到fbo的GL_TEXTURE_2D纹理中，供只支持sampler2D的下游滤镜使用，整个过程都在gpu中完成
+     * 注：绘制完成后会解绑fbo，重新绑定到默认的framebuffer
+     * */
+    public void drawToFrameBuffer(GLFrameBuffer frameBuffer) {
+        frameBuffer.activeFrameBuffer();
+        GLDispatch.glViewport(0,0,frameBuffer.getWidth(),frameBuffer.getHeight());
+        draw();
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,0);
+    }
+
+    private void initProgram() {
+        // 纹理坐标要经过SurfaceTexture的变换矩阵变换，OES纹理必须用samplerExternalOES
+        int variant = GLShaderLibrary.VARIANT_EXTERNAL_OES | GLShaderLibrary.VARIANT_TEX_MATRIX;
+        mProgram = new GLProgram(GLShaderLibrary.vertexSource(variant),GLShaderLibrary.fragmentSource(variant));
+
+        vbuffer = ByteBuffer.allocateDirect(verdata.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        vbuffer.put(verdata).position(0);
+        fbuffer = ByteBuffer.allocateDirect(texdata.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        fbuffer.put(texdata).position(0);
+    }
+
+    @Override
+    public void release() {
+        mListener = null;
+        if (mProgram != null) {
+            mProgram.destroy();
+            mProgram = null;
+        }
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (mSurfaceTexture != null) {
+            mSurfaceTexture.release();
+            mSurfaceTexture = null;
+        }
+        if (mTexture != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(mTexture).position(0);
+            GLES20.glDeleteTextures(1,buf);
+            mTexture = 0;
+        }
+    }
+
+    // 顶点坐标
+    private static final float verdata[] = {
+            -1.0f,-1.0f,
+            1.0f,-1.0f,
+            -1.0f,1.0f,
+            1.0f,1.0f
+    };
+    // 纹理坐标，SurfaceTexture的变换矩阵是基于opengl es纹理坐标系(左下角为原点)的，所以这里不需要上下翻转
+    private static final float texdata[] = {
+            0.0f,0.0f,
+            1.0f,0.0f,
+            0.0f,1.0f,
+            1.0f,1.0f,
+    };
+}
@@ -7,9 +7,14 @@ import com.media.opengl_es.utils.MLog;
 
 import java.nio.IntBuffer;
 
-public class GLProgram {
+public class GLProgram extends GLResource {
 
     private int program;
+    // 记录着色器源码，上下文丢失后用来重新编译
+    private final String mVShaderString;
+    private final String mFShaderString;
+    // 接管的已经链接好的程序，只在第一次onCreate()时使用
+    private int mAdopted;
 
     /**
      *  根据GLSL编写的顶点着色器和片段着色器初始化；初始化完成后，最终生成的程序将作为app与glsl交
@@ -21,9 +26,43 @@ public class GLProgram {
      *  fString:片段着色器
      */
     public GLProgram(String vShaderString, String fShaderString) {
+        this(null,vShaderString,fShaderString);
+    }
+
+    /** manager:资源管理器，上下文丢失后下次使用时会根据着色器源码重新编译
+     * */
+    public GLProgram(GLResourceManager manager,String vShaderString, String fShaderString) {
+        super(manager,CATEGORY_PROGRAM);
+        mVShaderString = vShaderString;
+        mFShaderString = fShaderString;
+        create();
+    }
+
+    /** 接管另一个线程(共享上下文)中编译好的程序，在当前线程中登记到资源管理器，登记和显存回收都只发生在当前线程
+     * compiled:不参与管理(manager为null)的程序，接管后不能再使用
+     * */
+    GLProgram(GLResourceManager manager,GLProgram compiled) {
+        super(manager,CATEGORY_PROGRAM);
+        if (compiled.mManager != null) {
+            throw new RuntimeException("can only adopt an unmanaged program");
+        }
+        mVShaderString = compiled.mVShaderString;
+        mFShaderString = compiled.mFShaderString;
+        mAdopted = compiled.program;
+        compiled.program = 0;
+        create();
+    }
+
+    @Override
+    protected void onCreate() {
+        if (mAdopted != 0) {
+            program = mAdopted;
+            mAdopted = 0;
+            return;
+        }
         int vShader,fShader;
-        vShader = initShader(vShaderString,GLES20.GL_VERTEX_SHADER);
-        fShader = initShader(fShaderString,GLES20.GL_FRAGMENT_SHADER);
+        vShader = initShader(mVShaderString,GLES20.GL_VERTEX_SHADER);
+        fShader = initShader(mFShaderString,GLES20.GL_FRAGMENT_SHADER);
 
         program = GLES20.glCreateProgram();
         if (program == 0) {
@@ -50,6 +89,9 @@ public class GLProgram {
             MLog.log("link program fail");
         }
 
+        // 链接完成后着色器对象就不再需要了，标记删除，随着程序一起释放
+        GLES20.glDeleteShader(vShader);
+        GLES20.glDeleteShader(fShader);
     }
 
     private int initShader(String shaderString,int type) {
@@ -94,6 +136,7 @@ public class GLProgram {
      *
      */
     public int attributeLocationForname(String name) {
+        ensureValid();
         return GLES20.glGetAttribLocation(program,name);
     }
 
@@ -103,22 +146,42 @@ public class GLProgram {
      *  return:成功返回>0的整数，失败返回-1
      */
     public int uniformaLocationForname(String name) {
+        ensureValid();
         return GLES20.glGetUniformLocation(program,name);
     }
 
+    // 程序id，上下文丢失重新编译后会变化，缓存变量位置的地方用它判断是否需要重新查询
+    public int getProgramId() {
+        ensureValid();
+        return program;
+    }
+
     // 让生成的最终程序处于运行状态,这样最终调用绘图指令的时候前面设置的这些参数才会真正执行
     public void useprogram() {
+        ensureValid();
         if (program == 0) {
             MLog.log("program == 0");
             return;
         }
-        GLES20.glUseProgram(program);
+        GLDispatch.glUseProgram(program);
     }
 
-    public void destroy() {
+    // 链接后的程序由驱动管理，大小无法获取，不计入显存统计
+    @Override
+    public long getByteSize() {
+        return 0;
+    }
+
+    @Override
+    protected void onRelease() {
         if (program > 0) {
             GLES20.glDeleteProgram(program);
             program = 0;
         }
     }
+
+    @Override
+    protected void onContextLost() {
+        program = 0;
+    }
 }
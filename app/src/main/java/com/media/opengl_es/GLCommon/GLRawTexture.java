@@ -0,0 +1,290 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** 原始像素纹理文件，跳过jpg/png的解码，直接内存映射后上传
+ * 1、文件格式(小端序)：
+ * 0  魔数 'GLRT'
+ * 4  版本号
+ * 8  宽
+ * 12 高
+ * 16 像素格式 FORMAT_XXX
+ * 20 mipmap层数(>=1)
+ * 24 保留
+ * 28 保留
+ * 32 从第0层开始依次紧密排列的像素数据，第i层的宽高为max(1,宽>>i) max(1,高>>i)，行之间没有对齐填充
+ * 2、write()把解码后的Bitmap写成该格式(只需要做一次，比如第一次启动时)；map()用FileChannel.map()映射文件，映射的内存直接交给glTexImage2D()，
+ * 不经过java堆，也没有解码，数据由系统按需从page cache中换入
+ * 3、映射的数据作为创建参数被记录下来，上下文丢失后下次使用时重新上传
+ *
+ * 注：write()，map()可以在任意线程调用，其它函数都必须在GL线程中调用
+ * */
+public class GLRawTexture extends GLResource {
+
+    // RGBA每个通道8位，与Bitmap.Config.ARGB_8888在内存中的字节序一致(预乘alpha)
+    public static final int FORMAT_RGBA8888 = 0;
+    // RGB565，不透明的图片可以节省一半的空间
+    public static final int FORMAT_RGB565 = 1;
+
+    private static final int MAGIC = 0x54524c47;    // 'GLRT'的小端序
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    /** 映射后的文件
+     * */
+    public static class Data {
+        public final int width;
+        public final int height;
+        public final int format;
+        public final int mipCount;
+        // 整个文件的映射，包括文件头
+        final ByteBuffer buffer;
+
+        Data(int width,int height,int format,int mipCount,ByteBuffer buffer) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.mipCount = mipCount;
+            this.buffer = buffer;
+        }
+    }
+
+    private int texture;
+    private final Data mData;
+
+    public GLRawTexture(GLResourceManager manager,Data data) {
+        super(manager,CATEGORY_TEXTURE);
+        mData = data;
+        create();
+    }
+
+    /** 映射一个原始像素纹理文件
+     * return:文件不存在，格式不正确或者大小不对返回null，调用者应该重新解码并调用write()
+     * */
+    public static Data map(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                MLog.log("GLRawTexture invalid file " + file);
+                return null;
+            }
+            int width = buffer.getInt(8);
+            int height = buffer.getInt(12);
+            int format = buffer.getInt(16);
+            int mipCount = buffer.getInt(20);
+            if ((format != FORMAT_RGBA8888 && format != FORMAT_RGB565) || mipCount < 1
+                    || HEADER_SIZE + dataSize(width,height,format,mipCount) != buffer.capacity()) {
+                MLog.log("GLRawTexture corrupted file " + file);
+                return null;
+            }
+            return new Data(width,height,format,mipCount,buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /** 将解码后的图片写成原始像素纹理文件，然后映射返回
+     * format:FORMAT_XXX
+     * mipmap:是否同时写入所有的mipmap层级(在cpu中逐级缩小)；OpenGL ES 2.0中非2的幂次方的图片不能使用mipmap，这种情况会被忽略
+     * */
+    public static Data write(Bitmap bitmap,int format,boolean mipmap,File file) throws IOException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int mipCount = 1;
+        if (mipmap && GLTexture.isPowerOfTwo(width,height)) {
+            while ((width >> mipCount) > 0 || (height >> mipCount) > 0) {
+                mipCount++;
+            }
+        }
+        Bitmap.Config config = format == FORMAT_RGB565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean renamed = false;
+        // 写入或者重命名失败(比如磁盘满，缩放时内存不足)时删除写了一半的临时文件
+        try {
+            writeLevels(bitmap,format,config,width,height,mipCount,tmp);
+            renamed = tmp.renameTo(file);
+        } finally {
+            if (!renamed) {
+                tmp.delete();
+            }
+        }
+        if (!renamed) {
+            throw new IOException("rename fail " + file);
+        }
+        return map(file);
+    }
+
+    private static void writeLevels(Bitmap bitmap,int format,Bitmap.Config config,int width,int height,int mipCount,
+                                    File tmp) throws IOException {
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(format).putInt(mipCount).putInt(0).putInt(0);
+            header.position(0);
+            writeFully(channel,header);
+
+            Bitmap level = bitmap;
+            for (int i = 0; i < mipCount; i++) {
+                if (i > 0) {
+                    Bitmap next = Bitmap.createScaledBitmap(level,Math.max(1,width >> i),Math.max(1,height >> i),true);
+                    if (level != bitmap) {
+                        level.recycle();
+                    }
+                    level = next;
+                }
+                Bitmap pixels = level.getConfig() == config ? level : level.copy(config,false);
+                writeFully(channel,packPixels(pixels,format));
+                if (pixels != level) {
+                    pixels.recycle();
+                }
+            }
+            if (level != bitmap) {
+                level.recycle();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void onCreate() {
+        IntBuffer ids = IntBuffer.allocate(1);
+        GLES20.glGenTextures(1,ids);
+        texture = ids.get(0);
+        if (texture == 0) {
+            MLog.log("glGenTextures fail 0");
+        }
+        boolean mipmap = mData.mipCount > 1;
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,mipmap ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+
+        // 行之间是紧密排列的，RGB565宽为奇数时每行不是4字节对齐，要把解包对齐设置为1
+        GLDispatch.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT,1);
+        int glFormat = mData.format == FORMAT_RGB565 ? GLES20.GL_RGB : GLES20.GL_RGBA;
+        int glType = mData.format == FORMAT_RGB565 ? GLES20.GL_UNSIGNED_SHORT_5_6_5 : GLES20.GL_UNSIGNED_BYTE;
+        int offset = HEADER_SIZE;
+        for (int i = 0; i < mData.mipCount; i++) {
+            int w = Math.max(1,mData.width >> i);
+            int h = Math.max(1,mData.height >> i);
+            ByteBuffer level = mData.buffer.duplicate();
+            level.position(offset);
+            GLDispatch.glTexImage2D(GLES20.GL_TEXTURE_2D,i,glFormat,w,h,0,glFormat,glType,level.slice());
+            offset += w * h * bytesPerPixel(mData.format);
+        }
+        GLDispatch.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT,4);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    // 将纹理绑定到指定的纹理单元 unit:0,1,2...
+    public void bind(int unit) {
+        ensureValid();
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+    }
+
+    // 获取 纹理texture id
+    public int getTexture() {
+        ensureValid();
+        return texture;
+    }
+
+    public int getWidth() {
+        return mData.width;
+    }
+
+    public int getHeight() {
+        return mData.height;
+    }
+
+    @Override
+    public long getByteSize() {
+        return dataSize(mData.width,mData.height,mData.format,mData.mipCount);
+    }
+
+    @Override
+    protected void onRelease() {
+        if (texture != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(texture).position(0);
+            GLES20.glDeleteTextures(1,buf);
+            texture = 0;
+        }
+    }
+
+    @Override
+    protected void onContextLost() {
+        texture = 0;
+    }
+
+    private static int bytesPerPixel(int format) {
+        return format == FORMAT_RGB565 ? 2 : 4;
+    }
+
+    private static long dataSize(int width,int height,int format,int mipCount) {
+        long size = 0;
+        for (int i = 0; i < mipCount; i++) {
+            size += (long)Math.max(1,width >> i) * Math.max(1,height >> i) * bytesPerPixel(format);
+        }
+        return size;
+    }
+
+    // Bitmap每行可能有对齐填充，这里去掉填充得到紧密排列的像素
+    private static ByteBuffer packPixels(Bitmap bitmap,int format) {
+        int rowBytes = bitmap.getRowBytes();
+        int packedRow = bitmap.getWidth() * bytesPerPixel(format);
+        ByteBuffer pixels = ByteBuffer.allocate(rowBytes * bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(pixels);
+        if (rowBytes == packedRow) {
+            pixels.position(0);
+            return pixels;
+        }
+        ByteBuffer packed = ByteBuffer.allocate(packedRow * bitmap.getHeight());
+        byte[] src = pixels.array();
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            packed.put(src,y * rowBytes,packedRow);
+        }
+        packed.position(0);
+        return packed;
+    }
+
+    private static void writeFully(FileChannel channel,ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.GLES20;
+import android.os.SystemClock;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** 渲染引擎：一个渲染线程 + 一个EGLContext，同时为任意多个渲染目标(SurfaceView，TextureView，离屏pbuffer)服务
+ * 1、每个渲染目标只对应一个EGLSurface，绘制时通过eglMakeCurrent()切换到目标的EGLSurface，然后回调目标的onDrawFrame()，最后swapBuffers()；
+ * 所有目标共用一个上下文，纹理，着色器程序等gl对象也就可以在目标之间直接共享
+ * 2、多预览的界面不再需要每个视图各自创建线程和上下文，避免几十个上下文和线程同时争抢gpu驱动
+ * 3、一次调度循环中，所有有绘制请求的目标依次绘制；连续渲染模式下由GLFrameScheduler驱动，每个vsync所有连续渲染的目标各绘制一帧
+ * 4、没有任何窗口时上下文绑定到一个1x1的pbuffer上，这样目标的释放等gl操作随时都可以执行
+ * 5、检测到上下文丢失后重建上下文以及所有目标的EGLSurface，登记到getResourceManager()的资源在下次使用时延迟重建
+ * 6、所有目标共用一个GLShaderLibrary，warmUpShaders()可以在应用启动时就在后台预编译要用到的着色器变体
+ * 7、引擎创建后渲染线程立即初始化EGLDisplay，选择配置，在pbuffer上创建上下文以及共享的全屏四边形顶点缓冲区，不需要等待Surface；
+ * prewarm()在Application.onCreate()中调用，这样Surface可用时只剩下创建EGLSurface这一步，getFirstFrameLatencyNanos()统计了从
+ * Surface可用(attachWindow())到第一帧swapBuffers()完成的耗时
+ *
+ * 注：除了Target的回调(执行于渲染线程)外，所有的函数都必须在主线程中调用(主线程是命令队列唯一的生产者)
+ * */
+public class GLRenderEngine implements GLFrameScheduler.Callback {
+
+    /** 渲染目标，所有回调都执行于渲染线程，回调时上下文已经绑定到该目标的EGLSurface上
+     * */
+    public interface Target {
+        // 第一次绘制前调用一次，在这里创建着色器程序，纹理等资源，资源要登记到engine.getResourceManager()
+        void onCreate(GLRenderEngine engine);
+
+        // EGLSurface创建或者大小改变后调用
+        void onSizeChanged(int width,int height);
+
+        /** 绘制一帧，返回后由引擎调用swapBuffers()，所以需要读取渲染结果(glReadPixels)时要在这里完成
+         * frameTimeNanos:帧时间戳，连续渲染时为vsync的时间戳
+         * */
+        void onDrawFrame(GLSurface surface,long frameTimeNanos);
+
+        // 目标被移除或者引擎退出时调用，在这里释放onCreate()中创建的资源
+        void onRelease();
+    }
+
+    // 渲染目标在引擎中的状态
+    private static class Slot {
+        final Target target;
+        // 以下变量由主线程写入后通过命令队列交给渲染线程，队列保证了可见性
+        Object pendingWindow;
+        int pendingWidth;
+        int pendingHeight;
+        // 连续渲染的目标帧率，-1代表非连续渲染
+        volatile int continuousFps = -1;
+        // attachWindow()调用的时间，用于统计首帧耗时
+        long pendingAttachNanos;
+
+        // 以下变量只在渲染线程中访问
+        GLSurface surface;
+        // window surface对应的Surface或者SurfaceTexture，为null代表离屏目标
+        Object window;
+        boolean created;
+        boolean sizeChanged;
+        long frameNanos;
+        // 连续渲染最近一次绘制的vsync时间，用于按照这个目标自己的帧率跳过vsync
+        long continuousNanos;
+        // 窗口可用的时间，不为0代表窗口绑定后还没有绘制过
+        long attachNanos;
+
+        Slot(Target target) {
+            this.target = target;
+        }
+    }
+
+    private static final int CMD_FRAME = 1;             // 绘制，obj为目标，为null代表vsync帧
+    private static final int CMD_ATTACH_WINDOW = 2;     // 给目标创建window surface
+    private static final int CMD_ATTACH_OFFSCREEN = 3;  // 给目标创建pbuffer
+    private static final int CMD_DETACH_WINDOW = 4;     // 释放目标的window surface，arg为握手序号
+    private static final int CMD_SIZE_CHANGED = 5;      // 目标的大小改变
+    private static final int CMD_REMOVE = 6;            // 移除目标
+    private static final int CMD_QUIT = 7;
+    private static final int CMD_WARM_UP = 8;           // 预编译着色器变体，obj为变体数组
+
+    // GLDispatch统计模式下每隔多少帧输出一次统计
+    private static final int STATS_LOG_INTERVAL = 120;
+    // Surface销毁时等待渲染线程释放EGLSurface的最长时间
+    private static final long SURFACE_RELEASE_TIMEOUT_MS = 1000;
+
+    /** 共享的全屏四边形，GL_TRIANGLE_STRIP绘制4个顶点；每个顶点为 x,y,s,t 交错存放，步长QUAD_STRIDE字节，纹理坐标的偏移为
+     * QUAD_TEXCOORD_OFFSET字节；纹理坐标t向下，bitmap上传的纹理不需要翻转
+     * */
+    public static final int QUAD_STRIDE = 4 * 4;
+    public static final int QUAD_TEXCOORD_OFFSET = 2 * 4;
+    private static final float[] QUAD = {
+            -1.0f,-1.0f,  0.0f,1.0f,
+            1.0f,-1.0f,   1.0f,1.0f,
+            -1.0f,1.0f,   0.0f,0.0f,
+            1.0f,1.0f,    1.0f,0.0f,
+    };
+
+    private static GLRenderEngine sDefault;
+
+    private final GLCommandRing mCommands = new GLCommandRing(256);
+    private final GLFrameScheduler mScheduler = new GLFrameScheduler(this);
+    private final GLLifecycle mLifecycle = new GLLifecycle();
+    private final GLShaderLibrary mShaderLibrary = new GLShaderLibrary(mLifecycle.getResourceManager());
+    private final Thread mThread;
+    // 主线程中的目标表
+    private final HashMap<Target,Slot> mSlots = new HashMap<>();
+
+    // 只用于Surface销毁时的阻塞握手
+    private final Object mLock = new Object();
+    private long mDetachRequested;
+    private long mDetachDone;
+
+    // 以下变量只在渲染线程中访问
+    private final ArrayList<Slot> mActive = new ArrayList<>();
+    private GLContext mContext;
+    // 没有窗口时使用的1x1 pbuffer
+    private GLSurface mIdleSurface;
+    private volatile long mFrameCount;
+    private GLVertexBuffer mQuad;
+    // 引擎创建到上下文以及共享资源就绪的耗时，最近一次窗口可用到首帧完成的耗时，单位纳秒
+    private final long mCreateNanos = System.nanoTime();
+    private volatile long mBootstrapNanos = -1;
+    private volatile long mFirstFrameLatencyNanos = -1;
+    // 调度器送来的相邻两个vsync帧的间隔，只在渲染线程中访问
+    private long mLastVsyncNanos;
+    private long mVsyncIntervalNanos;
+
+    /** 进程内共享的默认引擎，第一次调用时创建，一直保留到进程结束
+     * */
+    public static synchronized GLRenderEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new GLRenderEngine("GLRenderEngine-default");
+        }
+        return sDefault;
+    }
+
+    /** 在应用启动时(Application.onCreate())调用，提前创建默认引擎：渲染线程在后台初始化EGL，创建上下文和共享的顶点缓冲区，同时预编译
+     * 声明的着色器变体，第一个视图的Surface可用时只需要创建EGLSurface
+     * */
+    public static GLRenderEngine prewarm(int... variants) {
+        GLRenderEngine engine = getDefault();
+        if (variants.length > 0) {
+            engine.warmUpShaders(variants);
+        }
+        return engine;
+    }
+
+    public GLRenderEngine(String name) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        },name);
+        mThread.start();
+    }
+
+    // 所有目标共享的资源管理器，只能在渲染线程中使用
+    public GLResourceManager getResourceManager() {
+        return mLifecycle.getResourceManager();
+    }
+
+    public GLLifecycle getLifecycle() {
+        return mLifecycle;
+    }
+
+    // 所有目标共享的着色器库，只能在渲染线程中使用
+    public GLShaderLibrary getShaderLibrary() {
+        return mShaderLibrary;
+    }
+
+    // 当前的上下文，只能在渲染线程中使用，上下文丢失重建后会变化
+    public GLContext getContext() {
+        return mContext;
+    }
+
+    // 所有目标共享的全屏四边形顶点缓冲区，格式见QUAD_STRIDE，只能在渲染线程中使用
+    public GLVertexBuffer getQuadBuffer() {
+        return mQuad;
+    }
+
+    // 引擎创建到上下文及共享资源就绪的耗时，单位纳秒，-1代表还没有就绪
+    public long getBootstrapNanos() {
+        return mBootstrapNanos;
+    }
+
+    // 最近一次从Surface可用(attachWindow())到该窗口第一帧swapBuffers()完成的耗时，单位纳秒，-1代表还没有统计
+    public long getFirstFrameLatencyNanos() {
+        return mFirstFrameLatencyNanos;
+    }
+
+    // 已经绘制的调度轮数
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return mScheduler.getDroppedFrameCount();
+    }
+
+    /** 把目标绑定到一个窗口上(SurfaceView的Surface或者TextureView的SurfaceTexture)，第一次调用时添加目标
+     * 窗口重建后再次调用即可，目标的资源全部保留
+     * */
+    public void attachWindow(Target target,Object window) {
+        Slot slot = obtainSlot(target);
+        slot.pendingWindow = window;
+        slot.pendingAttachNanos = System.nanoTime();
+        sendCommand(CMD_ATTACH_WINDOW,0,slot);
+    }
+
+    // 给目标创建一个离屏的pbuffer，用于不需要上屏的渲染
+    public void attachOffscreen(Target target,int width,int height) {
+        Slot slot = obtainSlot(target);
+        slot.pendingWidth = width;
+        slot.pendingHeight = height;
+        sendCommand(CMD_ATTACH_OFFSCREEN,0,slot);
+    }
+
+    /** 窗口即将销毁，释放目标的EGLSurface，目标以及它的资源保留；会阻塞等待渲染线程释放完成(最多SURFACE_RELEASE_TIMEOUT_MS)，
+     * 因为surfaceDestroyed()/onSurfaceTextureDestroyed()返回后窗口就不能再使用了
+     * */
+    public void detachWindow(Target target) {
+        Slot slot = mSlots.get(target);
+        if (slot == null) {
+            return;
+        }
+        synchronized (mLock) {
+            long seq = ++mDetachRequested;
+            sendCommand(CMD_DETACH_WINDOW,seq,slot);
+            long deadline = SystemClock.uptimeMillis() + SURFACE_RELEASE_TIMEOUT_MS;
+            while (mDetachDone < seq && mThread.isAlive()) {
+                long remain = deadline - SystemClock.uptimeMillis();
+                if (remain <= 0) {
+                    MLog.log("wait EGLSurface release timeout");
+                    break;
+                }
+                try {
+                    mLock.wait(remain);
+                } catch (InterruptedException ie) {
+                    ie.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // 移除目标，在渲染线程中回调onRelease()并释放它的EGLSurface
+    public void removeTarget(Target target) {
+        Slot slot = mSlots.remove(target);
+        if (slot == null) {
+            return;
+        }
+        if (slot.continuousFps >= 0) {
+            slot.continuousFps = -1;
+            updateScheduler();
+        }
+        sendCommand(CMD_REMOVE,0,slot);
+    }
+
+    // 目标的窗口大小改变了
+    public void notifySizeChanged(Target target) {
+        Slot slot = mSlots.get(target);
+        if (slot != null) {
+            sendCommand(CMD_SIZE_CHANGED,0,slot);
+        }
+    }
+
+    // 请求目标重新绘制一帧，同一轮调度中的多次请求只绘制一次
+    public void requestRender(Target target) {
+        Slot slot = mSlots.get(target);
+        if (slot != null) {
+            sendCommand(CMD_FRAME,System.nanoTime(),slot);
+        }
+    }
+
+    /** 开启目标的连续渲染
+     * targetFps:目标帧率，<=0则跟随屏幕刷新率；多个目标的帧率不同时，按照最高的帧率调度vsync，每个目标只按照自己的帧率绘制
+     * */
+    public void startContinuousRender(Target target,int targetFps) {
+        Slot slot = obtainSlot(target);
+        slot.continuousFps = Math.max(0,targetFps);
+        updateScheduler();
+    }
+
+    public void stopContinuousRender(Target target) {
+        Slot slot = mSlots.get(target);
+        if (slot == null || slot.continuousFps < 0) {
+            return;
+        }
+        slot.continuousFps = -1;
+        updateScheduler();
+    }
+
+    /** 在后台共享上下文中预编译着色器变体(GLShaderLibrary.VARIANT_XXX的组合)，一般在应用启动时调用，这样第一帧不需要再编译着色器
+     * */
+    public void warmUpShaders(int... variants) {
+        sendCommand(CMD_WARM_UP,0,variants);
+    }
+
+    /** 退出渲染线程，释放所有目标，资源以及上下文
+     * */
+    public void quit() {
+        mScheduler.stop();
+        mSlots.clear();
+        sendCommand(CMD_QUIT,0,null);
+        synchronized (GLRenderEngine.class) {
+            if (sDefault == this) {
+                sDefault = null;
+            }
+        }
+    }
+
+    private Slot obtainSlot(Target target) {
+        Slot slot = mSlots.get(target);
+        if (slot == null) {
+            slot = new Slot(target);
+            mSlots.put(target,slot);
+        }
+        return slot;
+    }
+
+    // 根据所有连续渲染目标的帧率启动或者停止vsync调度，0代表跟随屏幕刷新率，优先级最高
+    private void updateScheduler() {
+        int fps = -1;
+        for (Slot slot : mSlots.values()) {
+            int f = slot.continuousFps;
+            if (f < 0) {
+                continue;
+            }
+            fps = (fps == 0 || f == 0) ? 0 : Math.max(fps,f);
+        }
+        if (fps < 0) {
+            mScheduler.stop();
+        } else {
+            mScheduler.start(fps);
+        }
+    }
+
+    // 只有渲染线程远远落后导致队列被占满时才会让出cpu重试；渲染线程已经结束则直接丢弃
+    private void sendCommand(int what,long arg,Object obj) {
+        while (!mCommands.offer(what,arg,obj)) {
+            if (!mThread.isAlive()) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    // GLFrameScheduler.Callback，执行于主线程
+    @Override
+    public void onFrame(long frameTimeNanos) {
+        sendCommand(CMD_FRAME,frameTimeNanos,null);
+    }
+
+    // ======== 以下都执行于渲染线程 ========
+
+    private void runLoop() {
+        createContext();
+        mLifecycle.onContextCreated();
+        // 共享的顶点数据随上下文一起提前创建，上下文丢失后由资源管理器在下次使用时重新上传
+        mQuad = new GLVertexBuffer(getResourceManager(),QUAD,GLES20.GL_STATIC_DRAW);
+        mQuad.setOwner("GLRenderEngine quad");
+        mBootstrapNanos = System.nanoTime() - mCreateNanos;
+        MLog.log("GLRenderEngine bootstrap " + mBootstrapNanos / 1000 + "us");
+
+        GLCommandRing.Command cmd = new GLCommandRing.Command();
+        boolean quit = false;
+        while (!quit) {
+            mCommands.await();
+            long vsyncNanos = 0;
+            while (mCommands.poll(cmd)) {
+                if (cmd.what == CMD_WARM_UP) {
+                    mShaderLibrary.warmUp(mContext,(int[])cmd.obj);
+                    continue;
+                }
+                Slot slot = (Slot)cmd.obj;
+                switch (cmd.what) {
+                    case CMD_FRAME:
+                        if (slot == null) {
+                            vsyncNanos = cmd.arg;
+                        } else if (slot.frameNanos == 0) {
+                            slot.frameNanos = cmd.arg;
+                        }
+                        break;
+                    case CMD_ATTACH_WINDOW:
+                        attachSurface(slot,slot.pendingWindow,0,0);
+                        slot.attachNanos = slot.pendingAttachNanos;
+                        break;
+                    case CMD_ATTACH_OFFSCREEN:
+                        attachSurface(slot,null,slot.pendingWidth,slot.pendingHeight);
+                        break;
+                    case CMD_DETACH_WINDOW:
+                        detachSurface(slot);
+                        synchronized (mLock) {
+                            mDetachDone = cmd.arg;
+                            mLock.notifyAll();
+                        }
+                        break;
+                    case CMD_SIZE_CHANGED:
+                        slot.sizeChanged = true;
+                        break;
+                    case CMD_REMOVE:
+                        removeSlot(slot);
+                        break;
+                    case CMD_QUIT:
+                        quit = true;
+                        break;
+                }
+            }
+            if (quit) {
+                break;
+            }
+
+            renderTargets(vsyncNanos);
+            if (vsyncNanos != 0) {
+                mScheduler.frameDone();
+            }
+        }
+        releaseAll();
+    }
+
+    private void createContext() {
+        mContext = new GLContext(null,GLContext.FLAG_WINDOW_AND_PBUFFER);
+        mIdleSurface = new GLSurface(mContext);
+        mIdleSurface.createOffscreenSurface(1,1);
+        mIdleSurface.makeCurrent();
+    }
+
+    private void attachSurface(Slot slot,Object window,int width,int height) {
+        if (!mActive.contains(slot)) {
+            mActive.add(slot);
+        }
+        if (slot.surface == null) {
+            slot.surface = new GLSurface(mContext);
+        }
+        if (slot.surface.hasSurface()) {
+            mIdleSurface.makeCurrent();
+            slot.surface.releaseEglSurface();
+        }
+        slot.window = window;
+        createEglSurface(slot,width,height);
+        slot.sizeChanged = true;
+        if (slot.frameNanos == 0) {
+            slot.frameNanos = System.nanoTime();
+        }
+    }
+
+    private void createEglSurface(Slot slot,int width,int height) {
+        if (slot.window != null) {
+            slot.surface.createWindowSurface(slot.window);
+        } else {
+            slot.surface.createOffscreenSurface(width,height);
+        }
+    }
+
+    private void detachSurface(Slot slot) {
+        if (slot.surface != null && slot.surface.hasSurface()) {
+            // 先切换到pbuffer，正在使用的EGLSurface不会被立即销毁
+            mIdleSurface.makeCurrent();
+            slot.surface.releaseEglSurface();
+        }
+        slot.window = null;
+    }
+
+    private void removeSlot(Slot slot) {
+        if (!mActive.remove(slot)) {
+            return;
+        }
+        releaseSlot(slot);
+    }
+
+    private void releaseSlot(Slot slot) {
+        if (slot.created) {
+            // 目标的资源在它自己的EGLSurface或者pbuffer上释放都可以，同一个上下文
+            if (slot.surface != null && slot.surface.hasSurface()) {
+                slot.surface.makeCurrent();
+            } else {
+                mIdleSurface.makeCurrent();
+            }
+            slot.target.onRelease();
+            slot.created = false;
+        }
+        detachSurface(slot);
+    }
+
+    /** 依次绘制所有有请求的目标
+     * vsyncNanos:不为0代表这是一个vsync帧，连续渲染的目标按照各自的帧率绘制
+     * */
+    private void renderTargets(long vsyncNanos) {
+        GLDispatch.beginFrame();
+        // 取回已经预热完成的着色器
+        mShaderLibrary.publish();
+        int drawn = 0;
+        boolean recreated = false;
+        if (vsyncNanos != 0) {
+            if (mLastVsyncNanos != 0 && vsyncNanos > mLastVsyncNanos) {
+                mVsyncIntervalNanos = vsyncNanos - mLastVsyncNanos;
+            }
+            mLastVsyncNanos = vsyncNanos;
+        }
+        for (int i = 0; i < mActive.size(); i++) {
+            Slot slot = mActive.get(i);
+            if (slot.surface == null || !slot.surface.hasSurface()) {
+                continue;
+            }
+            long frameNanos = slot.frameNanos;
+            if (vsyncNanos != 0 && slot.continuousFps >= 0 && isContinuousFrameDue(slot,vsyncNanos)) {
+                frameNanos = vsyncNanos;
+                slot.continuousNanos = vsyncNanos;
+            }
+            if (frameNanos == 0 && !slot.sizeChanged) {
+                continue;
+            }
+            slot.frameNanos = 0;
+
+            slot.surface.makeCurrent();
+            if (!slot.created) {
+                slot.target.onCreate(this);
+                slot.created = true;
+            }
+            if (slot.sizeChanged) {
+                slot.sizeChanged = false;
+                slot.target.onSizeChanged(slot.surface.getWidth(),slot.surface.getHeight());
+            }
+            slot.target.onDrawFrame(slot.surface,frameNanos != 0 ? frameNanos : System.nanoTime());
+            if (slot.window != null) {
+                slot.surface.swapBuffers();
+                if (slot.attachNanos != 0) {
+                    mFirstFrameLatencyNanos = System.nanoTime() - slot.attachNanos;
+                    slot.attachNanos = 0;
+                    MLog.log("GLRenderEngine surface to first frame " + mFirstFrameLatencyNanos / 1000 + "us");
+                }
+            }
+            drawn++;
+
+            // 每一轮最多重建一次，重建后仍然丢失则留到下一次请求
+            if (mContext.isContextLost() && !recreated) {
+                recreateContext();
+                recreated = true;
+                // 所有目标都要重绘，包括前面已经画过的
+                i = -1;
+            }
+        }
+        if (drawn > 0) {
+            mFrameCount++;
+            mLifecycle.onFrameDrawn();
+        }
+        GLDispatch.FrameStats stats = GLDispatch.endFrame();
+        if (stats != null && drawn > 0 && mFrameCount % STATS_LOG_INTERVAL == 0) {
+            MLog.log("GLRenderEngine frame " + mFrameCount + " targets " + drawn + " " + stats);
+        }
+    }
+
+    // 调度器按照所有目标中最高的帧率送来vsync，帧率低的目标距离上一次绘制还不到自己的间隔就跳过；和GLFrameScheduler一样留出半个间隔的余量
+    private boolean isContinuousFrameDue(Slot slot,long vsyncNanos) {
+        int fps = slot.continuousFps;
+        if (fps == 0 || slot.continuousNanos == 0) {
+            return true;
+        }
+        return vsyncNanos - slot.continuousNanos >= 1000000000L / fps - mVsyncIntervalNanos / 2;
+    }
+
+    /** 上下文丢失后重建上下文以及所有目标的EGLSurface，资源由GLResourceManager在下次使用时延迟重建
+     * */
+    private void recreateContext() {
+        MLog.log("GLRenderEngine EGLContext lost, recreate context for " + mActive.size() + " targets");
+        for (Slot slot : mActive) {
+            if (slot.surface != null && slot.surface.hasSurface()) {
+                slot.surface.releaseEglSurface();
+            }
+        }
+        mShaderLibrary.onContextLost();
+        mIdleSurface.releaseEglSurface();
+        mContext.release();
+
+        createContext();
+        for (Slot slot : mActive) {
+            if (slot.surface == null) {
+                continue;
+            }
+            boolean offscreen = slot.window == null && slot.pendingWidth > 0;
+            slot.surface = new GLSurface(mContext);
+            if (slot.window != null || offscreen) {
+                createEglSurface(slot,slot.pendingWidth,slot.pendingHeight);
+                slot.sizeChanged = true;
+                slot.frameNanos = System.nanoTime();
+            }
+        }
+        mLifecycle.onContextCreated();
+    }
+
+    private void releaseAll() {
+        for (Slot slot : mActive) {
+            releaseSlot(slot);
+        }
+        mActive.clear();
+        mIdleSurface.makeCurrent();
+        mShaderLibrary.release();
+        mQuad.destroy();
+        getResourceManager().dump();
+        getResourceManager().releaseAll();
+        mIdleSurface.releaseEglSurface();
+        mContext.release();
+        mContext = null;
+        MLog.log("GLRenderEngine quit");
+    }
+}
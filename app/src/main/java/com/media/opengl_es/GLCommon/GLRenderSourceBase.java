@@ -1,4 +1,50 @@
 package com.media.opengl_es.GLCommon;
 
-public class GLRenderSourceBase {
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/** 渲染管线输入源的基类
+ * 1、一个输入源最终对外提供的就是一个纹理id，下游(滤镜，上屏等)直接拿这个纹理id作为sampler的输入，中间不经过cpu拷贝
+ * 2、纹理类型可能是GL_TEXTURE_2D，也可能是GL_TEXTURE_EXTERNAL_OES(来自相机或者MediaCodec解码的SurfaceTexture)，下游要根据
+ * getTextureTarget()选择对应的着色器
+ * 3、纹理坐标可能需要经过变换(比如SurfaceTexture给出的变换矩阵)，下游要在顶点着色器中用getTransformMatrix()对纹理坐标进行变换
+ * 注：除了构造函数外，update()，release()等函数都必须在GL线程中调用
+ * */
+public abstract class GLRenderSourceBase {
+
+    protected int mWidth;
+    protected int mHeight;
+    // 纹理坐标变换矩阵，默认单位矩阵
+    protected final float[] mTransformMatrix = new float[16];
+
+    public GLRenderSourceBase() {
+        Matrix.setIdentityM(mTransformMatrix,0);
+    }
+
+    // 获取纹理 texture id
+    public abstract int getTexture();
+
+    // 更新输入源的内容，在GL线程中调用，返回true代表有新的内容需要渲染
+    public abstract boolean update();
+
+    // 释放资源，在GL线程中调用
+    public abstract void release();
+
+    // 纹理类型，默认为GL_TEXTURE_2D
+    public int getTextureTarget() {
+        return GLES20.GL_TEXTURE_2D;
+    }
+
+    // 获取纹理坐标的变换矩阵 4x4
+    public float[] getTransformMatrix() {
+        return mTransformMatrix;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
 }
@@ -0,0 +1,159 @@
+package com.media.opengl_es.GLCommon;
+
+/** gpu资源(着色器程序，纹理，fbo，vbo等)的基类
+ * 1、子类要记录下创建gl对象所需的全部参数(比如着色器源码，图片，宽高等)，这样上下文丢失后可以根据这些参数重新创建
+ * 2、上下文丢失(比如长时间在后台，EGLContext被系统回收)时，所有的gl对象已经随着上下文一起销毁了，GLResourceManager会调用onContextLost()，
+ * 子类只需要把id清零，不能再调用glDeleteXXX()
+ * 3、重新创建是延迟进行的：下一次使用资源时(useprogram()，getTexture()等)调用ensureValid()，发现资源属于旧的上下文时才重新创建，
+ * 不会在恢复时一次性重建所有资源
+ * 4、每个资源都有类别，估算的显存大小，所有者和创建位置，由GLResourceManager统计；标记为可回收(setEvictable())的资源在超出显存预算时
+ * 会按照最近最少使用的顺序被释放，下次使用时再根据记录的参数重新创建
+ * 注：所有函数都必须在GL线程中调用
+ * */
+public abstract class GLResource {
+
+    // 资源类别
+    public static final int CATEGORY_PROGRAM = 0;
+    public static final int CATEGORY_TEXTURE = 1;
+    public static final int CATEGORY_FRAMEBUFFER = 2;
+    public static final int CATEGORY_BUFFER = 3;
+    public static final int CATEGORY_COUNT = 4;
+    static final String[] CATEGORY_NAMES = {"program","texture","framebuffer","buffer"};
+
+    protected final GLResourceManager mManager;
+    private final int mCategory;
+    // 资源创建时上下文的代数，与GLResourceManager的不一致则说明资源已经失效；-1代表还未创建或者已经被回收
+    private int mGeneration = -1;
+    private String mOwner;
+    private String mCreationSite;
+    private boolean mEvictable;
+    // 最近一次使用时的帧序号，用于避免回收当前帧正在使用的资源
+    long mLastUsedFrame;
+
+    /** manager:资源管理器，为null则资源不参与上下文丢失后的自动恢复，也不参与显存统计
+     * category:资源类别 CATEGORY_XXX
+     * */
+    protected GLResource(GLResourceManager manager,int category) {
+        mManager = manager;
+        mCategory = category;
+        if (manager != null) {
+            if (manager.isTrackCreationSite()) {
+                mCreationSite = findCreationSite();
+            }
+            manager.register(this);
+        }
+    }
+
+    // 根据记录的参数创建gl对象
+    protected abstract void onCreate();
+
+    // 删除gl对象，此时上下文是有效的
+    protected abstract void onRelease();
+
+    // 上下文已经丢失，gl对象已经不存在了，只需要清空id
+    protected abstract void onContextLost();
+
+    // 估算的显存大小，单位字节
+    public abstract long getByteSize();
+
+    // 创建gl对象，子类在构造函数中调用
+    protected final void create() {
+        onCreate();
+        mGeneration = mManager != null ? mManager.getGeneration() : 0;
+        if (mManager != null) {
+            mManager.onAllocated(this);
+        }
+    }
+
+    // 子类的显存大小发生变化后调用(比如纹理换成了更大的图片)，可能触发显存回收
+    protected final void notifySizeChanged() {
+        if (mManager != null) {
+            mManager.onAllocated(this);
+        }
+    }
+
+    /** 确保资源在当前上下文中是有效的，如果上下文丢失过或者被回收过则根据记录的参数重新创建
+     * return:true代表资源本来就有效，false代表刚刚重新创建
+     * */
+    public final boolean ensureValid() {
+        if (mManager == null) {
+            return true;
+        }
+        if (mGeneration == mManager.getGeneration()) {
+            mManager.touch(this);
+            return true;
+        }
+        create();
+        return false;
+    }
+
+    // 资源是否已经创建并且属于当前上下文
+    public final boolean isValid() {
+        return mGeneration >= 0 && (mManager == null || mGeneration == mManager.getGeneration());
+    }
+
+    final void notifyContextLost() {
+        if (mGeneration >= 0) {
+            onContextLost();
+        }
+    }
+
+    // 超出显存预算时被回收，释放gl对象但是保留创建参数，下次使用时重新创建
+    final void evict() {
+        onRelease();
+        mGeneration = -1;
+    }
+
+    public int getCategory() {
+        return mCategory;
+    }
+
+    // 设置所有者，用于显存统计时定位是谁持有的资源
+    public void setOwner(String owner) {
+        mOwner = owner;
+    }
+
+    public String getOwner() {
+        return mOwner;
+    }
+
+    // 创建位置(类名.方法名:行号)，只在GLResourceManager开启了记录时才有
+    public String getCreationSite() {
+        return mCreationSite;
+    }
+
+    /** 设置是否可以被回收，只有可以根据记录的参数完整重建的缓存类资源才应该设置为true
+     * (比如根据bitmap创建的纹理；fbo中渲染的内容回收后会丢失)
+     * */
+    public void setEvictable(boolean evictable) {
+        mEvictable = evictable;
+    }
+
+    public boolean isEvictable() {
+        return mEvictable;
+    }
+
+    // 释放资源，释放后不会再被恢复
+    public void destroy() {
+        if (isValid()) {
+            onRelease();
+        }
+        mGeneration = -1;
+        if (mManager != null) {
+            mManager.unregister(this);
+        }
+    }
+
+    // 调用栈中第一个不是构造函数的位置就是创建资源的地方
+    private static String findCreationSite() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        for (int i = 1; i < stack.length; i++) {
+            StackTraceElement e = stack[i];
+            if (!"<init>".equals(e.getMethodName())) {
+                String cls = e.getClassName();
+                return cls.substring(cls.lastIndexOf('.') + 1) + "." + e.getMethodName() + ":" + e.getLineNumber();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,218 @@
+package com.media.opengl_es.GLCommon;
+
+import com.media.opengl_es.BuildConfig;
+import com.media.opengl_es.utils.MLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/** 一个EGLContext(以及与它共享的上下文)中所有gpu资源的登记处
+ * 1、GLResource创建时自动登记，destroy()时注销
+ * 2、检测到上下文丢失时调用onContextLost()，代数加1，所有资源标记为失效，之后在使用时延迟重新创建
+ * 3、releaseAll()在上下文仍然有效时删除所有的gl对象
+ * 4、显存统计：记录每个资源的类别，估算大小，所有者和创建位置，getReport()输出各类别的个数和字节数以及占用最大的资源
+ * 5、显存预算：setBudgetBytes()设置预算后，超出预算时按照最近最少使用(LRU)的顺序回收标记为可回收的资源，当前帧用过的资源不会被回收
+ *
+ * 注：除了getReport()等统计函数可以在任意线程调用外，其它函数都必须在GL线程中调用
+ * */
+public class GLResourceManager {
+
+    // 按照访问顺序排列，最前面的是最久没有使用的
+    private final LinkedHashMap<GLResource,Boolean> mResources = new LinkedHashMap<>(16,0.75f,true);
+    // 上下文的代数，每丢失一次上下文加1
+    private volatile int mGeneration;
+    // 显存预算，单位字节，<=0代表不限制
+    private long mBudgetBytes;
+    // 当前帧序号
+    private long mFrame;
+    private long mEvictedCount;
+    private long mEvictedBytes;
+    // 是否记录资源的创建位置，需要获取调用栈，只在debug下默认开启
+    private boolean mTrackCreationSite = BuildConfig.DEBUG;
+
+    synchronized void register(GLResource resource) {
+        mResources.put(resource,Boolean.TRUE);
+    }
+
+    synchronized void unregister(GLResource resource) {
+        mResources.remove(resource);
+    }
+
+    // 资源被使用，移动到LRU的末尾
+    synchronized void touch(GLResource resource) {
+        mResources.get(resource);
+        resource.mLastUsedFrame = mFrame;
+    }
+
+    // 资源创建或者大小发生了变化
+    synchronized void onAllocated(GLResource resource) {
+        touch(resource);
+        trimToBudget();
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized int getResourceCount() {
+        return mResources.size();
+    }
+
+    public boolean isTrackCreationSite() {
+        return mTrackCreationSite;
+    }
+
+    public void setTrackCreationSite(boolean track) {
+        mTrackCreationSite = track;
+    }
+
+    // 每一帧绘制完成后调用
+    public synchronized void nextFrame() {
+        mFrame++;
+    }
+
+    /** 设置显存预算，单位字节，<=0代表不限制；超出时立即回收
+     * */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        trimToBudget();
+    }
+
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    // 当前所有有效资源的显存总和
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (GLResource resource : mResources.keySet()) {
+            if (resource.isValid()) {
+                total += resource.getByteSize();
+            }
+        }
+        return total;
+    }
+
+    // 某个类别的有效资源的显存总和
+    public synchronized long getBytes(int category) {
+        long total = 0;
+        for (GLResource resource : mResources.keySet()) {
+            if (resource.isValid() && resource.getCategory() == category) {
+                total += resource.getByteSize();
+            }
+        }
+        return total;
+    }
+
+    // 某个类别的有效资源个数
+    public synchronized int getCount(int category) {
+        int count = 0;
+        for (GLResource resource : mResources.keySet()) {
+            if (resource.isValid() && resource.getCategory() == category) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // 超出预算时按照LRU顺序回收可回收的资源
+    private void trimToBudget() {
+        if (mBudgetBytes <= 0) {
+            return;
+        }
+        long total = getTotalBytes();
+        if (total <= mBudgetBytes) {
+            return;
+        }
+        Iterator<GLResource> it = mResources.keySet().iterator();
+        while (it.hasNext() && total > mBudgetBytes) {
+            GLResource resource = it.next();
+            if (!resource.isEvictable() || !resource.isValid() || resource.mLastUsedFrame == mFrame) {
+                continue;
+            }
+            long size = resource.getByteSize();
+            resource.evict();
+            total -= size;
+            mEvictedCount++;
+            mEvictedBytes += size;
+        }
+        if (total > mBudgetBytes) {
+            MLog.log("GPU memory over budget: " + total + " > " + mBudgetBytes);
+        }
+    }
+
+    // 上下文丢失，gl对象已经不存在了，所有资源在下次使用时重新创建
+    public synchronized void onContextLost() {
+        mGeneration++;
+        for (GLResource resource : mResources.keySet()) {
+            resource.notifyContextLost();
+        }
+        MLog.log("GLResourceManager context lost, " + mResources.size() + " resources will be recreated lazily");
+    }
+
+    // 删除所有的gl对象，上下文必须是有效的
+    public void releaseAll() {
+        List<GLResource> resources;
+        synchronized (this) {
+            resources = new ArrayList<>(mResources.keySet());
+        }
+        for (GLResource resource : resources) {
+            resource.destroy();
+        }
+        synchronized (this) {
+            mResources.clear();
+        }
+    }
+
+    /** 显存统计报告：各类别的个数和字节数，预算，回收情况以及占用最大的几个资源的所有者和创建位置
+     * */
+    public synchronized String getReport() {
+        int[] counts = new int[GLResource.CATEGORY_COUNT];
+        long[] bytes = new long[GLResource.CATEGORY_COUNT];
+        long total = 0;
+        int evicted = 0;
+        List<GLResource> valid = new ArrayList<>();
+        for (GLResource resource : mResources.keySet()) {
+            if (!resource.isValid()) {
+                evicted++;
+                continue;
+            }
+            long size = resource.getByteSize();
+            counts[resource.getCategory()]++;
+            bytes[resource.getCategory()] += size;
+            total += size;
+            valid.add(resource);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,"GPU memory %.2fMB, budget %s\n",total / 1048576f,
+                mBudgetBytes > 0 ? String.format(Locale.US,"%.2fMB",mBudgetBytes / 1048576f) : "unlimited"));
+        for (int i = 0; i < GLResource.CATEGORY_COUNT; i++) {
+            sb.append(String.format(Locale.US,"  %-12s count %4d  %.2fMB\n",GLResource.CATEGORY_NAMES[i],counts[i],bytes[i] / 1048576f));
+        }
+        sb.append(String.format(Locale.US,"  released(lazy) %d, evicted total %d (%.2fMB)\n",evicted,mEvictedCount,mEvictedBytes / 1048576f));
+
+        Collections.sort(valid,new Comparator<GLResource>() {
+            @Override
+            public int compare(GLResource o1, GLResource o2) {
+                return Long.compare(o2.getByteSize(),o1.getByteSize());
+            }
+        });
+        for (int i = 0; i < valid.size() && i < 5; i++) {
+            GLResource r = valid.get(i);
+            sb.append(String.format(Locale.US,"  #%d %s %.2fMB owner=%s site=%s\n",i + 1,GLResource.CATEGORY_NAMES[r.getCategory()],
+                    r.getByteSize() / 1048576f,r.getOwner(),r.getCreationSite()));
+        }
+        return sb.toString();
+    }
+
+    // 将统计报告输出到日志
+    public void dump() {
+        MLog.log(getReport());
+    }
+}
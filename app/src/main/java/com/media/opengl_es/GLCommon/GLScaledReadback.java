@@ -0,0 +1,350 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+/** 按照目标分辨率回读，用于缩略图，预览和模型输入(比如224x224)：先在gpu上缩小到目标大小，只回读这个小的fbo
+ * GLSurface.framebufferToBitmap()回读整个Surface再在cpu上缩放，1080p每次要回读8MB，缩小到224x224只需要200KB
+ * 1、缩小：源区域比目标大两倍以上时先逐级缩小一半(GL_LINEAR在2x2像素中间采样，相当于mipmap)，最后一次用双线性插值缩放到目标大小，
+ * 每个源像素都参与计算，不会像直接双线性缩小那样丢失像素产生锯齿
+ * 2、裁剪：setCrop()指定源图中的区域，坐标原点在左上角(和屏幕上看到的一致)
+ * 3、缩放方式：SCALE_STRETCH拉伸，SCALE_FIT完整显示并在两边留黑边，SCALE_FILL填满目标并居中裁掉多余部分
+ * 4、回读的像素为RGBA，第一行为图像的最上面一行，可以直接用Bitmap.copyPixelsFromBuffer()，不需要再翻转；回读的缓冲区和bitmap
+ * 都会重复使用，目标大小不变时不会重新分配
+ *
+ * 使用方式(渲染线程，画完一帧swapBuffers()之前)：
+ * ByteBuffer rgba = readback.captureFramebuffer(surface.getWidth(),surface.getHeight(),224,224);
+ *
+ * 注：所有函数都必须在渲染线程中调用
+ * */
+public class GLScaledReadback {
+
+    public static final int SCALE_STRETCH = 0;
+    public static final int SCALE_FIT = 1;
+    public static final int SCALE_FILL = 2;
+
+    private final GLResourceManager mManager;
+    private final GLVertexBuffer mQuad;
+
+    private int mScaleMode = SCALE_FIT;
+    // 裁剪区域，左上角为原点，单位为源图像素；宽或者高为0代表不裁剪
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth;
+    private int mCropHeight;
+
+    // 从当前framebuffer复制出来的源区域
+    private GLFrameBuffer mCopy;
+    // 逐级缩小的中间结果
+    private final ArrayList<GLFrameBuffer> mLevels = new ArrayList<>();
+    private GLFrameBuffer mTarget;
+    private GLProgram mProgram;
+
+    private ByteBuffer mPixels;
+    private Bitmap mBitmap;
+    private int mPassCount;
+
+    // 源区域(纹理坐标)和目标区域(标准化设备坐标)，见SCALE_VERTEX_SHADER
+    private final float[] mSrcRect = new float[4];
+    private final float[] mDstRect = new float[4];
+    // 裁剪和适配后源区域的像素位置，左上角为原点
+    private final int[] mSrcBox = new int[4];
+
+    /** manager:中间fbo和着色器程序登记到的资源管理器
+     * quad:全屏四边形，格式与GLRenderEngine.getQuadBuffer()相同(只用到顶点坐标)
+     * */
+    public GLScaledReadback(GLResourceManager manager,GLVertexBuffer quad) {
+        mManager = manager;
+        mQuad = quad;
+    }
+
+    public void setScaleMode(int scaleMode) {
+        if (scaleMode < SCALE_STRETCH || scaleMode > SCALE_FILL) {
+            throw new RuntimeException("invalid scale mode " + scaleMode);
+        }
+        mScaleMode = scaleMode;
+    }
+
+    /** 只回读源图中的一部分，x,y为左上角；width或者height为0代表整张图
+     * */
+    public void setCrop(int x,int y,int width,int height) {
+        mCropX = x;
+        mCropY = y;
+        mCropWidth = width;
+        mCropHeight = height;
+    }
+
+    /** 回读当前绑定的framebuffer(比如窗口Surface画完一帧之后)，先在gpu上把源区域复制到纹理中再缩小，源区域以外的像素不会被复制
+     * srcWidth,srcHeight:framebuffer的大小
+     * return:dstWidth x dstHeight的RGBA像素，内部缓冲区，下一次回读后会被覆盖
+     * */
+    public ByteBuffer captureFramebuffer(int srcWidth,int srcHeight,int dstWidth,int dstHeight) {
+        IntBuffer binding = IntBuffer.allocate(1);
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING,binding);
+        int framebuffer = binding.get(0);
+
+        computeSource(srcWidth,srcHeight,dstWidth,dstHeight);
+        int w = mSrcBox[2];
+        int h = mSrcBox[3];
+        // 准备纹理时可能会绑定它自己的fbo，复制之前要重新绑定源framebuffer
+        if (mCopy == null) {
+            mCopy = newFrameBuffer(w,h,"GLScaledReadback copy");
+        } else {
+            mCopy.resize(w,h);
+        }
+        int texture = mCopy.getTexture();
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        // framebuffer的原点在左下角
+        GLDispatch.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D,0,0,0,mSrcBox[0],srcHeight - mSrcBox[1] - h,w,h);
+
+        ByteBuffer pixels = scale(texture,w,h,0,0,1,1,dstWidth,dstHeight);
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        return pixels;
+    }
+
+    /** 回读一个纹理，纹理需要是渲染出来的(比如GLFrameBuffer.getTexture()，第一行在最下面)，并且用GL_LINEAR过滤
+     * width,height:纹理的大小
+     * return:同captureFramebuffer()
+     * */
+    public ByteBuffer capture(int texture,int width,int height,int dstWidth,int dstHeight) {
+        computeSource(width,height,dstWidth,dstHeight);
+        float s0 = mSrcBox[0] / (float)width;
+        float s1 = (mSrcBox[0] + mSrcBox[2]) / (float)width;
+        float t0 = 1 - (mSrcBox[1] + mSrcBox[3]) / (float)height;
+        float t1 = 1 - mSrcBox[1] / (float)height;
+        return scale(texture,mSrcBox[2],mSrcBox[3],s0,t0,s1,t1,dstWidth,dstHeight);
+    }
+
+    /** 把最近一次回读的结果复制到bitmap中，大小不变时重复使用同一个bitmap
+     * */
+    public Bitmap toBitmap() {
+        int width = mTarget.getWidth();
+        int height = mTarget.getHeight();
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            mBitmap = Bitmap.createBitmap(width,height,Bitmap.Config.ARGB_8888);
+        }
+        mPixels.rewind();
+        mBitmap.copyPixelsFromBuffer(mPixels);
+        mPixels.rewind();
+        return mBitmap;
+    }
+
+    // 裁剪区域，SCALE_FILL时再按照目标的宽高比居中裁剪
+    private void computeSource(int width,int height,int dstWidth,int dstHeight) {
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new RuntimeException("invalid readback size " + dstWidth + "x" + dstHeight);
+        }
+        int x = 0;
+        int y = 0;
+        int w = width;
+        int h = height;
+        if (mCropWidth > 0 && mCropHeight > 0) {
+            x = Math.max(0,Math.min(width - 1,mCropX));
+            y = Math.max(0,Math.min(height - 1,mCropY));
+            w = Math.min(mCropWidth,width - x);
+            h = Math.min(mCropHeight,height - y);
+        }
+        if (mScaleMode == SCALE_FILL) {
+            // 比较 w/h 和 dstWidth/dstHeight，宽的一边裁掉两侧
+            if ((long)w * dstHeight > (long)h * dstWidth) {
+                int fit = Math.max(1,(int)((long)h * dstWidth / dstHeight));
+                x += (w - fit) / 2;
+                w = fit;
+            } else {
+                int fit = Math.max(1,(int)((long)w * dstHeight / dstWidth));
+                y += (h - fit) / 2;
+                h = fit;
+            }
+        }
+        mSrcBox[0] = x;
+        mSrcBox[1] = y;
+        mSrcBox[2] = w;
+        mSrcBox[3] = h;
+    }
+
+    /** 把纹理中[s0,t0]~[s1,t1]的区域(对应srcWidth x srcHeight个像素)缩小到目标fbo中并回读
+     * */
+    private ByteBuffer scale(int texture,int srcWidth,int srcHeight,float s0,float t0,float s1,float t1,
+                             int dstWidth,int dstHeight) {
+        // SCALE_FIT时计算内容在目标中的区域，坐标原点在左上角
+        int contentX = 0;
+        int contentY = 0;
+        int contentWidth = dstWidth;
+        int contentHeight = dstHeight;
+        if (mScaleMode == SCALE_FIT) {
+            if ((long)srcWidth * dstHeight > (long)srcHeight * dstWidth) {
+                contentHeight = Math.max(1,(int)((long)srcHeight * dstWidth / srcWidth));
+                contentY = (dstHeight - contentHeight) / 2;
+            } else {
+                contentWidth = Math.max(1,(int)((long)srcWidth * dstHeight / srcHeight));
+                contentX = (dstWidth - contentWidth) / 2;
+            }
+        }
+
+        if (mProgram == null) {
+            mProgram = new GLProgram(mManager,SCALE_VERTEX_SHADER,SCALE_FRAGMENT_SHADER);
+            mProgram.setOwner("GLScaledReadback");
+        }
+        if (mTarget == null) {
+            mTarget = newFrameBuffer(dstWidth,dstHeight,"GLScaledReadback target");
+        } else {
+            mTarget.resize(dstWidth,dstHeight);
+        }
+        mPassCount = 0;
+        mQuad.bind();
+
+        // 1、源区域比内容大两倍以上时逐级缩小一半
+        int level = 0;
+        int w = srcWidth;
+        int h = srcHeight;
+        while (w >= contentWidth * 2 && h >= contentHeight * 2) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            GLFrameBuffer fbo;
+            if (level < mLevels.size()) {
+                fbo = mLevels.get(level);
+                fbo.resize(w,h);
+            } else {
+                fbo = newFrameBuffer(w,h,"GLScaledReadback level " + (level + 1));
+                // 中间结果只在这一次回读中使用，被回收后重建即可
+                fbo.setEvictable(true);
+                mLevels.add(fbo);
+            }
+            setRect(mSrcRect,s0,t0,s1,t1);
+            setRect(mDstRect,-1,-1,1,1);
+            draw(texture,fbo.getFramebuffer(),w,h);
+            texture = fbo.getTexture();
+            s0 = 0;
+            t0 = 0;
+            s1 = 1;
+            t1 = 1;
+            level++;
+        }
+
+        // 2、双线性缩放到目标中的内容区域；上下翻转，使fbo的第一行(glReadPixels最先读出的一行)是图像的最上面一行
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,mTarget.getFramebuffer());
+        if (mScaleMode == SCALE_FIT) {
+            GLDispatch.glClearColor(0,0,0,1);
+            GLDispatch.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+        setRect(mSrcRect,s0,t0,s1,t1);
+        setRect(mDstRect,
+                contentX * 2f / dstWidth - 1,(contentY + contentHeight) * 2f / dstHeight - 1,
+                (contentX + contentWidth) * 2f / dstWidth - 1,contentY * 2f / dstHeight - 1);
+        draw(texture,mTarget.getFramebuffer(),dstWidth,dstHeight);
+        mQuad.unbind();
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+
+        // 3、只回读目标大小的像素
+        int size = dstWidth * dstHeight * 4;
+        if (mPixels == null || mPixels.capacity() != size) {
+            mPixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+        mPixels.clear();
+        GLDispatch.glPixelStorei(GLES20.GL_PACK_ALIGNMENT,1);
+        GLDispatch.glReadPixels(0,0,dstWidth,dstHeight,GLES20.GL_RGBA,GLES20.GL_UNSIGNED_BYTE,mPixels);
+        mPixels.rewind();
+        return mPixels;
+    }
+
+    private static void setRect(float[] rect,float x0,float y0,float x1,float y1) {
+        rect[0] = x0;
+        rect[1] = y0;
+        rect[2] = x1;
+        rect[3] = y1;
+    }
+
+    private void draw(int texture,int framebuffer,int width,int height) {
+        GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,framebuffer);
+        GLDispatch.glViewport(0,0,width,height);
+        mProgram.useprogram();
+        int position = mProgram.attributeLocationForname("position");
+        GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,0);
+        GLDispatch.glEnableVertexAttribArray(position);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glUniform1i(mProgram.uniformaLocationForname("texture"),0);
+        GLDispatch.glUniform4f(mProgram.uniformaLocationForname("srcRect"),mSrcRect[0],mSrcRect[1],mSrcRect[2],mSrcRect[3]);
+        GLDispatch.glUniform4f(mProgram.uniformaLocationForname("dstRect"),mDstRect[0],mDstRect[1],mDstRect[2],mDstRect[3]);
+        GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+        mPassCount++;
+    }
+
+    private GLFrameBuffer newFrameBuffer(int width,int height,String owner) {
+        GLFrameBuffer fbo = new GLFrameBuffer(mManager,width,height,true);
+        fbo.setLinearFilter(true);
+        fbo.setOwner(owner);
+        return fbo;
+    }
+
+    // 最近一次回读的宽高
+    public int getWidth() {
+        return mTarget != null ? mTarget.getWidth() : 0;
+    }
+
+    public int getHeight() {
+        return mTarget != null ? mTarget.getHeight() : 0;
+    }
+
+    // 最近一次回读绘制的pass数(逐级缩小的次数 + 1)
+    public int getPassCount() {
+        return mPassCount;
+    }
+
+    // 释放所有fbo，程序和bitmap
+    public void release() {
+        if (mCopy != null) {
+            mCopy.destroy();
+            mCopy = null;
+        }
+        for (GLFrameBuffer level : mLevels) {
+            level.destroy();
+        }
+        mLevels.clear();
+        if (mTarget != null) {
+            mTarget.destroy();
+            mTarget = null;
+        }
+        if (mProgram != null) {
+            mProgram.destroy();
+            mProgram = null;
+        }
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        mPixels = null;
+    }
+
+    /** 纹理坐标由四边形的顶点坐标换算，不使用共享四边形中t向下的纹理坐标，缩小的过程中不会翻转
+     * srcRect:顶点(-1,-1)和(1,1)对应的纹理坐标 (s0,t0,s1,t1)
+     * dstRect:顶点(-1,-1)和(1,1)输出到的位置 (x0,y0,x1,y1)，标准化设备坐标
+     * */
+    private static final String SCALE_VERTEX_SHADER = "attribute vec4 position;\n" +
+            " uniform highp vec4 srcRect;\n" +
+            " uniform highp vec4 dstRect;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     vec2 uv = position.xy * 0.5 + 0.5;\n" +
+            "     gl_Position = vec4(mix(dstRect.xy,dstRect.zw,uv),0.0,1.0);\n" +
+            "     tex_coord = mix(srcRect.xy,srcRect.zw,uv);\n" +
+            " }";
+
+    private static final String SCALE_FRAGMENT_SHADER = "precision mediump float;\n" +
+            " uniform sampler2D texture;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     gl_FragColor = texture2D(texture,tex_coord);\n" +
+            " }";
+}
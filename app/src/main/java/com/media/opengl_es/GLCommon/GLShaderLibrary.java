@@ -0,0 +1,311 @@
+package com.media.opengl_es.GLCommon;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/** 着色器库：用一套着色器模板加#define生成各种变体，替代散落在各个类中的着色器字符串常量
+ * 1、变体由VARIANT_XXX按位组合，比如 VARIANT_EXTERNAL_OES | VARIANT_TEX_MATRIX 就是相机/解码器SurfaceTexture用的着色器；生成源码时在模板前
+ * 插入对应的#define，模板中用#ifdef选择代码
+ * 2、所有变体的变量名都一样：attribute position，texcoord；uniform texture(YUV为yTexture，uTexture，vTexture)，transform，texMatrix，
+ * brightness，color
+ * 3、每个上下文(共享组)一个实例，getProgram()按变体缓存编译好的GLProgram，第一次用到时才编译会造成首帧卡顿，所以提供了warmUp()：在后台的共享
+ * 上下文(GLTextureLoader)中提前编译一组声明的变体，等fence完成后再交给渲染线程；预热线程中编译的程序不登记到资源管理器，交给渲染线程时
+ * 才包装成登记的GLProgram，资源管理器(包括超出预算时的回收)只会在渲染线程中被访问
+ * 4、记录每个变体的编译耗时以及是在预热中编译的还是在渲染线程中临时编译的，getReport()输出
+ *
+ * 注：除了静态的vertexSource()/fragmentSource()外，都必须在渲染线程中调用
+ * */
+public class GLShaderLibrary {
+
+    // 采样samplerExternalOES，用于相机，MediaCodec等SurfaceTexture输入
+    public static final int VARIANT_EXTERNAL_OES = 0x01;
+    // 三个平面(I420)的YUV输入，在着色器中转换为RGB(BT.601)
+    public static final int VARIANT_YUV = 0x02;
+    // 忽略纹理的alpha，输出不透明的颜色
+    public static final int VARIANT_OPAQUE = 0x04;
+    // 顶点坐标乘以transform矩阵
+    public static final int VARIANT_TRANSFORM = 0x08;
+    // 纹理坐标乘以texMatrix矩阵(SurfaceTexture.getTransformMatrix())
+    public static final int VARIANT_TEX_MATRIX = 0x10;
+    // 亮度调节，加上brightness
+    public static final int VARIANT_BRIGHTNESS = 0x20;
+    // 不采样纹理，输出纯色color，比如画线
+    public static final int VARIANT_SOLID_COLOR = 0x40;
+
+    private static final String[] DEFINES = {
+            "EXTERNAL_OES","YUV","OPAQUE","TRANSFORM","TEX_MATRIX","BRIGHTNESS","SOLID_COLOR"
+    };
+
+    // 编译统计
+    public static class CompileStats {
+        public final int variant;
+        public final long compileNanos;
+        // true代表在预热线程中编译，false代表在渲染线程中第一次使用时编译
+        public final boolean warmUp;
+
+        CompileStats(int variant,long compileNanos,boolean warmUp) {
+            this.variant = variant;
+            this.compileNanos = compileNanos;
+            this.warmUp = warmUp;
+        }
+    }
+
+    private final GLResourceManager mManager;
+    // 以下只在渲染线程中访问
+    private final HashMap<Integer,GLProgram> mPrograms = new HashMap<>();
+    private GLTextureLoader mLoader;
+    // 正在预热的变体
+    private final HashSet<Integer> mWarming = new HashSet<>();
+    // 编译统计，预热线程和渲染线程都会写入
+    private final ArrayList<CompileStats> mStats = new ArrayList<>();
+
+    /** manager:编译出的程序登记到的资源管理器，上下文丢失后会延迟重新编译
+     * */
+    public GLShaderLibrary(GLResourceManager manager) {
+        mManager = manager;
+    }
+
+    /** 获取变体对应的程序，还没有编译的话在当前线程中编译(会记录为一次未命中预热)
+     * */
+    public GLProgram getProgram(int variant) {
+        publish();
+        GLProgram program = mPrograms.get(variant);
+        if (program == null) {
+            program = compile(variant,false);
+            mPrograms.put(variant,program);
+            MLog.log("GLShaderLibrary compile " + variantName(variant) + " on render thread, not warmed up");
+        }
+        return program;
+    }
+
+    /** 在后台共享上下文中预编译一组变体，已经编译过或者正在预热的变体会跳过
+     * context:渲染线程当前的上下文
+     * */
+    public void warmUp(GLContext context,int... variants) {
+        for (final int variant : variants) {
+            if (mPrograms.containsKey(variant) || !mWarming.add(variant)) {
+                continue;
+            }
+            if (mLoader == null) {
+                mLoader = new GLTextureLoader(context,1,null);
+            }
+            final GLProgram[] result = new GLProgram[1];
+            mLoader.submit(new GLTextureLoader.Upload() {
+                @Override
+                public void upload() {
+                    result[0] = compile(variant,true);
+                }
+            },new Runnable() {
+                @Override
+                public void run() {
+                    mWarming.remove(variant);
+                    if (mPrograms.containsKey(variant)) {
+                        // 预热完成之前渲染线程已经临时编译了
+                        result[0].destroy();
+                    } else {
+                        GLProgram program = new GLProgram(mManager,result[0]);
+                        program.setOwner("GLShaderLibrary " + variantName(variant));
+                        mPrograms.put(variant,program);
+                    }
+                }
+            },new GLTextureLoader.OnUploadFailedListener() {
+                @Override
+                public void onUploadFailed(RuntimeException e) {
+                    // 预热失败，第一次使用时在渲染线程中编译
+                    mWarming.remove(variant);
+                }
+            });
+        }
+    }
+
+    /** 取回已经预热完成的程序，全部完成后结束预热线程；GLRenderEngine每一轮绘制前都会调用
+     * */
+    public int publish() {
+        if (mLoader == null) {
+            return 0;
+        }
+        int count = mLoader.publish();
+        if (mWarming.isEmpty()) {
+            mLoader.release();
+            mLoader = null;
+            MLog.log(getReport());
+        }
+        return count;
+    }
+
+    public boolean isWarmUpDone() {
+        return mLoader == null;
+    }
+
+    // 变体最近一次的编译耗时，单位纳秒，-1代表还没有编译过
+    public long getCompileTimeNanos(int variant) {
+        synchronized (mStats) {
+            for (int i = mStats.size() - 1; i >= 0; i--) {
+                if (mStats.get(i).variant == variant) {
+                    return mStats.get(i).compileNanos;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public ArrayList<CompileStats> getCompileStats() {
+        synchronized (mStats) {
+            return new ArrayList<>(mStats);
+        }
+    }
+
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("GLShaderLibrary programs ").append(mPrograms.size());
+        synchronized (mStats) {
+            for (CompileStats stats : mStats) {
+                sb.append("\n  ").append(variantName(stats.variant))
+                        .append(stats.warmUp ? " warm-up " : " render-thread ")
+                        .append(stats.compileNanos / 1000).append("us");
+            }
+        }
+        return sb.toString();
+    }
+
+    /** 上下文丢失，预热线程的共享上下文属于旧的共享组，直接结束；已有的程序由资源管理器在下次使用时重新编译
+     * */
+    public void onContextLost() {
+        if (mLoader != null) {
+            mLoader.release();
+            mLoader = null;
+        }
+        mWarming.clear();
+    }
+
+    // 释放所有程序以及预热线程
+    public void release() {
+        onContextLost();
+        for (Map.Entry<Integer,GLProgram> entry : mPrograms.entrySet()) {
+            entry.getValue().destroy();
+        }
+        mPrograms.clear();
+    }
+
+    private GLProgram compile(int variant,boolean warmUp) {
+        long start = System.nanoTime();
+        // GLProgram在构造时编译链接，并查询了链接状态，驱动不会把编译推迟到第一次绘制；预热线程中不登记到资源管理器
+        GLProgram program = new GLProgram(warmUp ? null : mManager,vertexSource(variant),fragmentSource(variant));
+        program.setOwner("GLShaderLibrary " + variantName(variant));
+        long nanos = System.nanoTime() - start;
+        synchronized (mStats) {
+            mStats.add(new CompileStats(variant,nanos,warmUp));
+        }
+        return program;
+    }
+
+    // 变体的名字，比如 "EXTERNAL_OES|TEX_MATRIX"，没有任何变体为 "DEFAULT"
+    public static String variantName(int variant) {
+        if (variant == 0) {
+            return "DEFAULT";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < DEFINES.length; i++) {
+            if ((variant & (1 << i)) != 0) {
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append(DEFINES[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String vertexSource(int variant) {
+        return header(variant,false) + VERTEX_TEMPLATE;
+    }
+
+    public static String fragmentSource(int variant) {
+        return header(variant,true) + FRAGMENT_TEMPLATE;
+    }
+
+    // #extension必须在所有非预处理语句之前，放在最前面
+    private static String header(int variant,boolean fragment) {
+        StringBuilder sb = new StringBuilder();
+        if (fragment && (variant & VARIANT_EXTERNAL_OES) != 0) {
+            sb.append("#extension GL_OES_EGL_image_external : require\n");
+        }
+        for (int i = 0; i < DEFINES.length; i++) {
+            if ((variant & (1 << i)) != 0) {
+                sb.append("#define ").append(DEFINES[i]).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** 遇到问题，glsl编译通不过
+     *  1、void修饰main()函数
+     *  2、varying 修饰的变量必须加精度修饰符 比如 highp
+     */
+    // 顶点着色器模板，texcoord声明为vec4，只传两个分量时w默认为1，乘以texMatrix时不需要补齐
+    private static final String VERTEX_TEMPLATE = "attribute vec4 position;\n" +
+            " attribute vec4 texcoord;\n" +
+            " #ifdef TRANSFORM\n" +
+            " uniform mat4 transform;\n" +
+            " #endif\n" +
+            " #ifdef TEX_MATRIX\n" +
+            " uniform mat4 texMatrix;\n" +
+            " #endif\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            " #ifdef TRANSFORM\n" +
+            "     gl_Position = transform * position;\n" +
+            " #else\n" +
+            "     gl_Position = position;\n" +
+            " #endif\n" +
+            " #ifdef TEX_MATRIX\n" +
+            "     tex_coord = (texMatrix * texcoord).xy;\n" +
+            " #else\n" +
+            "     tex_coord = texcoord.xy;\n" +
+            " #endif\n" +
+            " }";
+
+    // 片元着色器模板
+    private static final String FRAGMENT_TEMPLATE = "precision mediump float;\n" +
+            " #if defined(SOLID_COLOR)\n" +
+            " uniform lowp vec4 color;\n" +
+            " #elif defined(YUV)\n" +
+            " uniform sampler2D yTexture;\n" +
+            " uniform sampler2D uTexture;\n" +
+            " uniform sampler2D vTexture;\n" +
+            " #elif defined(EXTERNAL_OES)\n" +
+            " uniform samplerExternalOES texture;\n" +
+            " #else\n" +
+            " uniform sampler2D texture;\n" +
+            " #endif\n" +
+            " #ifdef BRIGHTNESS\n" +
+            " uniform lowp float brightness;\n" +
+            " #endif\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " \n" +
+            " void main(){\n" +
+            " #if defined(SOLID_COLOR)\n" +
+            "     lowp vec4 c = color;\n" +
+            " #elif defined(YUV)\n" +
+            "     float y = texture2D(yTexture,tex_coord).r;\n" +
+            "     float u = texture2D(uTexture,tex_coord).r - 0.5;\n" +
+            "     float v = texture2D(vTexture,tex_coord).r - 0.5;\n" +
+            "     lowp vec4 c = vec4(y + 1.402 * v,y - 0.344 * u - 0.714 * v,y + 1.772 * u,1.0);\n" +
+            " #else\n" +
+            "     lowp vec4 c = texture2D(texture,tex_coord);\n" +
+            " #endif\n" +
+            " #ifdef BRIGHTNESS\n" +
+            "     c.rgb = clamp(c.rgb + brightness,0.0,1.0);\n" +
+            " #endif\n" +
+            " #ifdef OPAQUE\n" +
+            "     c.a = 1.0;\n" +
+            " #endif\n" +
+            "     gl_FragColor = c;\n" +
+            " }";
+}
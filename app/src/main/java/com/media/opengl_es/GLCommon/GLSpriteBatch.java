@@ -0,0 +1,401 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/** 批量绘制大量精灵(图片，贴纸，图标等矩形)，把几百个精灵合并到尽可能少的draw call中
+ * 1、每个精灵有自己的位置，大小，缩放，旋转，纹理坐标(UV)，颜色和不透明度；在cpu中把它展开成4个顶点(位置 uv 颜色)，写入一个流式的顶点缓冲区
+ * 2、end()时按照 层 -> 着色器程序 -> 纹理 排序(同一层内才会重排，排序是稳定的)，然后一次上传所有顶点，相同程序和纹理的连续精灵用一次
+ * glDrawElements()绘制；配合GLTextureAtlas把小图片打包到同一个纹理中，整个场景通常只需要一两个draw call
+ * 3、超过maxSprites个精灵时会自动提前提交一次(flush)
+ * 4、每帧的draw call次数，flush次数和精灵个数可以通过getDrawCallCount()等获取
+ *
+ * 实例化绘制(glDrawArraysInstanced)需要OpenGL ES 3.0，这里的上下文是2.0的，所以采用cpu展开顶点的方式，几百个精灵的计算量可以忽略
+ *
+ * 坐标系：以视口左上角为原点，单位为像素，x向右，y向下
+ * 混合：预乘alpha(GL_ONE,GL_ONE_MINUS_SRC_ALPHA)，与Android的Bitmap通过GLUtils上传后的格式一致
+ * 自定义着色器程序：必须包含attribute vec2 position,attribute vec2 texcoord,attribute vec4 color以及uniform sampler2D texture，
+ * position已经是裁剪坐标，color是预乘过alpha的颜色
+ *
+ * 使用流程(GL线程)：
+ * batch.begin(width,height); batch.draw(...); ... batch.end();
+ * */
+public class GLSpriteBatch {
+
+    // 每个顶点 x,y,u,v,r,g,b,a
+    private static final int FLOATS_PER_VERTEX = 8;
+    private static final int FLOATS_PER_SPRITE = FLOATS_PER_VERTEX * 4;
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    // short类型的索引最多只能索引65536个顶点
+    private static final int MAX_SPRITES_LIMIT = 65536 / 4;
+
+    /** 顶点缓冲区和索引缓冲区，顶点每次flush都会用glBufferData(null)丢弃旧的存储(orphan)再写入，
+     * 避免等待gpu还在使用的上一批数据
+     * */
+    private static class Buffers extends GLResource {
+        private final int mMaxSprites;
+        int vbo;
+        int ibo;
+
+        Buffers(GLResourceManager manager,int maxSprites) {
+            super(manager,CATEGORY_BUFFER);
+            mMaxSprites = maxSprites;
+            setOwner("GLSpriteBatch");
+            create();
+        }
+
+        @Override
+        protected void onCreate() {
+            IntBuffer ids = IntBuffer.allocate(2);
+            GLES20.glGenBuffers(2,ids);
+            vbo = ids.get(0);
+            ibo = ids.get(1);
+            if (vbo == 0 || ibo == 0) {
+                MLog.log("glGenBuffers fail 0");
+            }
+
+            // 索引是固定的，每个精灵两个三角形 0 1 2, 2 1 3
+            ShortBuffer indices = ByteBuffer.allocateDirect(mMaxSprites * 6 * 2)
+                    .order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+            for (int i = 0; i < mMaxSprites; i++) {
+                short v = (short)(i * 4);
+                indices.put(v).put((short)(v + 1)).put((short)(v + 2))
+                        .put((short)(v + 2)).put((short)(v + 1)).put((short)(v + 3));
+            }
+            indices.position(0);
+            GLDispatch.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER,ibo);
+            GLDispatch.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER,mMaxSprites * 6 * 2,indices,GLES20.GL_STATIC_DRAW);
+            GLDispatch.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER,0);
+
+            GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,vbo);
+            GLDispatch.glBufferData(GLES20.GL_ARRAY_BUFFER,mMaxSprites * FLOATS_PER_SPRITE * 4,null,GLES20.GL_STREAM_DRAW);
+            GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,0);
+        }
+
+        @Override
+        public long getByteSize() {
+            return (long)mMaxSprites * (FLOATS_PER_SPRITE * 4 + 6 * 2);
+        }
+
+        @Override
+        protected void onRelease() {
+            IntBuffer ids = IntBuffer.allocate(2);
+            ids.put(vbo).put(ibo).position(0);
+            GLES20.glDeleteBuffers(2,ids);
+            vbo = 0;
+            ibo = 0;
+        }
+
+        @Override
+        protected void onContextLost() {
+            vbo = 0;
+            ibo = 0;
+        }
+    }
+
+    private final int mMaxSprites;
+    private final Buffers mBuffers;
+    private final GLProgram mDefaultProgram;
+    // 本批次用到的着色器程序，排序时用它在列表中的序号
+    private final ArrayList<GLProgram> mPrograms = new ArrayList<>();
+    /** 每个程序的变量位置 {程序id,position,texcoord,color,texture}，只在第一次使用或者程序重新编译(id变化)后查询一次，
+     * 不在每次绘制时调用glGetAttribLocation()/glGetUniformLocation()
+     * */
+    private final IdentityHashMap<GLProgram,int[]> mLocations = new IdentityHashMap<>();
+    // flush()前调用方的混合函数，{srcRGB,dstRGB,srcAlpha,dstAlpha}
+    private final int[] mSavedBlend = new int[4];
+
+    // 按提交顺序记录的顶点数据和排序键
+    private final float[] mVertices;
+    private final long[] mSortKeys;
+    private final int[] mTextures;
+    private final FloatBuffer mUpload;
+    private int mCount;
+
+    private float mViewportWidth;
+    private float mViewportHeight;
+    private GLProgram mProgram;
+    private int mLayer;
+    private boolean mDrawing;
+
+    // 当前帧的统计
+    private int mDrawCalls;
+    private int mFlushes;
+    private int mSprites;
+
+    /** manager:资源管理器，可以为null
+     * maxSprites:一次flush最多的精灵个数，超过后自动提交，最大16384
+     * */
+    public GLSpriteBatch(GLResourceManager manager,int maxSprites) {
+        mMaxSprites = Math.min(maxSprites,MAX_SPRITES_LIMIT);
+        mBuffers = new Buffers(manager,mMaxSprites);
+        mDefaultProgram = new GLProgram(manager,vString,fString);
+        mVertices = new float[mMaxSprites * FLOATS_PER_SPRITE];
+        mSortKeys = new long[mMaxSprites];
+        mTextures = new int[mMaxSprites];
+        mUpload = ByteBuffer.allocateDirect(mMaxSprites * FLOATS_PER_SPRITE * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    /** 开始一帧的绘制
+     * viewportWidth,viewportHeight:当前视口的大小，单位像素
+     * */
+    public void begin(int viewportWidth,int viewportHeight) {
+        mViewportWidth = viewportWidth;
+        mViewportHeight = viewportHeight;
+        mDrawing = true;
+        mCount = 0;
+        mLayer = 0;
+        mProgram = null;
+        mDrawCalls = 0;
+        mFlushes = 0;
+        mSprites = 0;
+    }
+
+    /** 设置后续精灵使用的着色器程序，null代表使用默认程序
+     * */
+    public void setProgram(GLProgram program) {
+        mProgram = program;
+    }
+
+    /** 设置后续精灵所在的层，只有同一层内的精灵才会按照程序和纹理重排，不同层之间保持提交顺序(层小的先绘制)
+     * 相互重叠并且需要保持前后关系的精灵要放在不同的层
+     * layer:0~65535
+     * */
+    public void setLayer(int layer) {
+        mLayer = layer;
+    }
+
+    /** 绘制纹理集中的一张图片，以(cx,cy)为中心，原始大小乘以scale
+     * */
+    public void draw(GLTextureAtlas.Region region,float cx,float cy,float scale,float rotation,int tint,float alpha) {
+        draw(region.getTexture(),cx,cy,region.width * scale,region.height * scale,rotation,
+                region.u0,region.v0,region.u1,region.v1,tint,alpha);
+    }
+
+    /** 绘制一个精灵
+     * texture:纹理id
+     * cx,cy:中心点，单位像素
+     * width,height:缩放后的宽高，单位像素
+     * rotation:绕中心点顺时针旋转的角度，单位度
+     * u0,v0,u1,v1:左上角和右下角的纹理坐标
+     * tint:颜色0xAARRGGBB，与纹理颜色相乘，0xFFFFFFFF代表不改变颜色
+     * alpha:不透明度 0~1
+     * */
+    public void draw(int texture,float cx,float cy,float width,float height,float rotation,
+                     float u0,float v0,float u1,float v1,int tint,float alpha) {
+        if (!mDrawing) {
+            throw new RuntimeException("GLSpriteBatch draw() must between begin() and end()");
+        }
+        if (mCount == mMaxSprites) {
+            flush();
+        }
+
+        // 预乘alpha的颜色
+        float a = ((tint >>> 24) & 0xff) / 255f * alpha;
+        float r = ((tint >> 16) & 0xff) / 255f * a;
+        float g = ((tint >> 8) & 0xff) / 255f * a;
+        float b = (tint & 0xff) / 255f * a;
+
+        // 四个角相对于中心的偏移旋转后转换到裁剪坐标
+        float hw = width / 2;
+        float hh = height / 2;
+        double rad = Math.toRadians(rotation);
+        float cos = (float)Math.cos(rad);
+        float sin = (float)Math.sin(rad);
+        float sx = 2 / mViewportWidth;
+        float sy = 2 / mViewportHeight;
+
+        int i = mCount * FLOATS_PER_SPRITE;
+        float[] v = mVertices;
+        // 左上 右上 左下 右下
+        for (int corner = 0; corner < 4; corner++) {
+            float dx = (corner & 1) == 0 ? -hw : hw;
+            float dy = (corner & 2) == 0 ? -hh : hh;
+            float x = cx + dx * cos - dy * sin;
+            float y = cy + dx * sin + dy * cos;
+            v[i++] = x * sx - 1;
+            v[i++] = 1 - y * sy;
+            v[i++] = (corner & 1) == 0 ? u0 : u1;
+            v[i++] = (corner & 2) == 0 ? v0 : v1;
+            v[i++] = r;
+            v[i++] = g;
+            v[i++] = b;
+            v[i++] = a;
+        }
+
+        GLProgram program = mProgram != null ? mProgram : mDefaultProgram;
+        int slot = mPrograms.indexOf(program);
+        if (slot < 0) {
+            slot = mPrograms.size();
+            mPrograms.add(program);
+        }
+        mTextures[mCount] = texture;
+        // 排序键：层(16位) 程序(8位) 纹理(24位) 提交序号(16位)，最后的序号保证排序是稳定的
+        mSortKeys[mCount] = ((long)(mLayer & 0xffff) << 48) | ((long)(slot & 0xff) << 40)
+                | ((long)(texture & 0xffffff) << 16) | mCount;
+        mCount++;
+    }
+
+    // 结束一帧的绘制，提交剩下的精灵
+    public void end() {
+        flush();
+        mDrawing = false;
+    }
+
+    /** 排序后一次上传所有的顶点，相同程序和纹理的连续精灵合并为一次draw call
+     * */
+    public void flush() {
+        if (mCount == 0) {
+            return;
+        }
+        Arrays.sort(mSortKeys,0,mCount);
+
+        mUpload.clear();
+        for (int i = 0; i < mCount; i++) {
+            int index = (int)(mSortKeys[i] & 0xffff);
+            mUpload.put(mVertices,index * FLOATS_PER_SPRITE,FLOATS_PER_SPRITE);
+        }
+        mUpload.position(0);
+
+        mBuffers.ensureValid();
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,mBuffers.vbo);
+        GLDispatch.glBufferData(GLES20.GL_ARRAY_BUFFER,mMaxSprites * FLOATS_PER_SPRITE * 4,null,GLES20.GL_STREAM_DRAW);
+        GLDispatch.glBufferSubData(GLES20.GL_ARRAY_BUFFER,0,mCount * FLOATS_PER_SPRITE * 4,mUpload);
+        GLDispatch.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER,mBuffers.ibo);
+
+        // 保存调用方的混合状态，结束后恢复，不影响批次外的绘制
+        boolean blend = GLES20.glIsEnabled(GLES20.GL_BLEND);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_SRC_RGB,mSavedBlend,0);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_DST_RGB,mSavedBlend,1);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_SRC_ALPHA,mSavedBlend,2);
+        GLES20.glGetIntegerv(GLES20.GL_BLEND_DST_ALPHA,mSavedBlend,3);
+        if (!blend) {
+            GLDispatch.glEnable(GLES20.GL_BLEND);
+        }
+        GLDispatch.glBlendFunc(GLES20.GL_ONE,GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+
+        int start = 0;
+        while (start < mCount) {
+            long key = mSortKeys[start] >>> 16;
+            int end = start + 1;
+            while (end < mCount && (mSortKeys[end] >>> 16) == key) {
+                end++;
+            }
+            GLProgram program = mPrograms.get((int)((key >>> 24) & 0xff));
+            int texture = mTextures[(int)(mSortKeys[start] & 0xffff)];
+            drawRange(program,texture,start,end - start);
+            start = end;
+        }
+
+        GLDispatch.glBlendFuncSeparate(mSavedBlend[0],mSavedBlend[1],mSavedBlend[2],mSavedBlend[3]);
+        if (!blend) {
+            GLDispatch.glDisable(GLES20.GL_BLEND);
+        }
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,0);
+        GLDispatch.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER,0);
+
+        mSprites += mCount;
+        mFlushes++;
+        mCount = 0;
+        mPrograms.clear();
+    }
+
+    private void drawRange(GLProgram program,int texture,int first,int count) {
+        program.useprogram();
+        int[] locations = locationsOf(program);
+        int position = locations[1];
+        int texcoord = locations[2];
+        int color = locations[3];
+        GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,STRIDE,0);
+        GLDispatch.glEnableVertexAttribArray(position);
+        GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,STRIDE,2 * 4);
+        GLDispatch.glEnableVertexAttribArray(texcoord);
+        GLDispatch.glVertexAttribPointer(color,4,GLES20.GL_FLOAT,false,STRIDE,4 * 4);
+        GLDispatch.glEnableVertexAttribArray(color);
+
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glUniform1i(locations[4],0);
+
+        GLDispatch.glDrawElements(GLES20.GL_TRIANGLES,count * 6,GLES20.GL_UNSIGNED_SHORT,first * 6 * 2);
+        mDrawCalls++;
+
+        GLDispatch.glDisableVertexAttribArray(position);
+        GLDispatch.glDisableVertexAttribArray(texcoord);
+        GLDispatch.glDisableVertexAttribArray(color);
+    }
+
+    private int[] locationsOf(GLProgram program) {
+        int id = program.getProgramId();
+        int[] locations = mLocations.get(program);
+        if (locations == null) {
+            locations = new int[5];
+            locations[0] = -1;
+            mLocations.put(program,locations);
+        }
+        if (locations[0] != id) {
+            locations[0] = id;
+            locations[1] = program.attributeLocationForname("position");
+            locations[2] = program.attributeLocationForname("texcoord");
+            locations[3] = program.attributeLocationForname("color");
+            locations[4] = program.uniformaLocationForname("texture");
+        }
+        return locations;
+    }
+
+    // 当前帧的draw call次数
+    public int getDrawCallCount() {
+        return mDrawCalls;
+    }
+
+    // 当前帧的flush次数，超过maxSprites或者手动调用flush()都会增加
+    public int getFlushCount() {
+        return mFlushes;
+    }
+
+    // 当前帧绘制的精灵个数
+    public int getSpriteCount() {
+        return mSprites;
+    }
+
+    public void destroy() {
+        mBuffers.destroy();
+        mDefaultProgram.destroy();
+        mLocations.clear();
+    }
+
+    private static final String vString = "attribute vec2 position;\n" +
+            " attribute vec2 texcoord;\n" +
+            " attribute vec4 color;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " varying lowp vec4 v_color;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     gl_Position = vec4(position,0.0,1.0);\n" +
+            "     tex_coord = texcoord;\n" +
+            "     v_color = color;\n" +
+            " }";
+    private static final String fString = "uniform sampler2D texture;\n" +
+            " \n" +
+            " varying highp vec2 tex_coord;\n" +
+            " varying lowp vec4 v_color;\n" +
+            " \n" +
+            " void main(){\n" +
+            "     gl_FragColor = texture2D(texture,tex_coord) * v_color;\n" +
+            " }";
+}
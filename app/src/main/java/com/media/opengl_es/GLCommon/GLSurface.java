@@ -69,6 +69,26 @@ public class GLSurface {
         //mHeight = mEglCore.querySurface(mEGLSurface, EGL14.EGL_HEIGHT);
     }
 
+    /** 重新创建window Surface，用于Surface销毁后重建或者换了一个新的Surface的情况
+     * 只重建EGLSurface，EGLContext以及上下文中的纹理，着色器程序，fbo等资源全部保留，不需要重新初始化
+     * 注：必须在GL线程中调用，调用后需要重新makeCurrent()
+     */
+    public void recreateWindowSurface(Object surface) {
+        if (mEGLSurface != EGL14.EGL_NO_SURFACE) {
+            // 正在使用的EGLSurface不会被立即销毁，所以要先解绑
+            if (mEglContext.isCurrent(mEGLSurface)) {
+                mEglContext.makeNothingCurrent();
+            }
+            releaseEglSurface();
+        }
+        createWindowSurface(surface);
+    }
+
+    // 是否已经创建了EGLSurface
+    public boolean hasSurface() {
+        return mEGLSurface != EGL14.EGL_NO_SURFACE;
+    }
+
     /**
      * Creates an off-screen surface.
      */
@@ -173,7 +193,7 @@ public class GLSurface {
         // typical GL conventions are used.
 
         // 读取设置字节对齐
-        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT,1);
+        GLDispatch.glPixelStorei(GLES20.GL_PACK_ALIGNMENT,1);
         int width = getWidth();
         int height = getHeight();
         ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
@@ -184,18 +204,13 @@ public class GLSurface {
         GLES20.glGetIntegerv(GLES20.GL_IMPLEMENTATION_COLOR_READ_TYPE,typebu);
         MLog.log("类型 colobu " + colobu.get(0) + "typebu " + typebu.get(0));
 
-        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
+        GLDispatch.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
         MLog.log("要读取的长和宽 w="+width + " hei " + height);
         /** 遇到问题：魅族 pro 7-s一直返回 0x502错误(GL_INVALID_OPERATION)，该错误根据官方文档的解释是glReadPixels()函数的format和type和frame buffer
          * 中像素的实际format、type不匹配造成的，返回错误之后buf得不到任何数据
          * 分析：但实际上format和type是对应上的，而且buf也读取到了正确的像素数据，仍然返回该错误，不知道为何，有待进一步研究。
+         * 错误检查统一由GLDispatch的debug模式完成，release模式下不再调用glGetError()
          * */
-        int error = GLES20.glGetError();
-        if (error != GLES20.GL_NO_ERROR) {
-            String msg = "glReadPixels: glError 0x" + Integer.toHexString(error);
-            MLog.log(msg);
-//            throw new RuntimeException(msg);
-        }
         buf.rewind();
 
         android.graphics.Matrix matrix = new android.graphics.Matrix();
@@ -212,6 +227,18 @@ public class GLSurface {
         return resizedBitmap;
     }
 
+    /** 按照目标大小获取渲染结果，在gpu上缩小后只回读width x height个像素，用于缩略图或者模型输入
+     * readback:调用方持有并重复使用，裁剪和缩放方式在上面设置
+     * return:readback内部重复使用的bitmap，下一次回读后会被覆盖
+     * */
+    public Bitmap framebufferToBitmap(GLScaledReadback readback,int width,int height) {
+        if (!mEglContext.isCurrent(mEGLSurface)) {
+            throw new RuntimeException("Expected EGL context/surface is not current");
+        }
+        readback.captureFramebuffer(getWidth(),getHeight(),width,height);
+        return readback.toBitmap();
+    }
+
     // 获取渲染结果，并保存到文件中
     public void saveFrame(File file) throws IOException {
         Bitmap bmp = framebufferToBitmap();
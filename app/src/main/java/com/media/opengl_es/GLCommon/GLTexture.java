@@ -0,0 +1,300 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.IntBuffer;
+
+/** 对GL_TEXTURE_2D纹理的封装
+ * 1、纹理的内容来自于一张Bitmap，Bitmap作为创建参数被记录下来，上下文丢失后下次使用时会重新上传
+ * 所以在纹理销毁之前不能调用Bitmap.recycle()
+ * 2、update()替换图片，大小不变时用texSubImage2D()，不会重新分配纹理的存储空间
+ * 3、Options可以设置过滤方式，mipmap以及显示大小：
+ * 大图显示在小视图中时，GL_NEAREST/GL_LINEAR只会稀疏的采样原图，纹理缓存命中率低，还会有锯齿和闪烁；开启mipmap后gpu按照缩小的比例
+ * 选择合适的层级采样，带宽和画质都更好；设置了显示大小时，原图比显示大小大很多则先缩小再上传，最大的一层就不会超出显示需要太多
+ * 注：所有函数都必须在GL线程中调用
+ * */
+public class GLTexture extends GLResource {
+
+    public static final int FILTER_NEAREST = 0;
+    public static final int FILTER_LINEAR = 1;
+    // 层级之间也做线性插值(GL_LINEAR_MIPMAP_LINEAR)，需要开启mipmap
+    public static final int FILTER_TRILINEAR = 2;
+
+    /** 纹理创建选项
+     * */
+    public static class Options {
+        // 过滤方式 FILTER_XXX
+        public int filter = FILTER_NEAREST;
+        // 是否生成mipmap
+        public boolean mipmap;
+        // 纹理在屏幕上的最大显示大小，单位像素，0代表未知(按照原图大小上传)
+        public int displayWidth;
+        public int displayHeight;
+
+        // 适合缩小显示的大图：三线性过滤+mipmap
+        public static Options downscaled(int displayWidth,int displayHeight) {
+            Options options = new Options();
+            options.filter = FILTER_TRILINEAR;
+            options.mipmap = true;
+            options.displayWidth = displayWidth;
+            options.displayHeight = displayHeight;
+            return options;
+        }
+    }
+
+    // 是否支持非2的幂次方纹理的mipmap，整个进程只检测一次
+    private static Boolean sNpotMipmapSupported;
+
+    private int texture;
+    private Bitmap mBitmap;
+    // 构造时从Options中复制，之后不再访问调用者的Options，同一个Options可以用于创建多个纹理
+    private final boolean mMipmap;
+    // 纹理在屏幕上的最大显示大小，0代表未知
+    private int mDisplayWidth;
+    private int mDisplayHeight;
+    // 原图的大小
+    private int mWidth;
+    private int mHeight;
+    // 实际上传到gpu的最大一层的大小
+    private int mTextureWidth;
+    private int mTextureHeight;
+    private int mMinFilter;
+    private int mMagFilter;
+    private final int[] mSize = new int[2];
+
+    public GLTexture(Bitmap bitmap) {
+        this(null,bitmap);
+    }
+
+    /** manager:资源管理器，上下文丢失后下次使用时会根据bitmap重新上传
+     * */
+    public GLTexture(GLResourceManager manager,Bitmap bitmap) {
+        this(manager,bitmap,new Options());
+    }
+
+    /** options:过滤方式，mipmap，显示大小等
+     * */
+    public GLTexture(GLResourceManager manager,Bitmap bitmap,Options options) {
+        super(manager,CATEGORY_TEXTURE);
+        mBitmap = bitmap;
+        mMipmap = options.mipmap;
+        mDisplayWidth = options.displayWidth;
+        mDisplayHeight = options.displayHeight;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        switch (options.filter) {
+            case FILTER_TRILINEAR:
+                mMinFilter = options.mipmap ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR;
+                mMagFilter = GLES20.GL_LINEAR;
+                break;
+            case FILTER_LINEAR:
+                mMinFilter = options.mipmap ? GLES20.GL_LINEAR_MIPMAP_NEAREST : GLES20.GL_LINEAR;
+                mMagFilter = GLES20.GL_LINEAR;
+                break;
+            default:
+                mMinFilter = options.mipmap ? GLES20.GL_NEAREST_MIPMAP_NEAREST : GLES20.GL_NEAREST;
+                mMagFilter = GLES20.GL_NEAREST;
+                break;
+        }
+        create();
+    }
+
+    @Override
+    protected void onCreate() {
+        IntBuffer texIntbuffer = IntBuffer.allocate(1);
+        GLES20.glGenTextures(1,texIntbuffer);
+        texture = texIntbuffer.get(0);
+        if (texture == 0) {
+            MLog.log("glGenTextures fail 0");
+        }
+
+        // 设置纹理参数
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,mMinFilter);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,mMagFilter);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+        if (mBitmap != null && !mBitmap.isRecycled()) {
+            upload(mBitmap);
+        } else {
+            MLog.log("GLTexture bitmap recycled, texture content lost");
+        }
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    /** 按照选项上传图片，调用前纹理要处于绑定状态
+     * 1、设置了显示大小并且原图比显示大小大两倍以上时，按照2的幂次方缩小到刚好不小于显示大小
+     * 2、开启mipmap时：2的幂次方的纹理或者支持GL_OES_texture_npot时直接用glGenerateMipmap()由gpu生成；
+     * 否则OpenGL ES 2.0中非2的幂次方的纹理不能使用mipmap(纹理不完整，采样结果为黑色)，先缩放到不大于它的2的幂次方再生成
+     * */
+    private void upload(Bitmap bitmap) {
+        chooseSize(bitmap.getWidth(),bitmap.getHeight(),mSize);
+        int width = mSize[0];
+        int height = mSize[1];
+        if (width == bitmap.getWidth() && height == bitmap.getHeight()) {
+            GLDispatch.texImage2D(GLES20.GL_TEXTURE_2D,0,bitmap,0);
+        } else {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,width,height,true);
+            GLDispatch.texImage2D(GLES20.GL_TEXTURE_2D,0,scaled,0);
+            scaled.recycle();
+        }
+        mTextureWidth = width;
+        mTextureHeight = height;
+
+        if (mMipmap) {
+            GLDispatch.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        }
+    }
+
+    // 根据选项计算实际上传的大小 out[0]=宽 out[1]=高
+    private void chooseSize(int width,int height,int[] out) {
+        if (mDisplayWidth > 0 && mDisplayHeight > 0) {
+            while (width / 2 >= mDisplayWidth && height / 2 >= mDisplayHeight) {
+                width /= 2;
+                height /= 2;
+            }
+        }
+        if (mMipmap && !isPowerOfTwo(width,height) && !isNpotMipmapSupported()) {
+            width = Integer.highestOneBit(width);
+            height = Integer.highestOneBit(height);
+        }
+        out[0] = width;
+        out[1] = height;
+    }
+
+    // 替换纹理的内容
+    public void update(Bitmap bitmap) {
+        boolean sizeChanged = bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight;
+        mBitmap = bitmap;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        if (!ensureValid()) {
+            // 刚刚用新的图片重新创建了
+            return;
+        }
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        if (!sizeChanged && mTextureWidth == mWidth && mTextureHeight == mHeight && !mMipmap) {
+            GLDispatch.texSubImage2D(GLES20.GL_TEXTURE_2D,0,0,0,bitmap);
+        } else {
+            int oldWidth = mTextureWidth;
+            int oldHeight = mTextureHeight;
+            upload(bitmap);
+            if (oldWidth != mTextureWidth || oldHeight != mTextureHeight) {
+                notifySizeChanged();
+            }
+        }
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    /** 显示大小改变(比如视图大小改变)时调用，最大一层的大小需要改变时重新上传
+     * */
+    public void setDisplaySize(int displayWidth,int displayHeight) {
+        if (displayWidth == mDisplayWidth && displayHeight == mDisplayHeight) {
+            return;
+        }
+        mDisplayWidth = displayWidth;
+        mDisplayHeight = displayHeight;
+        if (!ensureValid() || mBitmap == null || mBitmap.isRecycled()) {
+            return;
+        }
+        chooseSize(mWidth,mHeight,mSize);
+        if (mSize[0] == mTextureWidth && mSize[1] == mTextureHeight) {
+            return;
+        }
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        upload(mBitmap);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        notifySizeChanged();
+    }
+
+    // 设置纹理的过滤方式
+    public void setFilter(int minFilter,int magFilter) {
+        mMinFilter = minFilter;
+        mMagFilter = magFilter;
+        if (!ensureValid()) {
+            return;
+        }
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,minFilter);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,magFilter);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    // 将纹理绑定到指定的纹理单元 unit:0,1,2...
+    public void bind(int unit) {
+        ensureValid();
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+    }
+
+    // 获取 纹理texture id
+    public int getTexture() {
+        ensureValid();
+        return texture;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    // 原图的宽
+    public int getWidth() {
+        return mWidth;
+    }
+
+    // 原图的高
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // 实际上传的最大一层的宽
+    public int getTextureWidth() {
+        return mTextureWidth;
+    }
+
+    // 实际上传的最大一层的高
+    public int getTextureHeight() {
+        return mTextureHeight;
+    }
+
+    // 按照每个像素4字节估算，mipmap的所有层级加起来约为最大一层的4/3
+    @Override
+    public long getByteSize() {
+        long size = (long)mTextureWidth * mTextureHeight * 4;
+        return mMipmap ? size * 4 / 3 : size;
+    }
+
+    @Override
+    protected void onRelease() {
+        if (texture != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(texture).position(0);
+            GLES20.glDeleteTextures(1,buf);
+            texture = 0;
+        }
+    }
+
+    @Override
+    protected void onContextLost() {
+        texture = 0;
+    }
+
+    static boolean isPowerOfTwo(int width,int height) {
+        return (width & (width - 1)) == 0 && (height & (height - 1)) == 0;
+    }
+
+    // 必须在GL线程中调用
+    static boolean isNpotMipmapSupported() {
+        if (sNpotMipmapSupported == null) {
+            String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            sNpotMipmapSupported = extensions != null && extensions.contains("GL_OES_texture_npot");
+        }
+        return sNpotMipmapSupported;
+    }
+}
@@ -0,0 +1,414 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/** 动态纹理图集，把大量的小图片(图标，贴纸等)打包到少数几张大纹理中
+ * 1、每张大纹理称为一页(Page)，用GLAtlasPacker的skyline算法分配位置，新图片用texSubImage2D()增量上传，不会重新分配纹理存储空间
+ * 2、add()返回Region，里面是图片所在的页以及纹理坐标(UV)；同一页里的所有图片可以用同一个纹理在一次draw call中绘制(见GLSpriteBatch)，
+ * 不需要每张图片绑定一次纹理
+ * 3、每张图片四周留PADDING个像素的透明边，避免线性过滤时采样到相邻的图片
+ * 4、回收：evictUnused()删除长时间没有使用的图片；skyline算法删除后空间不能直接复用，当一页中被删除的面积过多(碎片化)或者
+ * 所有页都放不下新图片时，对该页重新装箱(repack)：清空后把仍然存活的图片重新放入并上传
+ * 5、每一页都是GLResource，上下文丢失或者被显存预算回收后，下次使用时根据记录的图片重新创建
+ *
+ * 注：
+ * 1、所有函数都必须在GL线程中调用
+ * 2、图片会被引用直到从图集中删除，这期间不能调用Bitmap.recycle()
+ * 3、repack后图片的位置会改变，所以不要跨帧缓存Region中的UV，每帧从Region中重新读取
+ * */
+public class GLTextureAtlas {
+
+    // 图片四周留的透明边的像素数
+    private static final int PADDING = 1;
+    // 一页中被删除的面积超过这个比例时重新装箱
+    private static final float REPACK_WASTE_RATIO = 0.5f;
+
+    /** 图片在图集中的位置
+     * */
+    public static class Region {
+        final String key;
+        final Bitmap bitmap;
+        Page page;
+        int x;
+        int y;
+        public final int width;
+        public final int height;
+        // 纹理坐标，(u0,v0)对应图片左上角，(u1,v1)对应右下角
+        public float u0;
+        public float v0;
+        public float u1;
+        public float v1;
+        long lastUsedFrame;
+
+        Region(String key,Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.width = bitmap.getWidth();
+            this.height = bitmap.getHeight();
+        }
+
+        // 所在页的序号
+        public int getPage() {
+            return page.index;
+        }
+
+        // 所在页的纹理id
+        public int getTexture() {
+            return page.getTexture();
+        }
+
+        void setPosition(int x,int y,int size) {
+            this.x = x;
+            this.y = y;
+            u0 = (float)x / size;
+            v0 = (float)y / size;
+            u1 = (float)(x + width) / size;
+            v1 = (float)(y + height) / size;
+        }
+    }
+
+    /** 图集中的一页，一个size*size的RGBA纹理
+     * */
+    static class Page extends GLResource {
+        final int index;
+        final int size;
+        final GLAtlasPacker packer;
+        final ArrayList<Region> regions = new ArrayList<>();
+        // 被删除的图片占用的面积
+        long wastedArea;
+        private int texture;
+
+        Page(GLResourceManager manager,int index,int size) {
+            super(manager,CATEGORY_TEXTURE);
+            this.index = index;
+            this.size = size;
+            packer = new GLAtlasPacker(size,size);
+            // 内容可以根据记录的图片完整重建，允许被显存预算回收
+            setEvictable(true);
+            setOwner("GLTextureAtlas page " + index);
+            create();
+        }
+
+        @Override
+        protected void onCreate() {
+            IntBuffer ids = IntBuffer.allocate(1);
+            GLES20.glGenTextures(1,ids);
+            texture = ids.get(0);
+            if (texture == 0) {
+                MLog.log("glGenTextures fail 0");
+            }
+            GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+            GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_LINEAR);
+            GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+            GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+            GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+            GLDispatch.glTexImage2D(GLES20.GL_TEXTURE_2D,0,GLES20.GL_RGBA,size,size,0,GLES20.GL_RGBA,GLES20.GL_UNSIGNED_BYTE,null);
+            clear();
+            // 重建时把记录的图片重新上传
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
+            for (Region region : regions) {
+                upload(region);
+            }
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        }
+
+        /** glTexImage2D()传null时纹理的内容是未定义的，透明边里可能有脏数据，这里用一个临时的fbo在gpu中清成全透明，
+         * 避免在cpu中分配size*size*4字节的空数据
+         * 注：上下文丢失或者被回收后会在onCreate()中延迟重建，调用方可能正在往自己的fbo中绘制，所以清除前保存当前绑定的framebuffer，
+         * 清屏颜色和裁剪测试，清除后全部恢复
+         * */
+        void clear() {
+            IntBuffer state = IntBuffer.allocate(1);
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING,state);
+            int previousFramebuffer = state.get(0);
+            FloatBuffer clearColor = FloatBuffer.allocate(4);
+            GLES20.glGetFloatv(GLES20.GL_COLOR_CLEAR_VALUE,clearColor);
+            boolean scissor = GLES20.glIsEnabled(GLES20.GL_SCISSOR_TEST);
+
+            IntBuffer ids = IntBuffer.allocate(1);
+            GLES20.glGenFramebuffers(1,ids);
+            int fbo = ids.get(0);
+            GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,fbo);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,GLES20.GL_COLOR_ATTACHMENT0,GLES20.GL_TEXTURE_2D,texture,0);
+            if (scissor) {
+                GLDispatch.glDisable(GLES20.GL_SCISSOR_TEST);
+            }
+            GLDispatch.glClearColor(0,0,0,0);
+            GLDispatch.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+            GLDispatch.glClearColor(clearColor.get(0),clearColor.get(1),clearColor.get(2),clearColor.get(3));
+            if (scissor) {
+                GLDispatch.glEnable(GLES20.GL_SCISSOR_TEST);
+            }
+            GLDispatch.glBindFramebuffer(GLES20.GL_FRAMEBUFFER,previousFramebuffer);
+            ids.put(0,fbo).position(0);
+            GLES20.glDeleteFramebuffers(1,ids);
+        }
+
+        // 调用前纹理要处于绑定状态
+        void upload(Region region) {
+            GLDispatch.texSubImage2D(GLES20.GL_TEXTURE_2D,0,region.x,region.y,region.bitmap);
+        }
+
+        int getTexture() {
+            ensureValid();
+            return texture;
+        }
+
+        @Override
+        public long getByteSize() {
+            return (long)size * size * 4;
+        }
+
+        @Override
+        protected void onRelease() {
+            if (texture != 0) {
+                IntBuffer buf = IntBuffer.allocate(1);
+                buf.put(texture).position(0);
+                GLES20.glDeleteTextures(1,buf);
+                texture = 0;
+            }
+        }
+
+        @Override
+        protected void onContextLost() {
+            texture = 0;
+        }
+    }
+
+    private final GLResourceManager mManager;
+    private final int mPageSize;
+    private final ArrayList<Page> mPages = new ArrayList<>();
+    private final HashMap<String,Region> mRegions = new HashMap<>();
+    private final int[] mPosition = new int[2];
+    private long mFrame;
+    private int mRepackCount;
+
+    /** manager:资源管理器，可以为null
+     * pageSize:每一页纹理的边长，比如1024或者2048，不能超过GL_MAX_TEXTURE_SIZE
+     * */
+    public GLTextureAtlas(GLResourceManager manager,int pageSize) {
+        mManager = manager;
+        mPageSize = pageSize;
+    }
+
+    /** 添加一张图片，key已经存在则直接返回原来的位置
+     * return:图片的位置，图片比一页还大时返回null，这种图片应该单独用GLTexture
+     * */
+    public Region add(String key,Bitmap bitmap) {
+        Region region = mRegions.get(key);
+        if (region != null) {
+            region.lastUsedFrame = mFrame;
+            return region;
+        }
+        if (bitmap.getWidth() + PADDING * 2 > mPageSize || bitmap.getHeight() + PADDING * 2 > mPageSize) {
+            MLog.log("GLTextureAtlas bitmap too large " + bitmap.getWidth() + "x" + bitmap.getHeight());
+            return null;
+        }
+
+        region = new Region(key,bitmap);
+        region.lastUsedFrame = mFrame;
+        Page page = place(region);
+        if (page == null) {
+            // 所有页都放不下，先尝试对碎片最多的页重新装箱，还是放不下再新建一页
+            Page fragmented = mostFragmented();
+            if (fragmented != null) {
+                repack(fragmented);
+                page = insert(fragmented,region) ? fragmented : null;
+            }
+            if (page == null) {
+                page = insertIntoNewPage(region);
+            }
+        }
+        upload(page,region);
+        mRegions.put(key,region);
+        return region;
+    }
+
+    // 获取图片的位置并标记为本帧使用过，不存在返回null
+    public Region get(String key) {
+        Region region = mRegions.get(key);
+        if (region != null) {
+            region.lastUsedFrame = mFrame;
+        }
+        return region;
+    }
+
+    // 删除一张图片，它占用的空间在重新装箱后才能被复用
+    public void remove(String key) {
+        Region region = mRegions.remove(key);
+        if (region != null) {
+            detach(region);
+        }
+    }
+
+    /** 删除超过maxIdleFrames帧没有使用(add()或者get())的图片，然后对碎片化严重的页重新装箱
+     * return:删除的图片个数
+     * */
+    public int evictUnused(int maxIdleFrames) {
+        int count = 0;
+        Iterator<Region> it = mRegions.values().iterator();
+        while (it.hasNext()) {
+            Region region = it.next();
+            if (mFrame - region.lastUsedFrame > maxIdleFrames) {
+                it.remove();
+                detach(region);
+                count++;
+            }
+        }
+        // 重新装箱时放不下的图片可能会新建一页，不能用迭代器
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            if (page.wastedArea > (long)mPageSize * mPageSize * REPACK_WASTE_RATIO) {
+                repack(page);
+            }
+        }
+        return count;
+    }
+
+    // 每一帧绘制完成后调用
+    public void nextFrame() {
+        mFrame++;
+    }
+
+    public int getPageCount() {
+        return mPages.size();
+    }
+
+    // 第page页的纹理id
+    public int getTexture(int page) {
+        return mPages.get(page).getTexture();
+    }
+
+    public int getRegionCount() {
+        return mRegions.size();
+    }
+
+    public int getRepackCount() {
+        return mRepackCount;
+    }
+
+    // 释放所有页的纹理
+    public void destroy() {
+        for (Page page : mPages) {
+            page.destroy();
+        }
+        mPages.clear();
+        mRegions.clear();
+    }
+
+    // 在已有的页中按顺序寻找能放下的位置
+    private Page place(Region region) {
+        for (Page page : mPages) {
+            if (insert(page,region)) {
+                return page;
+            }
+        }
+        return null;
+    }
+
+    private boolean insert(Page page,Region region) {
+        if (!page.packer.insert(region.width + PADDING * 2,region.height + PADDING * 2,mPosition)) {
+            return false;
+        }
+        region.page = page;
+        region.setPosition(mPosition[0] + PADDING,mPosition[1] + PADDING,mPageSize);
+        page.regions.add(region);
+        return true;
+    }
+
+    private Page insertIntoNewPage(Region region) {
+        Page page = new Page(mManager,mPages.size(),mPageSize);
+        mPages.add(page);
+        insert(page,region);
+        return page;
+    }
+
+    /** 上传刚刚放入page的图片；页被回收过或者上下文丢失过时ensureValid()会重建纹理，onCreate()已经上传了包括这张在内的所有图片，不需要再上传
+     * */
+    private void upload(Page page,Region region) {
+        if (!page.ensureValid()) {
+            return;
+        }
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,page.texture);
+        page.upload(region);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+    }
+
+    private void detach(Region region) {
+        Page page = region.page;
+        page.regions.remove(region);
+        page.wastedArea += (long)(region.width + PADDING * 2) * (region.height + PADDING * 2);
+    }
+
+    private Page mostFragmented() {
+        Page result = null;
+        for (Page page : mPages) {
+            if (page.wastedArea > 0 && (result == null || page.wastedArea > result.wastedArea)) {
+                result = page;
+            }
+        }
+        return result;
+    }
+
+    /** 重新装箱：清空这一页，把存活的图片按照面积从大到小重新放入并上传，大的先放可以减少碎片
+     * */
+    private void repack(Page page) {
+        ArrayList<Region> regions = new ArrayList<>(page.regions);
+        Collections.sort(regions,new Comparator<Region>() {
+            @Override
+            public int compare(Region o1, Region o2) {
+                return o2.width * o2.height - o1.width * o1.height;
+            }
+        });
+        page.regions.clear();
+        page.packer.reset();
+        page.wastedArea = 0;
+        ArrayList<Region> displaced = null;
+        for (Region region : regions) {
+            // 面积从大到小重新放入，一般不会失败
+            if (!insert(page,region)) {
+                if (displaced == null) {
+                    displaced = new ArrayList<>();
+                }
+                displaced.add(region);
+            }
+        }
+
+        if (page.ensureValid()) {
+            page.clear();
+            GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,page.texture);
+            for (Region region : page.regions) {
+                page.upload(region);
+            }
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        }
+        // 放不下的图片移到其它页(都放不下则新建一页)，调用者持有的Region随之更新页和纹理坐标，不会指向这一页中其它图片的像素
+        if (displaced != null) {
+            for (Region region : displaced) {
+                Page target = place(region);
+                if (target == null) {
+                    target = insertIntoNewPage(region);
+                }
+                upload(target,region);
+                MLog.log("GLTextureAtlas repack move " + region.key + " to page " + target.index);
+            }
+        }
+        mRepackCount++;
+        MLog.log("GLTextureAtlas repack page " + page.index + " regions " + page.regions.size());
+    }
+}
@@ -0,0 +1,273 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** 后台上传纹理/缓冲区的加载器
+ * 1、每个加载线程拥有一个与渲染线程的上下文共享的GLContext(绑定在1x1的pbuffer上)，纹理和缓冲区在加载线程中创建和上传，id在渲染线程中同样有效，
+ * 大图片的上传(glTexImage2D)不会占用渲染线程的帧时间
+ * 2、上传完成后插入fence，等fence signal(gpu真正完成了上传)后才把结果交给渲染线程，否则渲染线程可能采样到还没有上传完的纹理；
+ * 一次取出队列中的多个任务，共用一个fence
+ * 3、渲染线程在每帧开始时调用publish()，在渲染线程中执行各个任务的完成回调；有结果等待publish时回调onReady，一般用来请求渲染
+ * 4、单个任务上传时抛出的异常只影响这个任务：异常交给这个任务的失败回调(同样在publish()中执行)，加载线程继续处理后面的任务
+ *
+ * 关于fence：EGL_KHR_fence_sync在Java层只有EGL15(API 29)才提供，这里编译的是API 28，所以使用功能相同的OpenGL ES 3.0的glFenceSync()；
+ * 上下文不是3.0时用glFinish()代替，它只阻塞加载线程，同样不会影响渲染线程
+ *
+ * 注：
+ * 1、共享组中的gl对象随着渲染线程的上下文一起销毁，渲染线程的上下文丢失后需要重新加载
+ * 2、构造函数和publish()，release()必须在渲染线程中调用
+ * */
+public class GLTextureLoader {
+
+    // 在加载线程中执行，共享上下文已经是当前上下文
+    public interface Upload {
+        void upload();
+    }
+
+    // 纹理加载完成，执行于渲染线程的publish()中；上传失败时texture为0
+    public interface OnTextureLoadedListener {
+        void onTextureLoaded(int texture,int width,int height);
+    }
+
+    // 上传任务抛出了异常，执行于渲染线程的publish()中
+    public interface OnUploadFailedListener {
+        void onUploadFailed(RuntimeException e);
+    }
+
+    // 一次最多合并的任务数
+    private static final int MAX_BATCH = 8;
+    // 等待fence的超时时间
+    private static final long FENCE_TIMEOUT_NANOS = 1000000000L;
+
+    private static class Task {
+        final Upload upload;
+        final Runnable onPublished;
+        final OnUploadFailedListener onFailed;
+        // 上传时抛出的异常，只在加载线程中访问
+        RuntimeException error;
+
+        Task(Upload upload,Runnable onPublished,OnUploadFailedListener onFailed) {
+            this.upload = upload;
+            this.onPublished = onPublished;
+            this.onFailed = onFailed;
+        }
+    }
+
+    // 通知加载线程退出的标记
+    private static final Task QUIT = new Task(null,null,null);
+
+    private final GLContext mSharedContext;
+    private final Runnable mOnReady;
+    private final LinkedBlockingQueue<Task> mQueue = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> mPublished = new ConcurrentLinkedQueue<>();
+    private final Thread[] mWorkers;
+
+    /** sharedContext:渲染线程的上下文
+     * threads:加载线程数，一般1个就够了，上传是受带宽限制的
+     * onReady:有结果等待publish()时回调，执行于加载线程，可以为null
+     * */
+    public GLTextureLoader(GLContext sharedContext,int threads,Runnable onReady) {
+        mSharedContext = sharedContext;
+        mOnReady = onReady;
+        mWorkers = new Thread[Math.max(1,threads)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            },"GLTextureLoader-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /** 提交一个上传任务，可以在任意线程调用
+     * onPublished:上传完成并且gpu已经执行完后，在渲染线程的publish()中执行，可以为null
+     * */
+    public void submit(Upload upload,Runnable onPublished) {
+        submit(upload,onPublished,null);
+    }
+
+    /** onFailed:upload()抛出异常时代替onPublished在渲染线程的publish()中执行，为null时只打印日志
+     * */
+    public void submit(Upload upload,Runnable onPublished,OnUploadFailedListener onFailed) {
+        mQueue.add(new Task(upload,onPublished,onFailed));
+    }
+
+    /** 在加载线程中把bitmap上传为纹理，可以在任意线程调用
+     * recycle:上传完成后是否回收bitmap
+     * */
+    public void loadTexture(final Bitmap bitmap,final boolean recycle,final OnTextureLoadedListener listener) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] texture = new int[1];
+        submit(new Upload() {
+            @Override
+            public void upload() {
+                IntBuffer ids = IntBuffer.allocate(1);
+                GLES20.glGenTextures(1,ids);
+                texture[0] = ids.get(0);
+                GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,texture[0]);
+                GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_LINEAR);
+                GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+                GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+                GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+                GLDispatch.texImage2D(GLES20.GL_TEXTURE_2D,0,bitmap,0);
+                GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+                if (recycle) {
+                    bitmap.recycle();
+                }
+            }
+        },new Runnable() {
+            @Override
+            public void run() {
+                listener.onTextureLoaded(texture[0],width,height);
+            }
+        },new OnUploadFailedListener() {
+            @Override
+            public void onUploadFailed(RuntimeException e) {
+                // 纹理属于同一个共享组，在渲染线程中删除
+                if (texture[0] != 0) {
+                    GLES20.glDeleteTextures(1,texture,0);
+                }
+                if (recycle && !bitmap.isRecycled()) {
+                    bitmap.recycle();
+                }
+                listener.onTextureLoaded(0,width,height);
+            }
+        });
+    }
+
+    /** 在渲染线程中每帧开始时调用，执行已经完成的任务的回调
+     * return:执行的回调个数
+     * */
+    public int publish() {
+        int count = 0;
+        Runnable r;
+        while ((r = mPublished.poll()) != null) {
+            r.run();
+            count++;
+        }
+        return count;
+    }
+
+    // 还没有完成的任务个数
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /** 停止所有加载线程，还没有开始的任务会被丢弃
+     * */
+    public void release() {
+        mQueue.clear();
+        for (int i = 0; i < mWorkers.length; i++) {
+            mQueue.add(QUIT);
+        }
+        for (Thread worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        publish();
+    }
+
+    private void loop() {
+        GLContext context = new GLContext(mSharedContext,GLContext.FLAG_OFFSCREEN);
+        GLSurface surface = new GLSurface(context);
+        surface.createOffscreenSurface(1,1);
+        surface.makeCurrent();
+        try {
+            processTasks();
+        } finally {
+            // 即使出现了意外的异常也要释放共享上下文
+            context.makeNothingCurrent();
+            surface.releaseEglSurface();
+            context.release();
+            MLog.log(Thread.currentThread().getName() + " quit");
+        }
+    }
+
+    private void processTasks() {
+        boolean gles3 = GLContext.isCurrentGLES3();
+        MLog.log(Thread.currentThread().getName() + " start, fence " + (gles3 ? "glFenceSync" : "glFinish"));
+
+        ArrayList<Task> batch = new ArrayList<>();
+        boolean quit = false;
+        while (!quit) {
+            batch.clear();
+            try {
+                batch.add(mQueue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            mQueue.drainTo(batch,MAX_BATCH - 1);
+
+            int count = 0;
+            for (Task task : batch) {
+                if (task == QUIT) {
+                    if (quit) {
+                        // 一次取出了多个退出标记，多余的放回去留给其它加载线程
+                        mQueue.add(QUIT);
+                    }
+                    quit = true;
+                    continue;
+                }
+                try {
+                    task.upload.upload();
+                } catch (RuntimeException e) {
+                    MLog.log("GLTextureLoader upload fail " + e);
+                    task.error = e;
+                }
+                count++;
+            }
+            if (count == 0) {
+                continue;
+            }
+
+            // 等待gpu执行完上面的上传命令
+            if (gles3) {
+                long sync = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE,0);
+                int status = GLES30.glClientWaitSync(sync,GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,FENCE_TIMEOUT_NANOS);
+                GLES30.glDeleteSync(sync);
+                if (status == GLES30.GL_TIMEOUT_EXPIRED || status == GLES30.GL_WAIT_FAILED) {
+                    MLog.log("GLTextureLoader fence wait fail " + status + ", fall back to glFinish");
+                    GLES20.glFinish();
+                }
+            } else {
+                GLES20.glFinish();
+            }
+
+            for (final Task task : batch) {
+                if (task == QUIT) {
+                    continue;
+                }
+                if (task.error != null) {
+                    if (task.onFailed != null) {
+                        mPublished.add(new Runnable() {
+                            @Override
+                            public void run() {
+                                task.onFailed.onUploadFailed(task.error);
+                            }
+                        });
+                    }
+                } else if (task.onPublished != null) {
+                    mPublished.add(task.onPublished);
+                }
+            }
+            if (mOnReady != null) {
+                mOnReady.run();
+            }
+        }
+    }
+}
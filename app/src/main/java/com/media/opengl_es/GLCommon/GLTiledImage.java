@@ -0,0 +1,341 @@
+package com.media.opengl_es.GLCommon;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/** 分块渲染超大图片(超过GL_MAX_TEXTURE_SIZE，比如4800万~1亿像素的相机照片)
+ * 1、GLUtils.texImage2D()上传超过GL_MAX_TEXTURE_SIZE的图片会失败，绘制结果为黑色；这里把图片划分为tileSize*tileSize的网格，
+ * 每一块对应一个纹理，绘制时每块画一个矩形
+ * 2、只上传与视口相交的块，按照离视口中心的距离由近到远上传；每帧上传的耗时不超过预算(setUploadBudgetMs())，超出的留到下一帧，
+ * draw()返回true时调用者要再请求一帧，这样大图不会让某一帧卡顿几百毫秒
+ * 3、无缝拼接：每块纹理四周多带1个像素的相邻块的内容，纹理坐标只取中间的部分，线性过滤时边缘采样到的就是相邻块的像素，不会出现接缝
+ * 4、驻留的块超过maxResidentTiles时，删除不在视口中的块
+ * 5、整个分块图片作为一个GLResource登记，上下文丢失后所有块在重新可见时重新上传
+ *
+ * 坐标：屏幕像素 = 图片像素 * scale + offset，屏幕以左上角为原点
+ * 注：所有函数都必须在GL线程中调用
+ * */
+public class GLTiledImage extends GLResource {
+
+    /** 提供图片某个区域的像素
+     * */
+    public interface TileProvider {
+        // 解码rect区域的像素，返回的Bitmap大小必须等于rect的大小，调用者用完后会recycle()
+        Bitmap decodeRegion(Rect rect);
+    }
+
+    // 从内存中的Bitmap中截取
+    public static TileProvider fromBitmap(final Bitmap bitmap) {
+        return new TileProvider() {
+            @Override
+            public Bitmap decodeRegion(Rect rect) {
+                return Bitmap.createBitmap(bitmap,rect.left,rect.top,rect.width(),rect.height());
+            }
+        };
+    }
+
+    // 用BitmapRegionDecoder从文件中只解码需要的区域，图片不需要整个解码到内存中
+    public static TileProvider fromRegionDecoder(final BitmapRegionDecoder decoder) {
+        return new TileProvider() {
+            @Override
+            public Bitmap decodeRegion(Rect rect) {
+                synchronized (decoder) {
+                    return decoder.decodeRegion(rect,null);
+                }
+            }
+        };
+    }
+
+    // 每块纹理四周多带的像素
+    private static final int BORDER = 1;
+    private static final int DEFAULT_TILE_SIZE = 512;
+
+    private static class Tile {
+        // 在图片中的区域(不含边)
+        final Rect content = new Rect();
+        // 纹理对应的区域(含边)
+        final Rect bordered = new Rect();
+        float u0, v0, u1, v1;
+        int texture;
+        long lastVisibleFrame;
+    }
+
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final TileProvider mProvider;
+    private final int mTileSize;
+    private final Tile[] mTiles;
+    private final ArrayList<Tile> mPending = new ArrayList<>();
+    private int mResidentCount;
+    private int mMaxResidentTiles = 64;
+    private long mUploadBudgetNanos = 4000000L;
+    private long mFrame;
+
+    private GLProgram mProgram;
+    private final float[] mVertices = new float[16];
+    private final FloatBuffer mVertexBuffer;
+
+    /** imageWidth,imageHeight:图片的原始大小
+     * tileSize:每块的大小，<=0则使用默认的512，会被限制在GL_MAX_TEXTURE_SIZE以内
+     * */
+    public GLTiledImage(GLResourceManager manager,int imageWidth,int imageHeight,TileProvider provider,int tileSize) {
+        super(manager,CATEGORY_TEXTURE);
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mProvider = provider;
+
+        IntBuffer max = IntBuffer.allocate(1);
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE,max);
+        int size = tileSize > 0 ? tileSize : DEFAULT_TILE_SIZE;
+        mTileSize = Math.min(size,max.get(0) - BORDER * 2);
+
+        int cols = (imageWidth + mTileSize - 1) / mTileSize;
+        int rows = (imageHeight + mTileSize - 1) / mTileSize;
+        mTiles = new Tile[cols * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                Tile tile = new Tile();
+                tile.content.set(col * mTileSize,row * mTileSize,
+                        Math.min((col + 1) * mTileSize,imageWidth),Math.min((row + 1) * mTileSize,imageHeight));
+                tile.bordered.set(Math.max(tile.content.left - BORDER,0),Math.max(tile.content.top - BORDER,0),
+                        Math.min(tile.content.right + BORDER,imageWidth),Math.min(tile.content.bottom + BORDER,imageHeight));
+                float bw = tile.bordered.width();
+                float bh = tile.bordered.height();
+                tile.u0 = (tile.content.left - tile.bordered.left) / bw;
+                tile.v0 = (tile.content.top - tile.bordered.top) / bh;
+                tile.u1 = (tile.content.right - tile.bordered.left) / bw;
+                tile.v1 = (tile.content.bottom - tile.bordered.top) / bh;
+                mTiles[row * cols + col] = tile;
+            }
+        }
+        mVertexBuffer = ByteBuffer.allocateDirect(mVertices.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mProgram = new GLProgram(manager,GLShaderLibrary.vertexSource(0),GLShaderLibrary.fragmentSource(0));
+        setOwner("GLTiledImage " + imageWidth + "x" + imageHeight);
+        create();
+        MLog.log("GLTiledImage " + imageWidth + "x" + imageHeight + " tiles " + mTiles.length + " size " + mTileSize);
+    }
+
+    // 块是按需上传的，这里不需要创建任何gl对象
+    @Override
+    protected void onCreate() {
+    }
+
+    // 每帧用于上传块的最长时间，单位毫秒，至少会上传一块
+    public void setUploadBudgetMs(float ms) {
+        mUploadBudgetNanos = (long)(ms * 1000000);
+    }
+
+    // 最多驻留的块数
+    public void setMaxResidentTiles(int count) {
+        mMaxResidentTiles = count;
+    }
+
+    /** 绘制视口中可见的块，调用前要先设置好glViewport
+     * viewWidth,viewHeight:视口大小，单位像素
+     * scale,offsetX,offsetY:屏幕像素 = 图片像素 * scale + offset
+     * return:true代表还有可见的块没有上传，调用者需要再请求一帧
+     * */
+    public boolean draw(int viewWidth,int viewHeight,float scale,float offsetX,float offsetY) {
+        ensureValid();
+        mFrame++;
+
+        // 视口在图片中的区域
+        float left = -offsetX / scale;
+        float top = -offsetY / scale;
+        float right = (viewWidth - offsetX) / scale;
+        float bottom = (viewHeight - offsetY) / scale;
+        final float cx = (left + right) / 2;
+        final float cy = (top + bottom) / 2;
+
+        mPending.clear();
+        for (Tile tile : mTiles) {
+            Rect c = tile.content;
+            if (c.right <= left || c.left >= right || c.bottom <= top || c.top >= bottom) {
+                continue;
+            }
+            tile.lastVisibleFrame = mFrame;
+            if (tile.texture == 0) {
+                mPending.add(tile);
+            }
+        }
+
+        // 离视口中心近的先上传
+        Collections.sort(mPending,new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                return Float.compare(distance(a,cx,cy),distance(b,cx,cy));
+            }
+        });
+        long start = System.nanoTime();
+        int uploaded = 0;
+        for (Tile tile : mPending) {
+            if (uploaded > 0 && System.nanoTime() - start > mUploadBudgetNanos) {
+                break;
+            }
+            upload(tile);
+            uploaded++;
+        }
+        boolean needMore = uploaded < mPending.size();
+        if (uploaded > 0) {
+            trim();
+            notifySizeChanged();
+        }
+
+        mProgram.useprogram();
+        int position = mProgram.attributeLocationForname("position");
+        int texcoord = mProgram.attributeLocationForname("texcoord");
+        GLDispatch.glUniform1i(mProgram.uniformaLocationForname("texture"),0);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glEnableVertexAttribArray(position);
+        GLDispatch.glEnableVertexAttribArray(texcoord);
+        for (Tile tile : mTiles) {
+            if (tile.lastVisibleFrame != mFrame || tile.texture == 0) {
+                continue;
+            }
+            Rect c = tile.content;
+            float x0 = (c.left * scale + offsetX) / viewWidth * 2 - 1;
+            float x1 = (c.right * scale + offsetX) / viewWidth * 2 - 1;
+            float y0 = 1 - (c.top * scale + offsetY) / viewHeight * 2;
+            float y1 = 1 - (c.bottom * scale + offsetY) / viewHeight * 2;
+            float[] v = mVertices;
+            // x y u v，左上 右上 左下 右下
+            v[0] = x0; v[1] = y0; v[2] = tile.u0; v[3] = tile.v0;
+            v[4] = x1; v[5] = y0; v[6] = tile.u1; v[7] = tile.v0;
+            v[8] = x0; v[9] = y1; v[10] = tile.u0; v[11] = tile.v1;
+            v[12] = x1; v[13] = y1; v[14] = tile.u1; v[15] = tile.v1;
+            mVertexBuffer.position(0);
+            mVertexBuffer.put(v).position(0);
+            GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,16,mVertexBuffer);
+            mVertexBuffer.position(2);
+            GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,16,mVertexBuffer);
+            GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,tile.texture);
+            GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+        }
+        GLDispatch.glDisableVertexAttribArray(position);
+        GLDispatch.glDisableVertexAttribArray(texcoord);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        return needMore;
+    }
+
+    private static float distance(Tile tile,float cx,float cy) {
+        float dx = tile.content.exactCenterX() - cx;
+        float dy = tile.content.exactCenterY() - cy;
+        return dx * dx + dy * dy;
+    }
+
+    private void upload(Tile tile) {
+        Bitmap bitmap = mProvider.decodeRegion(tile.bordered);
+        if (bitmap == null) {
+            MLog.log("GLTiledImage decode tile fail " + tile.bordered);
+            return;
+        }
+        IntBuffer ids = IntBuffer.allocate(1);
+        GLES20.glGenTextures(1,ids);
+        tile.texture = ids.get(0);
+        GLDispatch.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,tile.texture);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_LINEAR);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+        GLDispatch.texImage2D(GLES20.GL_TEXTURE_2D,0,bitmap,0);
+        GLDispatch.glBindTexture(GLES20.GL_TEXTURE_2D,0);
+        bitmap.recycle();
+        mResidentCount++;
+    }
+
+    // 驻留的块过多时，删除最久没有可见的块
+    private void trim() {
+        if (mResidentCount <= mMaxResidentTiles) {
+            return;
+        }
+        ArrayList<Tile> resident = new ArrayList<>();
+        for (Tile tile : mTiles) {
+            if (tile.texture != 0 && tile.lastVisibleFrame != mFrame) {
+                resident.add(tile);
+            }
+        }
+        Collections.sort(resident,new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                return Long.compare(a.lastVisibleFrame,b.lastVisibleFrame);
+            }
+        });
+        for (int i = 0; i < resident.size() && mResidentCount > mMaxResidentTiles; i++) {
+            deleteTexture(resident.get(i));
+        }
+    }
+
+    private void deleteTexture(Tile tile) {
+        IntBuffer buf = IntBuffer.allocate(1);
+        buf.put(tile.texture).position(0);
+        GLES20.glDeleteTextures(1,buf);
+        tile.texture = 0;
+        mResidentCount--;
+    }
+
+    public int getTileCount() {
+        return mTiles.length;
+    }
+
+    public int getResidentTileCount() {
+        return mResidentCount;
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    @Override
+    public long getByteSize() {
+        long size = 0;
+        for (Tile tile : mTiles) {
+            if (tile.texture != 0) {
+                size += (long)tile.bordered.width() * tile.bordered.height() * 4;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    protected void onRelease() {
+        for (Tile tile : mTiles) {
+            if (tile.texture != 0) {
+                deleteTexture(tile);
+            }
+        }
+    }
+
+    @Override
+    protected void onContextLost() {
+        for (Tile tile : mTiles) {
+            tile.texture = 0;
+        }
+        mResidentCount = 0;
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        mProgram.destroy();
+    }
+
+}
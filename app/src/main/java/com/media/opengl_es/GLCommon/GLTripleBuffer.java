@@ -0,0 +1,57 @@
+package com.media.opengl_es.GLCommon;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 三缓冲的"最新值"槽，用于UI线程向渲染线程传递帧输入(图片，变换矩阵，滤镜参数等)
+ * 1、三个缓冲区分别由生产者(写)，消费者(读)持有，剩下一个作为中间交换区；生产者写完后publish()把写缓冲区和中间区交换，
+ * 消费者update()时如果中间区有新的数据就把读缓冲区和中间区交换
+ * 2、交换只是一次CAS，双方都不会阻塞；生产者连续多次publish()时旧的值直接被覆盖，消费者永远拿到最新的值
+ * 3、缓冲区对象在构造时创建并循环使用，生产者要写入getWriteBuffer()返回对象的所有字段(它可能是之前用过的旧对象)
+ *
+ * 注：只能有一个生产者线程和一个消费者线程
+ * */
+public class GLTripleBuffer<T> {
+
+    // mMiddle的低2位为中间区的缓冲区序号，DIRTY位代表中间区有未读取的新数据
+    private static final int INDEX_MASK = 0x3;
+    private static final int DIRTY = 0x4;
+
+    private final Object[] mBuffers;
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // 只由生产者访问
+    private int mWrite = 0;
+    // 只由消费者访问
+    private int mRead = 2;
+
+    public GLTripleBuffer(T a,T b,T c) {
+        mBuffers = new Object[]{a,b,c};
+    }
+
+    // 生产者：获取当前可以写入的缓冲区
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T)mBuffers[mWrite];
+    }
+
+    // 生产者：发布写缓冲区中的数据
+    public void publish() {
+        mWrite = mMiddle.getAndSet(mWrite | DIRTY) & INDEX_MASK;
+    }
+
+    /** 消费者：如果有新发布的数据则交换到读缓冲区
+     * return:true代表读缓冲区更新了
+     * */
+    public boolean update() {
+        if ((mMiddle.get() & DIRTY) == 0) {
+            return false;
+        }
+        mRead = mMiddle.getAndSet(mRead) & INDEX_MASK;
+        return true;
+    }
+
+    // 消费者：获取最近一次update()得到的数据
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        return (T)mBuffers[mRead];
+    }
+}
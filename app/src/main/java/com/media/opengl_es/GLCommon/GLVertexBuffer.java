@@ -0,0 +1,110 @@
+package com.media.opengl_es.GLCommon;
+
+import android.opengl.GLES20;
+
+import com.media.opengl_es.utils.MLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/** 对顶点缓冲区对象VBO的封装
+ * 顶点数据放在gpu的内存中，绘制时不需要每次都从cpu内存中传递顶点数据；顶点数据作为创建参数被记录下来，上下文丢失后下次使用时重新上传
+ * 使用方式：
+ * vbo.bind();
+ * GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,0,0); // 最后一个参数为vbo中的偏移，单位字节
+ * vbo.unbind();
+ * 注：所有函数都必须在GL线程中调用
+ * */
+public class GLVertexBuffer extends GLResource {
+
+    private int buffer;
+    private float[] mData;
+    private final int mUsage;
+
+    public GLVertexBuffer(float[] data) {
+        this(null,data,GLES20.GL_STATIC_DRAW);
+    }
+
+    /** usage:GL_STATIC_DRAW 数据不会改变，GL_DYNAMIC_DRAW/GL_STREAM_DRAW 数据会经常改变
+     * */
+    public GLVertexBuffer(GLResourceManager manager,float[] data,int usage) {
+        super(manager,CATEGORY_BUFFER);
+        mData = data;
+        mUsage = usage;
+        create();
+    }
+
+    @Override
+    protected void onCreate() {
+        IntBuffer ids = IntBuffer.allocate(1);
+        GLES20.glGenBuffers(1,ids);
+        buffer = ids.get(0);
+        if (buffer == 0) {
+            MLog.log("glGenBuffers fail 0");
+        }
+        upload();
+    }
+
+    private void upload() {
+        FloatBuffer fb = ByteBuffer.allocateDirect(mData.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        fb.put(mData).position(0);
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,buffer);
+        GLDispatch.glBufferData(GLES20.GL_ARRAY_BUFFER,mData.length * 4,fb,mUsage);
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,0);
+    }
+
+    // 替换顶点数据
+    public void update(float[] data) {
+        boolean sizeChanged = data.length != mData.length;
+        mData = data;
+        if (ensureValid()) {
+            upload();
+            if (sizeChanged) {
+                notifySizeChanged();
+            }
+        }
+    }
+
+    public void bind() {
+        ensureValid();
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,buffer);
+    }
+
+    public void unbind() {
+        GLDispatch.glBindBuffer(GLES20.GL_ARRAY_BUFFER,0);
+    }
+
+    public int getBuffer() {
+        ensureValid();
+        return buffer;
+    }
+
+    // 字节数
+    public int getSize() {
+        return mData.length * 4;
+    }
+
+    @Override
+    public long getByteSize() {
+        return getSize();
+    }
+
+    @Override
+    protected void onRelease() {
+        if (buffer != 0) {
+            IntBuffer buf = IntBuffer.allocate(1);
+            buf.put(buffer).position(0);
+            GLES20.glDeleteBuffers(1,buf);
+            buffer = 0;
+        }
+    }
+
+    @Override
+    protected void onContextLost() {
+        buffer = 0;
+    }
+}
@@ -80,6 +80,36 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    /** 前后台切换时通知渲染视图，EGLContext以及gpu资源都会尽量保留，回到前台后不需要重新初始化
+     * */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (glSurfaceView != null) {
+            glSurfaceView.onPause();
+        }
+        if (surfaceView != null) {
+            surfaceView.onPause();
+        }
+        if (textureView != null) {
+            textureView.onPause();
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (glSurfaceView != null) {
+            glSurfaceView.onResume();
+        }
+        if (surfaceView != null) {
+            surfaceView.onResume();
+        }
+        if (textureView != null) {
+            textureView.onResume();
+        }
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
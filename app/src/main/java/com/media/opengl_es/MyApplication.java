@@ -0,0 +1,21 @@
+package com.media.opengl_es;
+
+import android.app.Application;
+
+import com.media.opengl_es.GLCommon.GLDispatch;
+import com.media.opengl_es.GLCommon.GLRenderEngine;
+import com.media.opengl_es.GLCommon.GLShaderLibrary;
+
+/** 应用启动时就预热默认的渲染引擎：EGL初始化，上下文，共享顶点缓冲区的创建以及着色器变体的编译都在渲染线程和预热线程中与Activity的
+ * 创建并行完成，第一个视图的Surface可用时只剩下创建EGLSurface这一步
+ * */
+public class MyApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // debug包每次gl调用后检查错误，release包直接调用；需要性能数据时可以切换为GLDispatch.MODE_STATS
+        GLDispatch.setMode(BuildConfig.DEBUG ? GLDispatch.MODE_DEBUG : GLDispatch.MODE_RELEASE);
+        GLRenderEngine.prewarm(0,GLShaderLibrary.VARIANT_SOLID_COLOR);
+    }
+}
@@ -4,11 +4,15 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
+import android.opengl.Matrix;
 import android.util.AttributeSet;
 
-import com.media.opengl_es.GLCommon.GLFrameBuffer;
+import com.media.opengl_es.GLCommon.GLDirtyState;
+import com.media.opengl_es.GLCommon.GLDispatch;
+import com.media.opengl_es.GLCommon.GLLifecycle;
 import com.media.opengl_es.GLCommon.GLProgram;
+import com.media.opengl_es.GLCommon.GLShaderLibrary;
+import com.media.opengl_es.GLCommon.GLTexture;
 import com.media.opengl_es.utils.MLog;
 
 import java.nio.Buffer;
@@ -41,8 +45,10 @@ import javax.microedition.khronos.opengles.GL10;
  * */
 public class MyGLSurfaceView extends GLSurfaceView {
 
-    // 先保存要显示的纹理
-    private Bitmap mBitmap;
+    /** 先保存要显示的纹理
+     * 在UI线程中写入，在GL线程中读取；volatile保证GL线程可以看到最新的图片
+     * */
+    private volatile Bitmap mBitmap;
     private int mWidth;
     private int mHeight;
     // 顶点坐标
@@ -50,6 +56,15 @@ public class MyGLSurfaceView extends GLSurfaceView {
     // 纹理坐标
     private ByteBuffer fbuffer;
 
+    // 脏标记，内容有变化时才请求渲染，同一帧内的多次修改只会渲染一次
+    private final GLDirtyState mDirtyState = new GLDirtyState();
+    // 顶点变换矩阵和滤镜参数，在UI线程中修改，GL线程中读取，通过mParamLock保护
+    private final Object mParamLock = new Object();
+    private final float[] mTransform = new float[16];
+    private float mBrightness;
+    // 前后台切换时保留上下文，上下文丢失后延迟重建资源，并统计恢复后第一帧的耗时
+    private final GLLifecycle mLifecycle = new GLLifecycle();
+
     // 1、初始化GLSurfaceView，包括调用setRenderer()设置GLSurfaceView.Renderer对象
     // setRenderer()将会创建一个渲染线程
     public MyGLSurfaceView(Context context) {
@@ -68,6 +83,10 @@ public class MyGLSurfaceView extends GLSurfaceView {
     private void initGLESContext() {
         // 设置版本，必须要
         setEGLContextClientVersion(2);
+        // 切到后台时尽量保留EGLContext，回到前台不需要重建着色器程序和纹理；设备不支持时onSurfaceCreated()会被重新调用
+        setPreserveEGLContextOnPause(true);
+
+        Matrix.setIdentityM(mTransform,0);
 
         GLRGBRender render = new GLRGBRender();
         setRenderer(render);
@@ -81,6 +100,54 @@ public class MyGLSurfaceView extends GLSurfaceView {
             return;
         }
         mBitmap = bitmap;
+        markDirty(GLDirtyState.DIRTY_IMAGE);
+    }
+
+    /** 设置顶点变换矩阵(4x4，列主序)，可以用来实现平移，缩放，旋转
+     * */
+    public void setTransform(float[] matrix) {
+        synchronized (mParamLock) {
+            System.arraycopy(matrix,0,mTransform,0,16);
+        }
+        markDirty(GLDirtyState.DIRTY_TRANSFORM);
+    }
+
+    /** 设置亮度滤镜参数 范围[-1.0,1.0]，0代表原图
+     * */
+    public void setBrightness(float brightness) {
+        synchronized (mParamLock) {
+            if (mBrightness == brightness) {
+                return;
+            }
+            mBrightness = brightness;
+        }
+        markDirty(GLDirtyState.DIRTY_FILTER);
+    }
+
+    // 标记内容变化，只有从干净变为脏的时候才请求渲染，多次修改合并为一次渲染
+    private void markDirty(int flags) {
+        if (mDirtyState.mark(flags)) {
+            requestRender();
+        }
+    }
+
+    // 需要在Activity的onPause()中调用
+    @Override
+    public void onPause() {
+        mLifecycle.onPause();
+        super.onPause();
+    }
+
+    // 需要在Activity的onResume()中调用
+    @Override
+    public void onResume() {
+        mLifecycle.onResume();
+        super.onResume();
+    }
+
+    // 最近一次从onResume()到第一帧绘制完成的耗时，单位毫秒
+    public float getResumeLatencyMs() {
+        return mLifecycle.getResumeLatencyMs();
     }
 
     public void destroy() {
@@ -94,19 +161,39 @@ public class MyGLSurfaceView extends GLSurfaceView {
      * 遇到问题：无法成功渲染
      * 解决方案：因为SurfaceView默认就创建了一个Surface，这个Surface中就包含了一个FBO及Render buffer 等等，所以这里如果又创建了fbo 并且将其激活，则会覆盖Surface的行为
      * 所以渲染不到屏幕上去了。解决方法就是不需像IOS那样自己额外创建fbo了
+     *
+     * 按需渲染：只有调用requestRender()或者Surface创建，大小改变时onDrawFrame()才会被调用；onDrawFrame()返回后GLSurfaceView一定会调用
+     * eglSwapBuffers()，所以每次被调用都要完整的画一遍，但是只有变化了的部分才会重新提交给gpu(比如纹理只在图片变化时才上传)
      * */
     private class GLRGBRender implements GLSurfaceView.Renderer{
 
         // 着色器程序
         private GLProgram mprogram;
-
+        // 纹理 只创建一次，图片变化时重新上传
+        private GLTexture mTexture;
+        private Bitmap mUploadedBitmap;
+        private final float[] mDrawTransform = new float[16];
+        // 没有图片时取出的标记留到有图片的那一帧处理，只在GL线程中访问；不能重新mark()，否则之后的mark()不会再请求渲染
+        private int mPendingDirty;
+        // 最近一次设置uniform的程序，程序重新创建后uniform都是0，必须重新设置
+        private int mUniformProgramId;
+
+        /** 第一次创建上下文，或者上下文丢失后重新创建时调用；保留了上下文的前后台切换不会调用
+         * */
         @Override
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
             MLog.log("onSurfaceCreated thread " + Thread.currentThread());
 
-            // 初始化着色器程序
-            mprogram = new GLProgram(vString,fString);
-            mprogram.useprogram();
+            if (mLifecycle.onContextCreated()) {
+                // 上下文丢失后重建的，着色器程序和纹理在下次使用时根据记录的参数自动重建
+                MLog.log("EGLContext lost, resources will be recreated lazily");
+            } else {
+                // 初始化着色器程序
+                // 顶点变换矩阵和亮度调节的着色器变体
+                int variant = GLShaderLibrary.VARIANT_TRANSFORM | GLShaderLibrary.VARIANT_BRIGHTNESS;
+                mprogram = new GLProgram(mLifecycle.getResourceManager(),GLShaderLibrary.vertexSource(variant),
+                        GLShaderLibrary.fragmentSource(variant));
+            }
 
             // 初始化顶点坐标和纹理坐标v
             vbuffer = ByteBuffer.allocateDirect(verdata.length * 4);
@@ -117,6 +204,9 @@ public class MyGLSurfaceView extends GLSurfaceView {
             fbuffer.order(ByteOrder.nativeOrder())
                     .asFloatBuffer().put(texdata)
                     .position(0);
+
+            // 新的上下文，所有的状态都要重新提交
+            mDirtyState.mark(GLDirtyState.DIRTY_ALL);
         }
 
         @Override
@@ -125,96 +215,79 @@ public class MyGLSurfaceView extends GLSurfaceView {
             mWidth = width;
             mHeight = height;
 
-            GLES20.glClearColor(1.0f,0.0f,0.0f,1.0f);
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-            GLES20.glViewport(0,0,mWidth,mHeight);
-
+            GLDispatch.glClearColor(1.0f,0.0f,0.0f,1.0f);
+            GLDispatch.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLDispatch.glViewport(0,0,mWidth,mHeight);
+            if (mTexture != null) {
+                mTexture.setDisplaySize(mWidth,mHeight);
+            }
 
-//            // 按需渲染模式，则需要要手动调用该函数才会触发onDraw()函数调用，貌似这里不调用onDrawFrame()也会调用三次
-//            requestRender();
+            // 大小改变后GLSurfaceView会自动调用onDrawFrame()，这里只需要标记，不需要requestRender()
+            mDirtyState.mark(GLDirtyState.DIRTY_SURFACE);
         }
 
         @Override
         public void onDrawFrame(GL10 gl) {
-            MLog.log("onDrawFrame thread " + Thread.currentThread());
+            // 取出这一帧之前所有的修改，之后的修改会触发下一次渲染
+            int dirty = mDirtyState.consume() | mPendingDirty;
+            mPendingDirty = 0;
+            MLog.log("onDrawFrame dirty " + dirty + " thread " + Thread.currentThread());
+
+            Bitmap bitmap = mBitmap;
+            if (bitmap == null) {
+                mPendingDirty = dirty;
+                GLDispatch.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                return;
+            }
 
+            // 上下文丢失后着色器程序会在这里重建，uniform的值也要重新设置
+            if (!mprogram.ensureValid() || mprogram.getProgramId() != mUniformProgramId) {
+                dirty |= GLDirtyState.DIRTY_ALL;
+                mUniformProgramId = mprogram.getProgramId();
+            }
             // 为着色器程序赋值
             mprogram.useprogram();
 
             int position = mprogram.attributeLocationForname("position");
             int texcoord = mprogram.attributeLocationForname("texcoord");
             int texture = mprogram.uniformaLocationForname("texture");
-            GLES20.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,0,vbuffer);
-            GLES20.glEnableVertexAttribArray(position);
-            GLES20.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,0,fbuffer);
-            GLES20.glEnableVertexAttribArray(texcoord);
-            MLog.log("position " + position + " texcoord " + texcoord + " texture " + texture);
-
-//            IntBuffer io = IntBuffer.allocate(1);
-//            GLES20.glGenRenderbuffers(1,io);
-//            renderbuffer = io.get(0);
-//            MLog.log("render buff " + renderbuffer);
-//            GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER,renderbuffer);
-//            GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER,GLES20.GL_COLOR_ATTACHMENT0,GLES20.GL_RENDERBUFFER,renderbuffer);
-
-            // 开始上传纹理
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            // 设置纹理参数
-            IntBuffer texIntbuffer = IntBuffer.allocate(1);
-            GLES20.glGenTextures(1,texIntbuffer);
-            texture = texIntbuffer.get(0);
-            if (texture == 0) {
-                MLog.log("glGenTextures fail 0");
-            }
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
-
-            // 设置纹理参数
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_NEAREST);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_NEAREST);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+            GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,0,vbuffer);
+            GLDispatch.glEnableVertexAttribArray(position);
+            GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,0,fbuffer);
+            GLDispatch.glEnableVertexAttribArray(texcoord);
 
             // 第二个参数和前面用glActiveTexture()函数激活的纹理单元编号要一致，这样opengl es才知道用哪个纹理单元对象 去处理纹理
-            GLES20.glUniform1i(texture,0);
-
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D,0,mBitmap,0);
-//                ByteBuffer pixelsbuffer = ByteBuffer.allocateDirect(mBitmap.getByteCount());
-//                mBitmap.copyPixelsToBuffer(pixelsbuffer);
-//
-//                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D,0,GLES20.GL_RGB,width,height,0,GLES20.GL_RGB,GLES20.GL_UNSIGNED_BYTE,pixelsbuffer);
+            // 只有图片变化时才重新上传纹理
+            if (mTexture == null) {
+                // 图片一般比视图大很多，按照视图大小缩小后生成mipmap，用三线性过滤采样
+                mTexture = new GLTexture(mLifecycle.getResourceManager(),bitmap,GLTexture.Options.downscaled(mWidth,mHeight));
+                mUploadedBitmap = bitmap;
+            } else if (bitmap != mUploadedBitmap) {
+                mTexture.update(bitmap);
+                mUploadedBitmap = bitmap;
+            }
+            mTexture.bind(0);
+            GLDispatch.glUniform1i(texture,0);
+
+            // uniform的值保存在着色器程序中，只在变化时才重新设置
+            if ((dirty & (GLDirtyState.DIRTY_TRANSFORM | GLDirtyState.DIRTY_FILTER)) != 0) {
+                float brightness;
+                synchronized (mParamLock) {
+                    System.arraycopy(mTransform,0,mDrawTransform,0,16);
+                    brightness = mBrightness;
+                }
+                GLDispatch.glUniformMatrix4fv(mprogram.uniformaLocationForname("transform"),1,false,mDrawTransform,0);
+                GLDispatch.glUniform1f(mprogram.uniformaLocationForname("brightness"),brightness);
+            }
 
-//                mBitmap.recycle();
-//                pixelsbuffer.clear();
+            GLDispatch.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
 
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
+            mLifecycle.onFrameDrawn();
         }
     }
 
 
-    /** 遇到问题，glsl编译通不过
-     *  1、void修饰main()函数
-     *  2、varying 修饰的变量必须加精度修饰符 比如 highp
-     */
-    // 顶点着色器
-    private static final String vString = "attribute vec4 position;\n" +
-            " attribute vec2 texcoord;\n" +
-            " \n" +
-            " varying highp vec2 tex_coord;\n" +
-            " \n" +
-            " void main(){\n" +
-            "     gl_Position = position;\n" +
-            "     tex_coord = texcoord;\n" +
-            " }";
-    // 片元着色器
-    private static final String fString = "uniform sampler2D texture;\n" +
-            " \n" +
-            " varying highp vec2 tex_coord;\n" +
-            " \n" +
-            " void main(){\n" +
-            "     gl_FragColor = texture2D(texture,tex_coord);\n" +
-            " }";
     // 顶点坐标
     private static final float verdata[] = {
             -1.0f,-1.0f,
@@ -4,222 +4,209 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.TextureView;
 
-import com.media.opengl_es.GLCommon.GLContext;
+import com.media.opengl_es.GLCommon.GLDispatch;
+import com.media.opengl_es.GLCommon.GLFrameScheduler;
 import com.media.opengl_es.GLCommon.GLProgram;
+import com.media.opengl_es.GLCommon.GLRenderEngine;
+import com.media.opengl_es.GLCommon.GLShaderLibrary;
 import com.media.opengl_es.GLCommon.GLSurface;
+import com.media.opengl_es.GLCommon.GLTexture;
+import com.media.opengl_es.GLCommon.GLTripleBuffer;
+import com.media.opengl_es.GLCommon.GLVertexBuffer;
 import com.media.opengl_es.utils.MLog;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
 
 /** 它与SurfaceView一样，继承与View，不同的是
  * 1、具有View的所有特性，可以缩放，平移等动画变换，占据view-Hierarchy的位置。SurfaceView不能想普通View那样平移和缩放
  * 2、创建一个可以用于离线渲染的FBO，用来承载纹理的Texture，没有独立的Surface。SurfaceView是有一个独立于普通视图的Surface
+ * 3、和MySurfaceView一样作为渲染目标挂到GLRenderEngine上，多个视图共用一个渲染线程和EGLContext
  * */
-public class MyTextureView extends TextureView {
-    private RenderThread mRenderThread;
-    private GLContext mGLcontext;
+public class MyTextureView extends TextureView implements TextureView.SurfaceTextureListener {
+    private final GLRenderEngine mEngine;
+    private final Renderer mRenderer = new Renderer();
 
-    // 顶点坐标
-    private ByteBuffer vbuffer;
-    // 纹理坐标
-    private ByteBuffer fbuffer;
 
     public MyTextureView(Context context) {
-        super(context);
-        initView(context);
+        this(context,GLRenderEngine.getDefault());
     }
 
     public MyTextureView(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mEngine = GLRenderEngine.getDefault();
         initView(context);
     }
 
-    private void initView(Context context) {
-        mRenderThread = new RenderThread();
-        mRenderThread.start();
+    /** engine:挂载的渲染引擎，同一个引擎上的所有视图共用一个渲染线程和EGLContext
+     * */
+    public MyTextureView(Context context, GLRenderEngine engine) {
+        super(context);
+        mEngine = engine;
+        initView(context);
+    }
 
-        setSurfaceTextureListener(mRenderThread);
+    private void initView(Context context) {
+        setSurfaceTextureListener(this);
     }
 
     public void onCreate() {
 
     }
 
+    // 从引擎上移除，gl资源在渲染线程中由Renderer.onRelease()释放，图片也一起回收
     public void onDestroy() {
-        mRenderThread.stopRender();
+        mRenderer.mRecycleBitmap = true;
+        mEngine.removeTarget(mRenderer);
     }
 
-    // 渲染一张 PNG的图片
-    public void loadBitmap(Bitmap bitmap) {
-        if (mRenderThread == null) {
-            return;
-        }
-        mRenderThread.loadBitmap(bitmap);
+    /** 视图从窗口移除(比如Activity销毁)时自动从引擎上移除，引擎是共享的，不能等到进程结束才释放这个视图的资源
+     * 注：父类中会先销毁Surface，EGLSurface已经在surfaceDestroyed()中释放了；重新添加到窗口后会作为新的目标重新创建资源
+     * */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mEngine.removeTarget(mRenderer);
     }
 
-    private class RenderThread extends Thread implements SurfaceTextureListener{
-        private Bitmap mBitmap;
-        private SurfaceTexture mSurfaceTexture;
-        private Object mLock = new Object();      // 条件锁
-        private boolean mRun;      // 标志线程是否结束
-        private GLSurface mSurface;
-        private GLProgram mprogram;
+    /** 切到后台时调用，EGLContext以及所有的gpu资源都会保留，Surface销毁时只释放EGLSurface
+     * */
+    public void onPause() {
+        mEngine.getLifecycle().onPause();
+    }
 
-        public RenderThread() {
-            MLog.log("RenderThread()");
-        }
+    // 回到前台时调用，统计从这里到第一帧绘制完成的耗时
+    public void onResume() {
+        mEngine.getLifecycle().onResume();
+        mEngine.requestRender(mRenderer);
+    }
 
-        public void stopRender() {
-            synchronized (mLock) {
-                mRun = false;
-            }
+    // 最近一次从onResume()到第一帧绘制完成的耗时，单位毫秒
+    public float getResumeLatencyMs() {
+        return mEngine.getLifecycle().getResumeLatencyMs();
+    }
 
-            if (mBitmap != null) {
-                mBitmap.recycle();
-                mBitmap = null;
-            }
+    /** 开启连续渲染模式，由Choreographer的vsync信号驱动，每个vsync最多绘制一帧
+     * targetFps:目标帧率，<=0则跟随屏幕刷新率，比如在60/90/120hz的屏幕上传30则以30fps渲染
+     * */
+    public void startContinuousRender(int targetFps) {
+        mEngine.startContinuousRender(mRenderer,targetFps);
+    }
 
-            if (mSurfaceTexture != null) {
-                mSurfaceTexture.release();
-            }
+    // 停止连续渲染模式，回到内容改变时才渲染
+    public void stopContinuousRender() {
+        mEngine.stopContinuousRender(mRenderer);
+    }
 
-            if (mSurface != null) {
-                mSurface.releaseEglSurface();
-            }
-        }
+    // 设置每一帧的渲染回调，执行于渲染线程，可以拿到该帧的vsync时间戳
+    public void setFrameRenderer(GLFrameScheduler.FrameRenderer renderer) {
+        mRenderer.mFrameRenderer = renderer;
+    }
 
+    // 渲染一张 PNG的图片
+    public void loadBitmap(Bitmap bitmap) {
+        mRenderer.loadBitmap(bitmap);
+    }
 
-        /** SurfaceTextureListener回调：
-         * 1、执行于UI线程
-         * 2、onSurfaceTextureAvailable 代表TexutreView的texture已经创建好了，该回调在视图创建之后
-         *
-         * SurfaceTextureListener 所有线程都执行在UI线程中
-         * */
-        @Override
-        public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-            MLog.log("onSurfaceTextureAvailable(" + width + "x" + height + ")");
-            synchronized (mLock) {
-                mSurfaceTexture = surface;
-                mLock.notify();
-            }
-        }
+    /** SurfaceTextureListener回调：
+     * 1、执行于UI线程
+     * 2、onSurfaceTextureAvailable 代表TexutreView的texture已经创建好了，该回调在视图创建之后；TextureView从窗口移除后又添加回来时
+     * 也会回调，这时只需要重建EGLSurface
+     * */
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        MLog.log("onSurfaceTextureAvailable(" + width + "x" + height + ")");
+        mEngine.attachWindow(mRenderer,surface);
+    }
 
-        @Override
-        public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
-            MLog.log("onSurfaceTextureSizeChanged(" + width + "x" + height + ")");
-        }
+    // 大小改变(比如屏幕旋转)，SurfaceTexture没有变，EGLSurface也不需要重建，只需要更新视口并重新绘制
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        MLog.log("onSurfaceTextureSizeChanged(" + width + "x" + height + ")");
+        mEngine.notifySizeChanged(mRenderer);
+    }
 
-        /** 该回调发生在 TextView即将要释放之前
-         * 注意该回调的返回
-         * 1、返回 true  在该函数回调完成后由TextureView自己释放它的Surfacetexture
-         * 2、返回 false 则要由由自己手动释放SurfaceTexture
-         * 3、建议在这里返回true，否则有可能阻塞线程
-         * */
-        @Override
-        public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-            MLog.log("onSurfaceTextureDestr oyed");
-            synchronized (mLock) {
-                mSurfaceTexture = null;
-            }
+    /** 该回调发生在 TextView即将要释放之前
+     * 注意该回调的返回
+     * 1、返回 true  在该函数回调完成后由TextureView自己释放它的Surfacetexture
+     * 2、返回 false 则要由由自己手动释放SurfaceTexture
+     * 3、建议在这里返回true，否则有可能阻塞线程
+     * */
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        MLog.log("onSurfaceTextureDestr oyed");
+        // 返回true后TextureView会释放SurfaceTexture，所以要先等渲染线程释放EGLSurface
+        mEngine.detachWindow(mRenderer);
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+
+    }
+
+    // 每一帧的输入，由主线程写入，通过三缓冲交给渲染线程
+    private static class FrameInput {
+        Bitmap bitmap;
+    }
 
-            return true;
+    // 挂到GLRenderEngine上的渲染目标，除了loadBitmap()外都执行于渲染线程
+    private class Renderer implements GLRenderEngine.Target {
+        private GLProgram mprogram;
+        // 图片等帧输入通过三缓冲传递，主线程写入后发布，渲染线程绘制时总是取到最新的一份，两边都不会互相阻塞
+        private final GLTripleBuffer<FrameInput> mInputs =
+                new GLTripleBuffer<>(new FrameInput(),new FrameInput(),new FrameInput());
+        // 上传图片用的纹理，只创建一次
+        private GLTexture mTexture;
+        private volatile GLFrameScheduler.FrameRenderer mFrameRenderer;
+        // onRelease()时是否回收图片，只从窗口移除时要保留，重新添加后还要用它重新上传纹理
+        private volatile boolean mRecycleBitmap;
+
+        // 主线程
+        private void loadBitmap(Bitmap bitmap) {
+            mInputs.getWriteBuffer().bitmap = bitmap;
+            mInputs.publish();
+            // 请求重新绘制一帧，连续渲染模式下下一个vsync会重新请求
+            mEngine.requestRender(this);
         }
 
         @Override
-        public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-
+        public void onCreate(GLRenderEngine engine) {
+            // 着色器程序由引擎的着色器库统一编译和缓存，应用启动时已经预热过的话这里不需要再编译
+            mprogram = engine.getShaderLibrary().getProgram(0);
         }
 
+        /** Surface大小改变后调用，更新视口；如果有和Surface大小相关的中间渲染目标(fbo)，也只需要在这里调用GLFrameBuffer.resize()
+         * 调整它们的大小，不需要重新创建
+         * */
         @Override
-        public void run() {
-            SurfaceTexture st = null;
-            mRun = true;
-            while (true) {
-                // 等待直到TextureView的SurfaceTexture创建成功
-                synchronized (mLock) {
-                    while (mRun && (st = mSurfaceTexture) == null) {
-
-                        try {
-                            // 阻塞当前线程，直到在其它线程调用mLock.notifyAll()/mLock.notify()函数
-                            MLog.log("texutre 还未创建，等待");
-                            mLock.wait();
-                        } catch (InterruptedException ie) {
-                            ie.printStackTrace();
-                        }
-
-                        if (!mRun) {
-                            break;
-                        }
-                    }
-                }
-                MLog.log("开始渲染 ");
-                // 获取到了SurfaceTexture，那么开始做渲染工作
-                mGLcontext = new GLContext();
-                mSurface = new GLSurface(mGLcontext);
-
-                /** 遇到问题：
-                 * 奔溃：
-                 * eglCreateWindowSurface: native_window_api_connect (win=0x75d7e8d010) failed (0xffffffed) (already connected to another API?)
-                 * 解决方案：
-                 * 因为SurfaceTexture还未与前面的EGLContext解绑就又被绑定到其它EGLContext，导致奔溃。原因就是下面渲染结束后没有跳出循环;在while语句最后添加
-                 * break;语句
-                 * */
-                mSurface.createWindowSurface(st);
-
-                mSurface.makeCurrent();
-
-                onSurfaceCreated();
-
-                onDraw();
-
-                /** 遇到问题：渲染结果没有成功显示到屏幕上
-                 * 解决方案：因为下面提前释放了SurfaceTexture导致的问题。不应该在这里释放
-                 * */
-                // 渲染结束 进行相关释放工作
-//                st.release();
-
-                MLog.log("渲染结束");
-
-                break;
+        public void onSizeChanged(int width, int height) {
+            MLog.log("onSurfaceSizeChanged width " + width + " height " + height);
+            GLDispatch.glViewport(0,0,width,height);
+            if (mTexture != null) {
+                mTexture.setDisplaySize(width,height);
             }
         }
 
+        @Override
+        public void onDrawFrame(GLSurface surface, long frameTimeNanos) {
+            // 取出主线程最新发布的输入，没有新的输入则继续使用上一次的
+            boolean bitmapChanged = mInputs.update();
+            Bitmap bitmap = mInputs.getReadBuffer().bitmap;
+            int width = surface.getWidth();
+            int height = surface.getHeight();
+            MLog.log("width "+width + "height " + height);
 
-        private void onSurfaceCreated() {
-            // 初始化着色器程序
-            mprogram = new GLProgram(vString,fString);
-            mprogram.useprogram();
-
-            // 初始化顶点坐标和纹理坐标v
-            vbuffer = ByteBuffer.allocateDirect(verdata.length * 4);
-            vbuffer.order(ByteOrder.nativeOrder())
-                    .asFloatBuffer().put(verdata)
-                    .position(0);
-            fbuffer = ByteBuffer.allocateDirect(texdata.length * 4);
-            fbuffer.order(ByteOrder.nativeOrder())
-                    .asFloatBuffer().put(texdata)
-                    .position(0);
-        }
-
-        private void onDraw() {
-            if (mBitmap == null) {
+            // 多个目标共用一个上下文，视口等状态每一帧都要重新设置；没有图片时也要清屏，返回后引擎会swapBuffers()
+            GLDispatch.glViewport(0,0,width,height);
+            GLDispatch.glClearColor(1.0f,0,0,1.0f);
+            GLDispatch.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            if (bitmap == null) {
                 MLog.log("mBitmap nulll");
                 return;
             }
-            int width = mSurface.getWidth();
-            int height = mSurface.getHeight();
-            MLog.log("width "+width + "height " + height);
-
-            GLES20.glViewport(0,0,width,height);
-            GLES20.glClearColor(1.0f,0,0,1.0f);
-            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
             // 为着色器程序赋值
             mprogram.useprogram();
@@ -227,87 +214,55 @@ public class MyTextureView extends TextureView {
             int position = mprogram.attributeLocationForname("position");
             int texcoord = mprogram.attributeLocationForname("texcoord");
             int texture = mprogram.uniformaLocationForname("texture");
-            GLES20.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,0,vbuffer);
-            GLES20.glEnableVertexAttribArray(position);
-            GLES20.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,0,fbuffer);
-            GLES20.glEnableVertexAttribArray(texcoord);
+            // 全屏四边形用引擎启动时就创建好的共享顶点缓冲区
+            GLVertexBuffer quad = mEngine.getQuadBuffer();
+            quad.bind();
+            GLDispatch.glVertexAttribPointer(position,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,0);
+            GLDispatch.glEnableVertexAttribArray(position);
+            GLDispatch.glVertexAttribPointer(texcoord,2,GLES20.GL_FLOAT,false,GLRenderEngine.QUAD_STRIDE,GLRenderEngine.QUAD_TEXCOORD_OFFSET);
+            GLDispatch.glEnableVertexAttribArray(texcoord);
+            quad.unbind();
             MLog.log("position " + position + " texcoord " + texcoord + " texture " + texture);
 
-            // 开始上传纹理
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            // 设置纹理参数
-            IntBuffer texIntbuffer = IntBuffer.allocate(1);
-            GLES20.glGenTextures(1,texIntbuffer);
-            texture = texIntbuffer.get(0);
-            if (texture == 0) {
-                MLog.log("glGenTextures fail 0");
+            // 纹理只创建一次，连续渲染时每一帧都重新生成纹理会造成纹理泄漏；上下文丢失后会根据记录的bitmap自动重建
+            if (mTexture == null) {
+                // 图片一般比视图大很多，按照视图大小缩小后生成mipmap，用三线性过滤采样
+                mTexture = new GLTexture(mEngine.getResourceManager(),bitmap,
+                        GLTexture.Options.downscaled(width,height));
+            } else if (bitmapChanged) {
+                mTexture.update(bitmap);
             }
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
-
-            // 设置纹理参数
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D,texture);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MIN_FILTER,GLES20.GL_NEAREST);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_MAG_FILTER,GLES20.GL_NEAREST);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_S,GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,GLES20.GL_TEXTURE_WRAP_T,GLES20.GL_CLAMP_TO_EDGE);
+            mTexture.bind(0);
 
             // 第二个参数和前面用glActiveTexture()函数激活的纹理单元编号要一致，这样opengl es才知道用哪个纹理单元对象 去处理纹理
-            GLES20.glUniform1i(texture,0);
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D,0,mBitmap,0);
+            GLDispatch.glUniform1i(texture,0);
 
-            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
-
-            // 必须要有，否则渲染结果不会呈现到屏幕上
-            mSurface.swapBuffers();
+            GLDispatch.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,0,4);
 
+            GLFrameScheduler.FrameRenderer frameRenderer = mFrameRenderer;
+            if (frameRenderer != null) {
+                frameRenderer.onDrawFrame(frameTimeNanos);
+            }
         }
 
-        private void loadBitmap(Bitmap bitmap) {
-            synchronized (mLock) {
-                mBitmap = bitmap;
+        // 只释放这个视图自己的资源，引擎和上下文是共享的
+        @Override
+        public void onRelease() {
+            if (mTexture != null) {
+                mTexture.destroy();
+                mTexture = null;
+            }
+            // 着色器程序属于共享的着色器库，不在这里释放
+            mprogram = null;
+            if (!mRecycleBitmap) {
+                return;
+            }
+            mInputs.update();
+            FrameInput input = mInputs.getReadBuffer();
+            if (input.bitmap != null) {
+                input.bitmap.recycle();
+                input.bitmap = null;
             }
         }
-
     }
-
-
-    /** 遇到问题，glsl编译通不过
-     *  1、void修饰main()函数
-     *  2、varying 修饰的变量必须加精度修饰符 比如 highp
-     */
-    // 顶点着色器
-    private static final String vString = "attribute vec4 position;\n" +
-            " attribute vec2 texcoord;\n" +
-            " \n" +
-            " varying highp vec2 tex_coord;\n" +
-            " \n" +
-            " void main(){\n" +
-            "     gl_Position = position;\n" +
-            "     tex_coord = texcoord;\n" +
-            " }";
-    // 片元着色器
-    private static final String fString = "uniform sampler2D texture;\n" +
-            " \n" +
-            " varying highp vec2 tex_coord;\n" +
-            " \n" +
-            " void main(){\n" +
-            "     gl_FragColor = texture2D(texture,tex_coord);\n" +
-            " }";
-    // 顶点坐标
-    private static final float verdata[] = {
-            -1.0f,-1.0f,
-            1.0f,-1.0f,
-            -1.0f,1.0f,
-            1.0f,1.0f
-    };
-    // 纹理坐标
-    private static final float texdata[] = {
-            0.0f,1.0f,
-            1.0f,1.0f,
-            0.0f,0.0f,
-            1.0f,0.0f,
-    };
-
-
 }
@@ -1,5 +1,22 @@
 package com.media.opengl_es.utils;
 
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
 public class ADAssetsManager {
 
     /** 对AssetManager的一个封装
@@ -25,4 +42,285 @@ public class ADAssetsManager {
      * 　　".amr", ".awb", ".wma", ".wmv"
      * 　　};
      * */
+
+    /** 资源文件的读取和释放
+     * 1、apk中不压缩存储的文件(上面kNoCompressExt中的格式，或者gradle中aaptOptions.noCompress指定的格式)可以通过openFd()拿到apk文件的
+     * FileDescriptor以及在apk中的偏移和长度，用FileChannel.transferTo()直接在内核中拷贝(零拷贝)，或者用mmap直接映射成ByteBuffer访问，
+     * 不需要经过java堆
+     * 2、压缩存储的文件openFd()会抛出FileNotFoundException，只能通过open()解压读取，这里用池化的256KB缓冲区拷贝，避免每个文件都分配缓冲区
+     * 3、释放到手机目录时，用apk(zip)中央目录里记录的CRC32和文件大小作为内容的哈希，与上次释放时记录在旁边.crc文件中的值一致就跳过，
+     * 不需要读取文件内容就能判断文件是否变化，应用升级后只会重新释放内容变化了的文件
+     * 4、先写入临时文件，成功后再重命名，中途失败或者进程被杀不会留下不完整的文件
+     * */
+
+    // 压缩文件拷贝用的缓冲区大小
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // 缓冲区池，最多缓存的个数
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ArrayList<byte[]> sBufferPool = new ArrayList<>();
+    // 记录内容哈希的文件后缀
+    private static final String CRC_SUFFIX = ".crc";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** 将assets下的一个文件释放到dst，内容没有变化时跳过
+     * return:true代表进行了拷贝，false代表内容没有变化而跳过或者拷贝失败
+     * */
+    public static boolean copyToFile(Context context,String assetName,File dst) {
+        ZipFile apk = openApk(context);
+        try {
+            return copyToFile(context.getAssets(),apk,assetName,dst);
+        } finally {
+            close(apk);
+        }
+    }
+
+    /** 将assets下的目录(包括子目录)全部释放到dstDir，内容没有变化的文件跳过；apk只打开一次，适合首次启动时释放大量资源
+     * return:实际拷贝的文件个数
+     * */
+    public static int extractDir(Context context,String assetDir,File dstDir) {
+        ZipFile apk = openApk(context);
+        try {
+            return extractDir(context.getAssets(),apk,assetDir,dstDir);
+        } finally {
+            close(apk);
+        }
+    }
+
+    /** 将不压缩存储的文件直接映射为只读的ByteBuffer，映射在关闭文件后仍然有效，内存由系统按需换入换出，不占用java堆
+     * return:文件是压缩存储的(不能映射)或者打开失败返回null
+     * */
+    public static MappedByteBuffer mapAsset(Context context,String assetName) {
+        AssetFileDescriptor afd = null;
+        FileInputStream in = null;
+        try {
+            afd = context.getAssets().openFd(assetName);
+            in = new FileInputStream(afd.getFileDescriptor());
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY,afd.getStartOffset(),afd.getLength());
+        } catch (FileNotFoundException e) {
+            MLog.log("mapAsset " + assetName + " is compressed, can not be mapped");
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            close(in);
+            close(afd);
+        }
+    }
+
+    private static int extractDir(AssetManager assets,ZipFile apk,String assetDir,File dstDir) {
+        String[] names;
+        try {
+            names = assets.list(assetDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        if (names == null || names.length == 0) {
+            // 不是目录或者是空目录
+            return 0;
+        }
+        if (!dstDir.exists() && !dstDir.mkdirs()) {
+            MLog.log("extractDir mkdirs fail " + dstDir);
+            return 0;
+        }
+        int count = 0;
+        for (String name : names) {
+            String path = assetDir.isEmpty() ? name : assetDir + "/" + name;
+            File dst = new File(dstDir,name);
+            String[] children = null;
+            try {
+                children = assets.list(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (children != null && children.length > 0) {
+                count += extractDir(assets,apk,path,dst);
+            } else if (copyToFile(assets,apk,path,dst)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean copyToFile(AssetManager assets,ZipFile apk,String assetName,File dst) {
+        String signature = signature(apk,assetName);
+        File crcFile = new File(dst.getPath() + CRC_SUFFIX);
+        if (signature != null && dst.exists() && signature.equals(readText(crcFile))) {
+            return false;
+        }
+
+        File tmp = new File(dst.getPath() + TMP_SUFFIX);
+        File parent = dst.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        long start = System.nanoTime();
+        boolean ok = copyMapped(assets,assetName,tmp) || copyStream(assets,assetName,tmp);
+        if (!ok) {
+            tmp.delete();
+            return false;
+        }
+        if (dst.exists()) {
+            dst.delete();
+        }
+        if (!tmp.renameTo(dst)) {
+            MLog.log("copyToFile rename fail " + dst);
+            tmp.delete();
+            return false;
+        }
+        if (signature != null) {
+            writeText(crcFile,signature);
+        }
+        MLog.log("copyToFile " + assetName + " " + dst.length() + " bytes " + (System.nanoTime() - start) / 1000000 + "ms");
+        return true;
+    }
+
+    /** 不压缩存储的文件：从apk中对应的偏移处用transferTo()直接拷贝
+     * return:false代表文件是压缩存储的或者拷贝失败，需要使用copyStream()
+     * */
+    private static boolean copyMapped(AssetManager assets,String assetName,File dst) {
+        AssetFileDescriptor afd;
+        try {
+            afd = assets.openFd(assetName);
+        } catch (IOException e) {
+            // 压缩存储的文件
+            return false;
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(afd.getFileDescriptor());
+            out = new FileOutputStream(dst);
+            FileChannel src = in.getChannel();
+            FileChannel dstChannel = out.getChannel();
+            long offset = afd.getStartOffset();
+            long remain = afd.getLength();
+            // transferTo()一次不一定能传输完
+            while (remain > 0) {
+                long n = src.transferTo(offset,remain,dstChannel);
+                if (n <= 0) {
+                    throw new IOException("transferTo returned " + n);
+                }
+                offset += n;
+                remain -= n;
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            close(out);
+            close(in);
+            close(afd);
+        }
+    }
+
+    // 压缩存储的文件：解压读取，用池化的大缓冲区拷贝
+    private static boolean copyStream(AssetManager assets,String assetName,File dst) {
+        InputStream in = null;
+        FileOutputStream out = null;
+        byte[] buffer = obtainBuffer();
+        try {
+            in = assets.open(assetName,AssetManager.ACCESS_STREAMING);
+            out = new FileOutputStream(dst);
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer,0,n);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            recycleBuffer(buffer);
+            close(out);
+            close(in);
+        }
+    }
+
+    // 文件内容的签名：apk中央目录中记录的CRC32和解压后的大小，获取失败返回null(每次都拷贝)
+    private static String signature(ZipFile apk,String assetName) {
+        if (apk == null) {
+            return null;
+        }
+        ZipEntry entry = apk.getEntry("assets/" + assetName);
+        if (entry == null || entry.getCrc() == -1) {
+            return null;
+        }
+        return Long.toHexString(entry.getCrc()) + " " + entry.getSize();
+    }
+
+    private static ZipFile openApk(Context context) {
+        try {
+            return new ZipFile(context.getApplicationInfo().sourceDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            int size = sBufferPool.size();
+            if (size > 0) {
+                return sBufferPool.remove(size - 1);
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.add(buffer);
+            }
+        }
+    }
+
+    private static String readText(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] bytes = new byte[(int)file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes,read,bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new String(bytes,0,read,"UTF-8");
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private static void writeText(File file,String text) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(text.getBytes("UTF-8"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
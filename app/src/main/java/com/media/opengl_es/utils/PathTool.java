@@ -6,7 +6,6 @@ import android.net.Uri;
 import android.os.Environment;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -52,35 +51,13 @@ public class PathTool {
     }
 
     /**
-     * 复制assets文件到手机指定目录
+     * 复制assets文件到手机指定目录，内容没有变化时不会重新复制，具体实现见ADAssetsManager.copyToFile()
      * Context:应用上下文
      * String srcPath:asserts目录下文件名
      * String sdPath:保存到手机目录的路径
      */
     public static void copyAssetsToDst(Context context, String srcPath, String sdPath) {
-        try {
-            File outFile = new File(sdPath);
-            if (outFile.exists()) {
-                outFile.delete();
-            }
-            outFile.createNewFile();
-
-            InputStream is = context.getAssets().open(srcPath);
-            FileOutputStream fos = new FileOutputStream(outFile);
-            byte[] buffer = new byte[1024];
-            int byteCount;
-            while ((byteCount = is.read(buffer)) != -1) {
-                fos.write(buffer, 0, byteCount);
-            }
-            // 清空缓冲区并强制写入输出文件
-            fos.flush();
-
-            // 关闭文件句柄
-            is.close();
-            fos.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        ADAssetsManager.copyToFile(context,srcPath,new File(sdPath));
     }
 
     /** 安卓手机存储分为内部存储和外部存储
@@ -0,0 +1,164 @@
+package com.media.opengl_es.GLCommon;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * GLCommandBuffer录制，排序和合并的单元测试，录制不调用gl函数，用普通对象代替程序，纹理和顶点缓冲区
+ */
+public class GLCommandBufferTest {
+
+    private static final int GL_TRIANGLE_STRIP = 0x0005;
+
+    private final Object programA = new Object();
+    private final Object programB = new Object();
+    private final Object texture1 = new Object();
+    private final Object texture2 = new Object();
+    private final Object vbo = new Object();
+    private GLCommandBuffer buffer;
+
+    @Before
+    public void setUp() {
+        buffer = new GLCommandBuffer();
+    }
+
+    private void bind(Object program,Object texture) {
+        buffer.bindProgramRef(program);
+        buffer.bindTextureRef(0,texture);
+        buffer.verticesRef(vbo,"position","texcoord",16,8);
+    }
+
+    private int planProgram(int i) {
+        return buffer.packets()[buffer.planPacket(i) + GLCommandBuffer.P_PROGRAM];
+    }
+
+    @Test
+    public void plan_sortsByProgramAndMergesContiguousDraws() {
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        bind(programB,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,6,6);
+
+        assertEquals(3,buffer.getPacketCount());
+        assertEquals(2,buffer.plan());
+        assertEquals(buffer.packets()[GLCommandBuffer.P_PROGRAM],planProgram(0));
+        assertEquals(0,buffer.planFirst(0));
+        assertEquals(12,buffer.planCount(0));
+        assertEquals(6,buffer.planCount(1));
+    }
+
+    @Test
+    public void plan_doesNotMergeDifferentTexturesOrGaps() {
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        bind(programA,texture2);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,6,6);
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,18,6);
+
+        // 同一纹理的两次绘制排到一起，但是顶点范围不相邻，不能合并
+        assertEquals(3,buffer.plan());
+        assertEquals(3,buffer.getPlannedDrawCount());
+        assertEquals(18,buffer.planFirst(1));
+    }
+
+    @Test
+    public void plan_neverMergesStrips() {
+        bind(programA,texture1);
+        buffer.draw(GL_TRIANGLE_STRIP,0,4);
+        buffer.draw(GL_TRIANGLE_STRIP,4,4);
+        assertEquals(2,buffer.plan());
+    }
+
+    @Test
+    public void barrierAndClear_keepOrderAcrossSegments() {
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        buffer.barrier();
+        bind(programB,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        buffer.clear(0,0,0,1,0x4000);
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,6,6);
+
+        assertEquals(4,buffer.plan());
+        int a = buffer.packets()[GLCommandBuffer.P_PROGRAM];
+        assertEquals(a,planProgram(0));
+        assertNotEquals(a,planProgram(1));
+        assertEquals(GLCommandBuffer.KIND_CLEAR,buffer.packets()[buffer.planPacket(2) + GLCommandBuffer.P_KIND]);
+        assertEquals(a,planProgram(3));
+    }
+
+    @Test
+    public void uniforms_changedValueSplitsSameValueMerges() {
+        bind(programA,texture1);
+        buffer.uniformf("brightness",0.5f);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        // 设置相同的值不产生新的uniform集合
+        buffer.uniformf("brightness",0.5f);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,6,6);
+        buffer.uniformf("brightness",0.8f);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,12,6);
+
+        assertEquals(2,buffer.plan());
+        assertEquals(12,buffer.planCount(0));
+        assertEquals(6,buffer.planCount(1));
+    }
+
+    @Test
+    public void uniforms_arePerProgram() {
+        bind(programA,texture1);
+        buffer.uniform1i("texture",0);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        bind(programB,texture1);
+        buffer.uniform1i("texture",1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        // 重新绑定A，uniform保持A自己的值，和第一次绘制共用集合
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,6,6);
+
+        int[] packets = buffer.packets();
+        assertEquals(packets[GLCommandBuffer.P_UNIFORMS],
+                packets[2 * GLCommandBuffer.PACKET_SIZE + GLCommandBuffer.P_UNIFORMS]);
+        assertEquals(2,buffer.plan());
+    }
+
+    @Test
+    public void reorderDisabled_onlyMergesAdjacent() {
+        buffer.setReorderEnabled(false);
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,6,6);
+        bind(programB,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,6);
+        bind(programA,texture1);
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,12,6);
+
+        assertEquals(3,buffer.plan());
+        assertEquals(12,buffer.planCount(0));
+    }
+
+    @Test
+    public void reset_reusesBufferAndGrows() {
+        for (int round = 0; round < 2; round++) {
+            buffer.reset();
+            for (int i = 0; i < 1000; i++) {
+                bind(i % 2 == 0 ? programA : programB,texture1);
+                buffer.uniformf("alpha",i % 2);
+                buffer.draw(GLCommandBuffer.GL_TRIANGLES,(i / 2) * 6,6);
+            }
+            assertEquals(1000,buffer.getPacketCount());
+            assertEquals(2,buffer.plan());
+            assertEquals(3000,buffer.planCount(0));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void draw_withoutProgramThrows() {
+        buffer.draw(GLCommandBuffer.GL_TRIANGLES,0,3);
+    }
+}
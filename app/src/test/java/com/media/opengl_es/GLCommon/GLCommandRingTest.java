@@ -0,0 +1,225 @@
+package com.media.opengl_es.GLCommon;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * GLCommandRing和GLTripleBuffer的单元测试，以及和原来synchronized + wait/notify方式的交接耗时对比
+ */
+public class GLCommandRingTest {
+
+    private static final int COUNT = 1000000;
+
+    @Test
+    public void offerPoll_keepsOrderAndRejectsWhenFull() {
+        GLCommandRing ring = new GLCommandRing(4);
+        GLCommandRing.Command cmd = new GLCommandRing.Command();
+        assertFalse(ring.poll(cmd));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i,i * 10L,"obj" + i));
+        }
+        assertFalse(ring.offer(4,40L));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.poll(cmd));
+            assertEquals(i,cmd.what);
+            assertEquals(i * 10L,cmd.arg);
+            assertEquals("obj" + i,cmd.obj);
+        }
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(5,50L));
+    }
+
+    /** 每次只发送一个命令，并且在两次发送之间留出空闲，让消费者真正进入挂起流程；间隔长短随机，有的等到消费者已经挂起，
+     * 有的正好落在消费者设置mWaiter和park()之间。如果唤醒丢失，消费者会带着队列中的命令一直挂起(没有下一个命令来唤醒它)，测试超时
+     * */
+    @Test(timeout = 60000)
+    public void crossThread_singleCommandsWithIdleGapsAreNeverLost() throws InterruptedException {
+        final int count = 20000;
+        final GLCommandRing ring = new GLCommandRing(64);
+        final long[] received = new long[1];
+        final boolean[] inOrder = {true};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                GLCommandRing.Command cmd = new GLCommandRing.Command();
+                for (long expected = 0; expected < count; expected++) {
+                    ring.await();
+                    if (!ring.poll(cmd) || cmd.arg != expected) {
+                        inOrder[0] = false;
+                        return;
+                    }
+                    synchronized (received) {
+                        received[0] = expected + 1;
+                        received.notifyAll();
+                    }
+                }
+            }
+        });
+        consumer.start();
+
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            // 等上一个命令被取走，保证队列为空，消费者下一次await()一定会走挂起的流程
+            synchronized (received) {
+                while (received[0] < i && inOrder[0]) {
+                    received.wait(10);
+                }
+            }
+            int gap = random.nextInt(4);
+            if (gap == 0) {
+                // 等到消费者已经挂起
+                while (consumer.getState() != Thread.State.WAITING && consumer.isAlive()) {
+                    Thread.yield();
+                }
+            } else {
+                // 随机的短暂空转，落在消费者挂起的过程中
+                long until = System.nanoTime() + random.nextInt(20000);
+                while (System.nanoTime() < until) {
+                    Thread.yield();
+                }
+            }
+            assertTrue(ring.offer(1,i));
+        }
+        consumer.join();
+        assertTrue(inOrder[0]);
+        assertEquals(count,received[0]);
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void tripleBuffer_alwaysReadsLatestPublished() {
+        GLTripleBuffer<long[]> buffer = new GLTripleBuffer<>(new long[1],new long[1],new long[1]);
+        assertFalse(buffer.update());
+
+        buffer.getWriteBuffer()[0] = 1;
+        buffer.publish();
+        buffer.getWriteBuffer()[0] = 2;
+        buffer.publish();
+        assertTrue(buffer.update());
+        assertEquals(2,buffer.getReadBuffer()[0]);
+        // 没有新的发布时读缓冲区保持不变
+        assertFalse(buffer.update());
+        assertEquals(2,buffer.getReadBuffer()[0]);
+
+        buffer.getWriteBuffer()[0] = 3;
+        buffer.publish();
+        assertTrue(buffer.update());
+        assertEquals(3,buffer.getReadBuffer()[0]);
+    }
+
+    @Test
+    public void tripleBuffer_crossThreadValuesNeverGoBackwards() throws InterruptedException {
+        final GLTripleBuffer<long[]> buffer = new GLTripleBuffer<>(new long[1],new long[1],new long[1]);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= COUNT; i++) {
+                    buffer.getWriteBuffer()[0] = i;
+                    buffer.publish();
+                }
+            }
+        });
+        producer.start();
+
+        long last = 0;
+        while (last < COUNT) {
+            if (buffer.update()) {
+                long value = buffer.getReadBuffer()[0];
+                assertTrue(value > last);
+                last = value;
+            }
+        }
+        producer.join();
+    }
+
+    /** 交接耗时对比：生产者发送COUNT个命令，消费者逐个取出，统计平均每个命令的耗时
+     * 只打印结果，不做断言，耗时和机器相关；耗时较长，平时不运行，需要时去掉@Ignore
+     * */
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmark_ringVersusMonitor() throws InterruptedException {
+        for (int round = 0; round < 3; round++) {
+            long ring = runRing();
+            long monitor = runMonitor();
+            System.out.println("handoff round " + round + " ring " + ring / COUNT + " ns/op, monitor " + monitor / COUNT + " ns/op");
+        }
+    }
+
+    private static long runRing() throws InterruptedException {
+        final GLCommandRing ring = new GLCommandRing(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < COUNT; i++) {
+                    while (!ring.offer(1,i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        // 和渲染线程一样，每次唤醒后取出所有的命令
+        GLCommandRing.Command cmd = new GLCommandRing.Command();
+        int received = 0;
+        while (received < COUNT) {
+            ring.await();
+            while (ring.poll(cmd)) {
+                received++;
+            }
+        }
+        producer.join();
+        return System.nanoTime() - start;
+    }
+
+    // 渲染线程原来的方式：共享字段由synchronized保护，生产者notify，消费者没有数据时wait
+    private static long runMonitor() throws InterruptedException {
+        final Object lock = new Object();
+        final long[] queue = new long[64];
+        final int[] count = new int[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int tail = 0;
+                for (int i = 0; i < COUNT; i++) {
+                    synchronized (lock) {
+                        while (count[0] == queue.length) {
+                            try {
+                                lock.wait();
+                            } catch (InterruptedException ie) {
+                                return;
+                            }
+                        }
+                        queue[tail] = i;
+                        tail = (tail + 1) % queue.length;
+                        count[0]++;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        int head = 0;
+        int received = 0;
+        while (received < COUNT) {
+            synchronized (lock) {
+                while (count[0] == 0) {
+                    lock.wait();
+                }
+                while (count[0] > 0) {
+                    head = (head + 1) % queue.length;
+                    count[0]--;
+                    received++;
+                }
+                lock.notifyAll();
+            }
+        }
+        producer.join();
+        return System.nanoTime() - start;
+    }
+}
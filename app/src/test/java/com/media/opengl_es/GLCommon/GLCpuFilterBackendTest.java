@@ -0,0 +1,277 @@
+package com.media.opengl_es.GLCommon;
+
+import org.junit.AfterClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * GLCpuFilterBackend的正确性测试(与按照GLFilter定义直接计算的结果对比)，以及1200万像素图片的吞吐量
+ */
+public class GLCpuFilterBackendTest {
+
+    private static final int W = 101;
+    private static final int H = 67;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void tearDown() {
+        sPool.shutdown();
+    }
+
+    private static int[] randomImage(int w,int h,long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+
+    private static int channel(int p,int c) {
+        return (p >>> (24 - c * 8)) & 0xff;
+    }
+
+    private static int clampIndex(int i,int size) {
+        return Math.max(0,Math.min(size - 1,i));
+    }
+
+    private static void assertClose(int[] expected,int[] actual,int count,int tolerance) {
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < 4; c++) {
+                int e = channel(expected[i],c);
+                int a = channel(actual[i],c);
+                if (Math.abs(e - a) > tolerance) {
+                    fail("pixel " + i + " channel " + c + " expected " + e + " actual " + a);
+                }
+            }
+        }
+    }
+
+    // 按照定义直接计算的可分离模糊，权重为浮点数
+    private static int[] referenceBlur(int[] src,int w,int h,float[] weights) {
+        int r = weights.length / 2;
+        double[] tmp = new double[w * h * 4];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                for (int c = 0; c < 4; c++) {
+                    double sum = 0;
+                    for (int k = -r; k <= r; k++) {
+                        sum += weights[k + r] * channel(src[y * w + clampIndex(x + k,w)],c);
+                    }
+                    tmp[(y * w + x) * 4 + c] = sum;
+                }
+            }
+        }
+        int[] dst = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int p = 0;
+                for (int c = 0; c < 4; c++) {
+                    double sum = 0;
+                    for (int k = -r; k <= r; k++) {
+                        sum += weights[k + r] * tmp[(clampIndex(y + k,h) * w + x) * 4 + c];
+                    }
+                    p |= ((int)Math.round(sum)) << (24 - c * 8);
+                }
+                dst[y * w + x] = p;
+            }
+        }
+        return dst;
+    }
+
+    @Test
+    public void colorMatrix_identityCopies() {
+        float[] identity = {
+                1,0,0,0,0,
+                0,1,0,0,0,
+                0,0,1,0,0,
+                0,0,0,1,0,
+        };
+        int[] src = randomImage(W,H,1);
+        int[] dst = new int[W * H];
+        new GLCpuFilterBackend(sPool).apply(GLFilter.colorMatrix(identity),src,W,H,dst);
+        assertArrayEquals(src,dst);
+    }
+
+    @Test
+    public void colorMatrix_crossTermsMatchDefinition() {
+        // 灰度化，有通道之间的交叉项，走浮点路径
+        float[] m = {
+                0.299f,0.587f,0.114f,0,0,
+                0.299f,0.587f,0.114f,0,0,
+                0.299f,0.587f,0.114f,0,0,
+                0,0,0,1,0,
+        };
+        int[] src = randomImage(W,H,2);
+        int[] dst = new int[W * H];
+        new GLCpuFilterBackend(sPool).apply(GLFilter.colorMatrix(m),src,W,H,dst);
+        int[] expected = new int[W * H];
+        for (int i = 0; i < src.length; i++) {
+            int gray = (int)Math.round(0.299 * channel(src[i],1) + 0.587 * channel(src[i],2) + 0.114 * channel(src[i],3));
+            gray = Math.min(255,gray);
+            expected[i] = (src[i] & 0xff000000) | (gray << 16) | (gray << 8) | gray;
+        }
+        assertClose(expected,dst,src.length,1);
+    }
+
+    @Test
+    public void brightnessContrast_matchesShaderFormula() {
+        float brightness = 0.1f;
+        float contrast = 1.5f;
+        int[] src = randomImage(W,H,3);
+        int[] dst = new int[W * H];
+        new GLCpuFilterBackend(sPool).apply(GLFilter.brightnessContrast(brightness,contrast),src,W,H,dst);
+        int[] expected = new int[W * H];
+        for (int i = 0; i < src.length; i++) {
+            int p = src[i] & 0xff000000;
+            for (int c = 1; c < 4; c++) {
+                double v = (channel(src[i],c) / 255.0 + brightness - 0.5) * contrast + 0.5;
+                p |= (int)Math.round(Math.max(0,Math.min(1,v)) * 255) << (24 - c * 8);
+            }
+            expected[i] = p;
+        }
+        assertClose(expected,dst,src.length,1);
+    }
+
+    @Test
+    public void lut_mapsEachChannelInPlace() {
+        int[] lut = new int[768];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = 255 - i;
+            lut[256 + i] = i / 2;
+            lut[512 + i] = i;
+        }
+        int[] src = randomImage(W,H,4);
+        int[] pixels = src.clone();
+        new GLCpuFilterBackend(sPool).apply(GLFilter.lut(lut),pixels,W,H,pixels);
+        for (int i = 0; i < src.length; i++) {
+            assertEquals(channel(src[i],0),channel(pixels[i],0));
+            assertEquals(255 - channel(src[i],1),channel(pixels[i],1));
+            assertEquals(channel(src[i],2) / 2,channel(pixels[i],2));
+            assertEquals(channel(src[i],3),channel(pixels[i],3));
+        }
+    }
+
+    @Test
+    public void boxBlur_matchesDefinition() {
+        int radius = 3;
+        int[] src = randomImage(W,H,5);
+        int[] dst = new int[W * H];
+        new GLCpuFilterBackend(sPool).apply(GLFilter.boxBlur(radius),src,W,H,dst);
+        float[] weights = new float[radius * 2 + 1];
+        Arrays.fill(weights,1f / weights.length);
+        // 两次整数除法各有半个色阶的舍入
+        assertClose(referenceBlur(src,W,H,weights),dst,src.length,1);
+    }
+
+    @Test
+    public void gaussianBlur_matchesDefinitionAndKeepsFlatColor() {
+        GLFilter filter = GLFilter.gaussianBlur(2.5f);
+        int[] src = randomImage(W,H,6);
+        int[] dst = new int[W * H];
+        GLCpuFilterBackend backend = new GLCpuFilterBackend(sPool);
+        backend.apply(filter,src,W,H,dst);
+        assertClose(referenceBlur(src,W,H,filter.gaussianWeights()),dst,src.length,1);
+
+        Arrays.fill(src,0x80402010);
+        backend.apply(filter,src,W,H,dst);
+        for (int p : dst) {
+            assertEquals(0x80402010,p);
+        }
+    }
+
+    @Test
+    public void resize_sameSizeCopiesAndHalfAverages() {
+        int[] src = randomImage(W,H,7);
+        int[] dst = new int[W * H];
+        GLCpuFilterBackend backend = new GLCpuFilterBackend(sPool);
+        backend.apply(GLFilter.resize(W,H),src,W,H,dst);
+        assertArrayEquals(src,dst);
+
+        // 宽高都缩小一半，采样点正好在2x2像素的中间
+        int w = 64;
+        int h = 48;
+        src = randomImage(w,h,8);
+        int[] half = new int[w * h / 4];
+        backend.apply(GLFilter.resize(w / 2,h / 2),src,w,h,half);
+        int[] expected = new int[half.length];
+        for (int y = 0; y < h / 2; y++) {
+            for (int x = 0; x < w / 2; x++) {
+                int p = 0;
+                for (int c = 0; c < 4; c++) {
+                    int sum = channel(src[2 * y * w + 2 * x],c) + channel(src[2 * y * w + 2 * x + 1],c)
+                            + channel(src[(2 * y + 1) * w + 2 * x],c) + channel(src[(2 * y + 1) * w + 2 * x + 1],c);
+                    p |= ((sum + 2) / 4) << (24 - c * 8);
+                }
+                expected[y * (w / 2) + x] = p;
+            }
+        }
+        assertClose(expected,half,half.length,1);
+    }
+
+    @Test
+    public void parallel_matchesSingleThread() {
+        ForkJoinPool single = new ForkJoinPool(1);
+        GLFilter[] filters = {
+                GLFilter.brightnessContrast(-0.2f,0.8f),
+                GLFilter.boxBlur(5),
+                GLFilter.gaussianBlur(1.5f),
+                GLFilter.resize(57,91),
+        };
+        int w = 333;
+        int h = 250;
+        int[] src = randomImage(w,h,9);
+        GLCpuFilterBackend parallel = new GLCpuFilterBackend(sPool);
+        GLCpuFilterBackend serial = new GLCpuFilterBackend(single);
+        for (GLFilter filter : filters) {
+            int[] a = new int[filter.outputWidth(w) * filter.outputHeight(h)];
+            int[] b = new int[a.length];
+            parallel.apply(filter,src,w,h,a);
+            serial.apply(filter,src,w,h,b);
+            assertArrayEquals(a,b);
+        }
+        single.shutdown();
+    }
+
+    @Test
+    @Ignore("benchmark, run manually")
+    public void benchmark_12MegapixelThroughput() {
+        int w = 4000;
+        int h = 3000;
+        int[] src = randomImage(w,h,10);
+        int[] dst = new int[w * h];
+        GLCpuFilterBackend backend = new GLCpuFilterBackend();
+        GLFilter[] filters = {
+                GLFilter.colorMatrix(new float[]{
+                        0.393f,0.769f,0.189f,0,0,
+                        0.349f,0.686f,0.168f,0,0,
+                        0.272f,0.534f,0.131f,0,0,
+                        0,0,0,1,0}),
+                GLFilter.brightnessContrast(0.1f,1.2f),
+                GLFilter.boxBlur(8),
+                GLFilter.gaussianBlur(3),
+                GLFilter.resize(1000,750),
+        };
+        String[] names = {"colorMatrix","brightnessContrast","boxBlur r8","gaussian sigma3","resize 1/4"};
+        for (int i = 0; i < filters.length; i++) {
+            // 第一次运行分配中间结果并预热JIT
+            backend.apply(filters[i],src,w,h,dst);
+            int rounds = 3;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                backend.apply(filters[i],src,w,h,dst);
+            }
+            long nanos = (System.nanoTime() - start) / rounds;
+            System.out.println("12MP " + names[i] + " " + nanos / 1000000 + " ms, "
+                    + String.format("%.1f",w * (double)h / nanos * 1000) + " MP/s, "
+                    + ForkJoinPool.commonPool().getParallelism() + " threads");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.media.opengl_es.GLCommon;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * GLImageStats回读后在cpu上合并的部分，回读的像素为RGBA，每个像素4字节
+ */
+public class GLImageStatsTest {
+
+    private static ByteBuffer pixels(int... rgba) {
+        ByteBuffer buffer = ByteBuffer.allocate(rgba.length);
+        for (int v : rgba) {
+            buffer.put((byte)v);
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    @Test
+    public void reduceReadback_mergesMinMaxAndMean() {
+        // r为各块的最小值，g为最大值，b为平均值
+        ByteBuffer buffer = pixels(
+                10,200,100,255,
+                40,255,50,255,
+                0,90,30,255,
+                20,120,80,255);
+        float[] out = new float[3];
+        GLImageStats.reduceReadback(buffer,4,out);
+        assertEquals(0,out[0],0);
+        assertEquals(1,out[1],0);
+        assertEquals(65 / 255f,out[2],1e-6f);
+    }
+
+    @Test
+    public void reduceReadback_onlyReadsCountPixels() {
+        // 缓冲区是重复使用的，后面可能残留上一次更大的回读结果
+        ByteBuffer buffer = pixels(
+                128,128,128,255,
+                0,255,0,255);
+        float[] out = new float[3];
+        GLImageStats.reduceReadback(buffer,1,out);
+        assertEquals(128 / 255f,out[0],0);
+        assertEquals(128 / 255f,out[1],0);
+        assertEquals(128 / 255f,out[2],0);
+    }
+
+    @Test
+    public void binHistogram_countsRedChannelAndClearsOldBins() {
+        int[] bins = new int[GLImageStats.HISTOGRAM_BINS];
+        bins[7] = 99;
+        ByteBuffer buffer = pixels(
+                0,0,0,255,
+                255,255,255,255,
+                128,128,128,255,
+                128,128,128,255);
+        GLImageStats.binHistogram(buffer,4,bins);
+        assertEquals(1,bins[0]);
+        assertEquals(2,bins[128]);
+        assertEquals(1,bins[255]);
+        assertEquals(0,bins[7]);
+    }
+}